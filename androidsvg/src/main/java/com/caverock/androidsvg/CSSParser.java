@@ -18,8 +18,11 @@
 package com.caverock.androidsvg;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.xml.sax.SAXException;
 
@@ -152,9 +155,18 @@ public class CSSParser
    {
       private List<Rule>  rules = null;
 
+      // Rules bucketed by the id, class or tag of their rightmost simple selector. Rules whose
+      // rightmost selector has none of these go in the universal bucket. Built on demand.
+      private Map<String, List<Rule>>  idRules = null;
+      private Map<String, List<Rule>>  classRules = null;
+      private Map<String, List<Rule>>  tagRules = null;
+      private List<Rule>               universalRules = null;
+      private boolean                  siblingSelectors = false;
+
       // Add a rule to the ruleset. The position at which it is inserted is determined by its specificity value.
       public void  add(Rule rule)
       {
+         invalidateIndex();
          if (this.rules == null)
             this.rules = new ArrayList<Rule>();
          for (int i = 0; i < rules.size(); i++)
@@ -172,6 +184,7 @@ public class CSSParser
       {
          if (rules.rules == null)
             return;
+         invalidateIndex();
          if (this.rules == null)
             this.rules = new ArrayList<Rule>(rules.rules.size());
          for (Rule rule: rules.rules) {
@@ -189,6 +202,139 @@ public class CSSParser
          return this.rules == null || this.rules.isEmpty();
       }
 
+      /*
+       * Must be called if the rules list is modified.
+       */
+      public void  invalidateIndex()
+      {
+         this.universalRules = null;
+      }
+
+      /*
+       * Returns true if any rule depends on the position of an element among its siblings
+       * (ie. uses the '+' combinator or ':first-child').
+       */
+      public boolean  hasSiblingSelectors()
+      {
+         if (this.rules == null)
+            return false;
+         if (this.universalRules == null)
+            buildIndex();
+         return siblingSelectors;
+      }
+
+      /*
+       * Fills 'result' with the rules that could possibly match the given element, in the same
+       * order as they appear in the ruleset and each only once. The caller must still call
+       * ruleMatch() on each.
+       */
+      protected void  getCandidateRules(SvgElementBase obj, List<Rule> result)
+      {
+         result.clear();
+         if (this.rules == null)
+            return;
+         if (this.universalRules == null)
+            buildIndex();
+
+         if (obj.id != null)
+            addCandidates(idRules.get(obj.id), result);
+         if (obj.classNames != null) {
+            for (int i=0; i<obj.classNames.size(); i++)
+               addCandidates(classRules.get(obj.classNames.get(i)), result);
+         }
+         addCandidates(tagRules.get(getTagName(obj)), result);
+         if (obj instanceof SVG.Group)
+            addCandidates(tagRules.get("g"), result);
+         addCandidates(universalRules, result);
+
+         // Restore ruleset order. Lists are short, so an insertion sort is sufficient.
+         for (int i=1; i<result.size(); i++)
+         {
+            Rule  rule = result.get(i);
+            int   j = i - 1;
+            while (j >= 0 && result.get(j).order > rule.order) {
+               result.set(j + 1, result.get(j));
+               j--;
+            }
+            result.set(j + 1, rule);
+         }
+
+         // A rule can be found more than once if the element lists the same class twice
+         int  count = 0;
+         for (int i=0; i<result.size(); i++)
+         {
+            Rule  rule = result.get(i);
+            if (count > 0 && result.get(count - 1) == rule)
+               continue;
+            result.set(count++, rule);
+         }
+         for (int i=result.size() - 1; i>=count; i--)
+            result.remove(i);
+      }
+
+      private static void  addCandidates(List<Rule> bucket, List<Rule> result)
+      {
+         if (bucket != null)
+            result.addAll(bucket);
+      }
+
+      private void  buildIndex()
+      {
+         idRules = new HashMap<String, List<Rule>>();
+         classRules = new HashMap<String, List<Rule>>();
+         tagRules = new HashMap<String, List<Rule>>();
+         universalRules = new ArrayList<Rule>();
+         siblingSelectors = false;
+
+         for (int i=0; i<rules.size(); i++)
+         {
+            Rule  rule = rules.get(i);
+            rule.order = i;
+            for (int j=0; j<rule.selector.size(); j++)
+            {
+               SimpleSelector  part = rule.selector.get(j);
+               if (part.combinator == Combinator.FOLLOWS || part.pseudos != null)
+                  siblingSelectors = true;
+            }
+            if (rule.selector.isEmpty()) {
+               universalRules.add(rule);
+               continue;
+            }
+            // Bucket by the most selective part of the rightmost simple selector
+            SimpleSelector  sel = rule.selector.get(rule.selector.size() - 1);
+            String          idValue = null;
+            String          classValue = null;
+            if (sel.attribs != null)
+            {
+               for (Attrib attr: sel.attribs)
+               {
+                  if (attr.name == ID)
+                     idValue = attr.value;
+                  else if (attr.name == CLASS && classValue == null)
+                     classValue = attr.value;
+               }
+            }
+            if (idValue != null)
+               addToBucket(idRules, idValue, rule);
+            else if (classValue != null)
+               addToBucket(classRules, classValue, rule);
+            else if (sel.tag != null)
+               addToBucket(tagRules, sel.tag.equalsIgnoreCase("G") ? "g" : sel.tag, rule);
+            else
+               universalRules.add(rule);
+         }
+      }
+
+      private static void  addToBucket(Map<String, List<Rule>> buckets, String key, Rule rule)
+      {
+         List<Rule>  bucket = buckets.get(key);
+         if (bucket == null) {
+            bucket = new ArrayList<Rule>();
+            buckets.put(key, bucket);
+         }
+         bucket.add(rule);
+      }
+
       @Override
       public String toString()
       {
@@ -206,6 +352,8 @@ public class CSSParser
    {
       public Selector   selector = null;
       public SVG.Style  style = null;
+
+      int  order = 0;   // position in the owning Ruleset. Set when the Ruleset is indexed.
       
       public Rule(Selector selector, SVG.Style style)
       {
@@ -226,6 +374,8 @@ public class CSSParser
    {
       public List<SimpleSelector>  selector = null;
       public int                   specificity = 0;
+
+      int[]  ancestorKeyHashes = null;   // See AncestorFilter. Computed on first use.
       
       public void  add(SimpleSelector part)
       {
@@ -276,6 +426,163 @@ public class CSSParser
    }
 
 
+   /*
+    * A counting bloom filter of the ids, classes and tags of the ancestors of the element
+    * currently being rendered. It is maintained by the renderer as it descends the tree and lets
+    * selectors whose ancestor parts cannot match be rejected without walking the ancestors.
+    *
+    * The filter is only usable while the render parents form an unbroken chain of document
+    * parents. Elements rendered via <use> have a render parent that differs from their document
+    * parent, and for those the filter must not be used.
+    */
+   protected static class AncestorFilter
+   {
+      private static final int  SIZE = 1 << 12;
+      private static final int  MASK = SIZE - 1;
+
+      private static final int  KEY_ID = 1;
+      private static final int  KEY_CLASS = 2;
+      private static final int  KEY_TAG = 3;
+
+      private int[]               counts = new int[SIZE];
+      private List<SvgContainer>  ancestors = new ArrayList<SvgContainer>();
+      private int                 validDepth = 0;   // number of stack entries, from the bottom, that are in the filter
+      private int                 fastRejectCount = 0;
+
+      public void  push(SvgContainer container)
+      {
+         int  depth = ancestors.size();
+         if (validDepth == depth)
+         {
+            SvgContainer  expectedParent = (depth == 0) ? null : ancestors.get(depth - 1);
+            if (((SvgObject) container).parent == expectedParent)
+            {
+               update((SvgElementBase) container, 1);
+               validDepth++;
+            }
+         }
+         ancestors.add(container);
+      }
+
+      public void  pop()
+      {
+         int           depth = ancestors.size() - 1;
+         SvgContainer  container = ancestors.remove(depth);
+         if (validDepth > depth)
+         {
+            update((SvgElementBase) container, -1);
+            validDepth = depth;
+         }
+      }
+
+      public void  clear()
+      {
+         while (!ancestors.isEmpty())
+            pop();
+      }
+
+      /*
+       * Returns true if the filter contains exactly the document ancestors of 'obj'.
+       */
+      public boolean  isUsableFor(SvgElementBase obj)
+      {
+         int  depth = ancestors.size();
+         if (validDepth != depth)
+            return false;
+         return obj.parent == ((depth == 0) ? null : ancestors.get(depth - 1));
+      }
+
+      /*
+       * Returns false if the selector certainly can't match because one of the parts that must
+       * match an ancestor requires an id, class or tag that none of the ancestors has.
+       */
+      public boolean  mightMatch(Selector selector)
+      {
+         if (selector.ancestorKeyHashes == null)
+            selector.ancestorKeyHashes = getAncestorKeyHashes(selector);
+         int[]  hashes = selector.ancestorKeyHashes;
+         for (int i=0; i<hashes.length; i++)
+         {
+            if (counts[hashes[i] & MASK] == 0 || counts[(hashes[i] >>> 16) & MASK] == 0) {
+               fastRejectCount++;
+               return false;
+            }
+         }
+         return true;
+      }
+
+      public int  getFastRejectCount()
+      {
+         return fastRejectCount;
+      }
+
+      public void  resetFastRejectCount()
+      {
+         fastRejectCount = 0;
+      }
+
+      private void  update(SvgElementBase elem, int delta)
+      {
+         if (elem.id != null)
+            updateKey(hash(KEY_ID, elem.id), delta);
+         if (elem.classNames != null) {
+            for (int i=0; i<elem.classNames.size(); i++)
+               updateKey(hash(KEY_CLASS, elem.classNames.get(i)), delta);
+         }
+         updateKey(hash(KEY_TAG, getTagName(elem)), delta);
+         if (elem instanceof SVG.Group)
+            updateKey(hash(KEY_TAG, "g"), delta);
+      }
+
+      private void  updateKey(int hash, int delta)
+      {
+         counts[hash & MASK] += delta;
+         counts[(hash >>> 16) & MASK] += delta;
+      }
+
+      private static int  hash(int keyType, String key)
+      {
+         int  h = key.hashCode() * 31 + keyType;
+         h ^= (h >>> 15);
+         h *= 0x85ebca6b;
+         h ^= (h >>> 13);
+         return h;
+      }
+
+      /*
+       * Collect the keys required by the selector parts that must match an ancestor. A part
+       * must match an ancestor if the part to its right has a descendant or child combinator.
+       * Parts followed by '+' match siblings, which share the same ancestors, so are skipped.
+       */
+      private static int[]  getAncestorKeyHashes(Selector selector)
+      {
+         List<Integer>  keys = new ArrayList<Integer>();
+         for (int i=0; i<selector.size() - 1; i++)
+         {
+            if (selector.get(i + 1).combinator == Combinator.FOLLOWS)
+               continue;
+            SimpleSelector  sel = selector.get(i);
+            if (sel.tag != null)
+               keys.add(hash(KEY_TAG, sel.tag.equalsIgnoreCase("G") ? "g" : sel.tag));
+            if (sel.attribs != null)
+            {
+               for (Attrib attr: sel.attribs)
+               {
+                  if (attr.name == ID)
+                     keys.add(hash(KEY_ID, attr.value));
+                  else if (attr.name == CLASS)
+                     keys.add(hash(KEY_CLASS, attr.value));
+               }
+            }
+         }
+         int[]  result = new int[keys.size()];
+         for (int i=0; i<result.length; i++)
+            result[i] = keys.get(i);
+         return result;
+      }
+   }
+
+
    //===========================================================================================
 
 
@@ -880,6 +1187,22 @@ public class CSSParser
    }
 
 
+   // Cache of element class to tag name, to avoid allocating a new string for every comparison.
+   // Read without locking, as it is consulted for every element on every render.
+   private static final Map<Class<?>, String>  tagNames = new ConcurrentHashMap<Class<?>, String>();
+
+   private static String  getTagName(SvgElementBase obj)
+   {
+      String  tag = tagNames.get(obj.getClass());
+      if (tag == null) {
+         // Two threads may both compute the name, but they will store the same value
+         tag = obj.getClass().getSimpleName().toLowerCase(Locale.US);
+         tagNames.put(obj.getClass(), tag);
+      }
+      return tag;
+   }
+
+
    private static boolean selectorMatch(SimpleSelector sel, List<SvgContainer> ancestors, int ancestorsPos, SvgElementBase obj)
    {
       // Check tag name. tag==null means tag is "*" which matches everything.
@@ -891,7 +1214,7 @@ public class CSSParser
                return false;
          }
          // all other element classes should match their tag names
-         else if (!sel.tag.equals(obj.getClass().getSimpleName().toLowerCase(Locale.US)))
+         else if (!sel.tag.equals(getTagName(obj)))
          {
             return false;
          }
@@ -27,10 +27,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.xml.sax.SAXException;
 
@@ -118,9 +120,59 @@ public class SVG
    // CSS rules
    private Ruleset  cssRules = new Ruleset();
 
-   // Map from id attribute to element
+   // Map from id attribute to element. Kept up to date by the tree mutation methods.
    Map<String, SvgElementBase> idToElementMap = new HashMap<String, SvgElementBase>();
 
+   // Ids whose element was removed from the index while other elements may still have the same
+   // id. They are resolved again by a search of the tree the next time they are looked up.
+   Set<String>  unresolvedIds = new HashSet<String>();
+
+   // Map from element class to the elements of that class.
+   Map<Class<?>, ElementClassIndex> classToElementsMap = new HashMap<Class<?>, ElementClassIndex>();
+
+   // True while the documentOrder and subtreeEnd of the objects in the tree are up to date.
+   private boolean  documentOrderValid = false;
+
+   // Incremented on every change that might affect the bounds of elements that reference
+   // other elements (eg. <use>).
+   int  geometryGeneration = 0;
+
+   // Incremented whenever a change might affect the cascaded style of elements other than
+   // those directly changed (eg. new CSS rules).
+   int  styleGeneration = 0;
+
+   // Incremented whenever the visual bounds of all elements become invalid: when the styleGeneration
+   // changes, or the document is rendered with a different viewport or DPI.
+   int  visualBoundsGeneration = 0;
+   private Box    lastRenderViewPort = null;
+   private Box    lastRenderViewBox = null;
+   private float  lastRenderDPI = 0f;
+
+   // Incremented on every notified change that might affect how the document renders.
+   int  contentGeneration = 0;
+
+   // Spatial indexes of element bounds, used for hit-testing and by SVGTileRenderer. There is one
+   // for each viewport and DPI that elements are measured at, most recently used first, so that
+   // renderers of different sizes don't rebuild each other's index. Created on demand.
+   private static final int  MAX_SPATIAL_INDEXES = 4;
+   private List<SVGSpatialIndex>  spatialIndexes = new ArrayList<SVGSpatialIndex>(MAX_SPATIAL_INDEXES);
+
+   // Paths built for the shape elements of this document.
+   private SVGPathCache  pathCache = new SVGPathCache();
+   private SVGGradientCache  gradientCache = new SVGGradientCache();
+   private SVGPatternCache   patternCache = new SVGPatternCache();
+   private SVGClipPathCache  clipPathCache = new SVGClipPathCache();
+   private SVGMarkerCache    markerCache = new SVGMarkerCache();
+   private SVGUseCache       useCache = new SVGUseCache();
+   private SVGTextLayoutCache  textLayoutCache = new SVGTextLayoutCache();
+
+   // Recorded form of the document for repeated drawing. Created on demand.
+   private SVGDisplayList  displayList = null;
+
+   // Executor used by getBitmap() to render in parallel strips. Null for single threaded rendering.
+   private Executor  rasterExecutor = null;
+   private int       rasterStripCount = 0;
+
 
    public static enum OutputFormat
    {
@@ -419,6 +471,20 @@ public class SVG
     * @param viewPort the bounds of the area on the canvas you want the SVG rendered, or null for the whole canvas.
     */
    public void  renderToCanvas(Canvas canvas, RectF viewPort)
+   {
+      renderToCanvas(canvas, viewPort, null);
+   }
+
+
+   /**
+    * Renders this SVG document to a Canvas object, using a level of detail policy to skip or
+    * simplify detail that is too small to be seen.
+    * 
+    * @param canvas the canvas to which the document should be rendered.
+    * @param viewPort the bounds of the area on the canvas you want the SVG rendered, or null for the whole canvas.
+    * @param levelOfDetail the level of detail policy, or null to render everything at full detail.
+    */
+   public void  renderToCanvas(Canvas canvas, RectF viewPort, SVGLevelOfDetail levelOfDetail)
    {
       Box  svgViewPort;
 
@@ -429,6 +495,7 @@ public class SVG
       }
 
       SVGAndroidRenderer  renderer = new SVGAndroidRenderer(canvas, svgViewPort, this.renderDPI);
+      renderer.setLevelOfDetail(levelOfDetail);
 
       renderer.renderDocument(this, null, null, true);
    }
@@ -511,7 +578,8 @@ public class SVG
    public void addFromInputStream(InputStream is) throws SVGParseException, SAXException
    {
       SVG svgDocument = SVG.getFromInputStream(is);
-      addSVG(svgDocument).id += "inputstream";
+      SVG.Group  group = addSVG(svgDocument);
+      group.setId(group.id + "inputstream");
    }
 
 
@@ -526,7 +594,8 @@ public class SVG
    public void addFromString(String svg) throws SVGParseException, SAXException
    {
       SVG svgDocument = SVG.getFromString(svg);
-      addSVG(svgDocument).id += "string";
+      SVG.Group  group = addSVG(svgDocument);
+      group.setId(group.id + "string");
    }
 
 
@@ -557,7 +626,8 @@ public class SVG
    public void addFromResource(Resources resources, int resourceId) throws SVGParseException, SAXException
    {
       SVG svg = SVG.getFromResource(resources, resourceId);
-      addSVG(svg).id += resources.getResourceEntryName(resourceId).toLowerCase(Locale.getDefault());
+      SVG.Group  group = addSVG(svg);
+      group.setId(group.id + resources.getResourceEntryName(resourceId).toLowerCase(Locale.getDefault()));
    }
 
 
@@ -574,7 +644,8 @@ public class SVG
    public void addFromAsset(AssetManager assetManager, String filename) throws SVGParseException, IOException, SAXException
    {
       SVG svg = SVG.getFromAsset(assetManager, filename);
-      addSVG(svg).id += (new File(filename)).getName().toLowerCase(Locale.getDefault());
+      SVG.Group  group = addSVG(svg);
+      group.setId(group.id + (new File(filename)).getName().toLowerCase(Locale.getDefault()));
    }
    
    
@@ -731,6 +802,22 @@ public class SVG
    //===============================================================================
    // Other document utility API functions
 
+   /**
+    * Makes {@link #getBitmap(int, int, int)}, and so the raster formats of
+    * {@link SVGAndroidWriter}, render the document in horizontal strips in parallel.
+    * Documents that can't be rendered in parallel are still rendered on a single thread.
+    *
+    * @param executor the executor on which the strips are rendered, or null to render on the calling thread.
+    * @param stripCount the maximum number of strips, usually the number of threads of the executor.
+    * @see SVGStripRenderer
+    */
+   public void  setParallelRasterization(Executor executor, int stripCount)
+   {
+      this.rasterExecutor = executor;
+      this.rasterStripCount = stripCount;
+   }
+
+
    public Bitmap getBitmap()
    {
 	   return getBitmap((int)getDocumentWidth(), (int)getDocumentHeight());
@@ -754,7 +841,10 @@ public class SVG
          Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
          Canvas canvas = new Canvas(bitmap);
          canvas.drawColor(backgroundColor);
-         this.renderToCanvas(canvas);
+         if (rasterExecutor != null)
+            SVGStripRenderer.render(this, bitmap, rasterExecutor, rasterStripCount);
+         else
+            this.renderToCanvas(canvas);
          return bitmap;
       }
       catch(OutOfMemoryError err)
@@ -1112,7 +1202,11 @@ public class SVG
 
    protected void setRootElement(SVG.Svg rootElement)
    {
+      if (this.rootElement != null)
+         elementRemoved(this.rootElement);
       this.rootElement = rootElement;
+      if (rootElement != null)
+         elementAdded(rootElement);
    }
 
 
@@ -1165,6 +1259,9 @@ public class SVG
    public void  addCSSRules(Ruleset ruleset)
    {
       this.cssRules.addAll(ruleset);
+      styleGeneration++;
+      visualBoundsGeneration++;
+      contentGeneration++;
    }
 
 
@@ -1180,6 +1277,15 @@ public class SVG
    }
 
 
+   /*
+    * Fills 'result' with the CSS rules that might apply to the given element, in cascade order.
+    */
+   protected void  getCSSRuleCandidates(SvgElementBase obj, List<CSSParser.Rule> result)
+   {
+      this.cssRules.getCandidateRules(obj, result);
+   }
+
+
    //===============================================================================
    // Object sub-types used in the SVG object tree
 
@@ -1475,6 +1581,130 @@ public class SVG
          }
       }
 
+      /*
+       * Makes this style a copy of 'src', without allocating. Like clone(), except that the
+       * dash array is shared, as styles never modify the contents of their arrays.
+       */
+      protected void  set(Style src)
+      {
+         specifiedFlags = src.specifiedFlags;
+         fill = src.fill;
+         fillRule = src.fillRule;
+         fillOpacity = src.fillOpacity;
+         stroke = src.stroke;
+         strokeOpacity = src.strokeOpacity;
+         strokeWidth = src.strokeWidth;
+         strokeLineCap = src.strokeLineCap;
+         strokeLineJoin = src.strokeLineJoin;
+         strokeMiterLimit = src.strokeMiterLimit;
+         strokeDashArray = src.strokeDashArray;
+         strokeDashOffset = src.strokeDashOffset;
+         opacity = src.opacity;
+         color = src.color;
+         fontFamily = src.fontFamily;
+         fontSize = src.fontSize;
+         fontWeight = src.fontWeight;
+         fontStyle = src.fontStyle;
+         textDecoration = src.textDecoration;
+         direction = src.direction;
+         textAnchor = src.textAnchor;
+         overflow = src.overflow;
+         clip = src.clip;
+         markerStart = src.markerStart;
+         markerMid = src.markerMid;
+         markerEnd = src.markerEnd;
+         display = src.display;
+         visibility = src.visibility;
+         stopColor = src.stopColor;
+         stopOpacity = src.stopOpacity;
+         clipPath = src.clipPath;
+         clipRule = src.clipRule;
+         mask = src.mask;
+         solidColor = src.solidColor;
+         solidOpacity = src.solidOpacity;
+         viewportFill = src.viewportFill;
+         viewportFillOpacity = src.viewportFillOpacity;
+         vectorEffect = src.vectorEffect;
+      }
+
+      /*
+       * Overlays the properties specified in 'src' onto this style, so that applying the result is
+       * equivalent to applying this style followed by 'src'. Used to precompute the cascade.
+       * Returns false if that is not possible because 'src' has a length that is relative to a
+       * font size or weight already specified here.
+       */
+      protected boolean  cascadeFrom(Style src)
+      {
+         if ((specifiedFlags & SPECIFIED_FONT_SIZE) != 0)
+         {
+            if ((src.specifiedFlags & SPECIFIED_FONT_SIZE) != 0 && isFontRelative(src.fontSize))
+               return false;
+            // The renderer converts these before the font size, so they must see the earlier font size
+            if ((src.specifiedFlags & SPECIFIED_STROKE_WIDTH) != 0 && isFontRelative(src.strokeWidth))
+               return false;
+            if ((src.specifiedFlags & SPECIFIED_STROKE_DASHOFFSET) != 0 && isFontRelative(src.strokeDashOffset))
+               return false;
+            if ((src.specifiedFlags & SPECIFIED_STROKE_DASHARRAY) != 0 && src.strokeDashArray != null) {
+               for (Length dash: src.strokeDashArray)
+                  if (isFontRelative(dash))
+                     return false;
+            }
+         }
+         if ((src.specifiedFlags & SPECIFIED_FONT_SIZE) != 0)
+         {
+            fontSize = src.fontSize;
+         }
+         if ((src.specifiedFlags & SPECIFIED_FONT_WEIGHT) != 0)
+         {
+            boolean  relative = (src.fontWeight == FONT_WEIGHT_LIGHTER || src.fontWeight == FONT_WEIGHT_BOLDER);
+            if ((specifiedFlags & SPECIFIED_FONT_WEIGHT) != 0 && relative)
+               return false;
+            fontWeight = src.fontWeight;
+         }
+         if ((src.specifiedFlags & SPECIFIED_FILL) != 0)  fill = src.fill;
+         if ((src.specifiedFlags & SPECIFIED_FILL_RULE) != 0)  fillRule = src.fillRule;
+         if ((src.specifiedFlags & SPECIFIED_FILL_OPACITY) != 0)  fillOpacity = src.fillOpacity;
+         if ((src.specifiedFlags & SPECIFIED_STROKE) != 0)  stroke = src.stroke;
+         if ((src.specifiedFlags & SPECIFIED_STROKE_OPACITY) != 0)  strokeOpacity = src.strokeOpacity;
+         if ((src.specifiedFlags & SPECIFIED_STROKE_WIDTH) != 0)  strokeWidth = src.strokeWidth;
+         if ((src.specifiedFlags & SPECIFIED_STROKE_LINECAP) != 0)  strokeLineCap = src.strokeLineCap;
+         if ((src.specifiedFlags & SPECIFIED_STROKE_LINEJOIN) != 0)  strokeLineJoin = src.strokeLineJoin;
+         if ((src.specifiedFlags & SPECIFIED_STROKE_MITERLIMIT) != 0)  strokeMiterLimit = src.strokeMiterLimit;
+         if ((src.specifiedFlags & SPECIFIED_STROKE_DASHARRAY) != 0)  strokeDashArray = src.strokeDashArray;
+         if ((src.specifiedFlags & SPECIFIED_STROKE_DASHOFFSET) != 0)  strokeDashOffset = src.strokeDashOffset;
+         if ((src.specifiedFlags & SPECIFIED_OPACITY) != 0)  opacity = src.opacity;
+         if ((src.specifiedFlags & SPECIFIED_COLOR) != 0)  color = src.color;
+         if ((src.specifiedFlags & SPECIFIED_FONT_FAMILY) != 0)  fontFamily = src.fontFamily;
+         if ((src.specifiedFlags & SPECIFIED_FONT_STYLE) != 0)  fontStyle = src.fontStyle;
+         if ((src.specifiedFlags & SPECIFIED_TEXT_DECORATION) != 0)  textDecoration = src.textDecoration;
+         if ((src.specifiedFlags & SPECIFIED_TEXT_ANCHOR) != 0)  textAnchor = src.textAnchor;
+         if ((src.specifiedFlags & SPECIFIED_OVERFLOW) != 0)  overflow = src.overflow;
+         if ((src.specifiedFlags & SPECIFIED_CLIP) != 0)  clip = src.clip;
+         if ((src.specifiedFlags & SPECIFIED_MARKER_START) != 0)  markerStart = src.markerStart;
+         if ((src.specifiedFlags & SPECIFIED_MARKER_MID) != 0)  markerMid = src.markerMid;
+         if ((src.specifiedFlags & SPECIFIED_MARKER_END) != 0)  markerEnd = src.markerEnd;
+         if ((src.specifiedFlags & SPECIFIED_DISPLAY) != 0)  display = src.display;
+         if ((src.specifiedFlags & SPECIFIED_VISIBILITY) != 0)  visibility = src.visibility;
+         if ((src.specifiedFlags & SPECIFIED_STOP_COLOR) != 0)  stopColor = src.stopColor;
+         if ((src.specifiedFlags & SPECIFIED_STOP_OPACITY) != 0)  stopOpacity = src.stopOpacity;
+         if ((src.specifiedFlags & SPECIFIED_CLIP_PATH) != 0)  clipPath = src.clipPath;
+         if ((src.specifiedFlags & SPECIFIED_CLIP_RULE) != 0)  clipRule = src.clipRule;
+         if ((src.specifiedFlags & SPECIFIED_MASK) != 0)  mask = src.mask;
+         if ((src.specifiedFlags & SPECIFIED_SOLID_COLOR) != 0)  solidColor = src.solidColor;
+         if ((src.specifiedFlags & SPECIFIED_SOLID_OPACITY) != 0)  solidOpacity = src.solidOpacity;
+         if ((src.specifiedFlags & SPECIFIED_VIEWPORT_FILL) != 0)  viewportFill = src.viewportFill;
+         if ((src.specifiedFlags & SPECIFIED_VIEWPORT_FILL_OPACITY) != 0)  viewportFillOpacity = src.viewportFillOpacity;
+         if ((src.specifiedFlags & SPECIFIED_VECTOR_EFFECT) != 0)  vectorEffect = src.vectorEffect;
+         if ((src.specifiedFlags & SPECIFIED_DIRECTION) != 0)  direction = src.direction;
+         specifiedFlags |= src.specifiedFlags;
+         return true;
+      }
+
+      private static boolean  isFontRelative(Length length)
+      {
+         return length != null && (length.unit == Unit.em || length.unit == Unit.ex || length.unit == Unit.percent);
+      }
+
       public void unsetSpecifiedFlag(long specifiedFlag)
       {
     	  specifiedFlags &= ~ specifiedFlag;
@@ -1933,6 +2163,17 @@ public class SVG
 	  public SVG           document;
       public SvgContainer  parent;
 
+      // The document whose element indexes currently include this object (if any)
+      SVG  indexedBy = null;
+
+      // The last known position of this object in its parent's children (see SVGSpatialIndex)
+      int  childIndex = -1;
+
+      // The position of this object in a preorder walk of the document tree, and that of the last
+      // object in its subtree. Kept by SVG.updateDocumentOrder() for container scoped class queries.
+      int  documentOrder = -1;
+      int  subtreeEnd = -1;
+
       public String  toString()
       {
          return this.getClass().getSimpleName();
@@ -2009,6 +2250,8 @@ public class SVG
     	  if (this.parent != null)
     	  {
     		  this.parent.getChildren().remove(this);
+    		  if (this.indexedBy != null)
+    			  this.indexedBy.elementRemoved(this);
     		  this.parent = null;
     		  return this;
     	  }
@@ -2042,6 +2285,22 @@ public class SVG
       public Style         baseStyle = null;                     // style defined by explicit style attributes in the element (eg. fill="black")  
       public Style         style = new Style();                  // style expressed in a 'style' attribute (eg. style="fill:black")
       public List<String>  classNames = new ArrayList<String>(); // contents of the 'class' attribute
+
+      // Cached result of SVGMeasure.getBounds(). Only valid while boundsDirty is false, and
+      // for the DPI and viewport size that lengths were measured with.
+      RectF    cachedBounds = new RectF();
+      boolean  boundsDirty = true;
+      boolean  boundsUseReferences = false;  // if true, also only valid for cachedBoundsGeneration
+      int      cachedBoundsGeneration = 0;
+      float    cachedBoundsDPI = 0;
+      float    cachedBoundsViewPortWidth = 0;
+      float    cachedBoundsViewPortHeight = 0;
+
+      // Precomputed cascade of baseStyle, matching CSS rules and style. Only valid while
+      // cascadedStyleGeneration matches the document's styleGeneration. A valid null value
+      // means the cascade could not be precomputed.
+      Style    cascadedStyle = null;
+      int      cascadedStyleGeneration = -1;
       
       public SvgElementBase()
       {
@@ -2051,7 +2310,33 @@ public class SVG
       protected void _initID()
       {
     	  // this.id = this.getClass().getSimpleName()+"-"+UUID.randomUUID().toString();
-    	  this.id = this.getClass().getSimpleName()+String.valueOf(this.hashCode());
+    	  this.setId(this.getClass().getSimpleName()+String.valueOf(this.hashCode()));
+      }
+
+      /*
+       * Change the id of this element, keeping the id index of the owning document in step.
+       * Prefer this to assigning the id field directly once the element is part of a tree.
+       */
+      public void setId(String id)
+      {
+    	  if (this.indexedBy != null)
+    		  this.indexedBy.idChanged(this, this.id, id);
+    	  this.id = id;
+      }
+
+      /**
+       * Notifies the owning document that the geometry, transform or other property
+       * affecting the bounds of this element has changed.
+       */
+      public void geometryChanged()
+      {
+    	  invalidateBounds(this);
+    	  if (this instanceof TextPositionedContainer)
+    		  ((TextPositionedContainer) this).boundingBox = null;
+    	  else if (this instanceof GraphicsElement)
+    		  ((GraphicsElement) this).boundingBox = null;
+    	  if (this.indexedBy != null)
+    		  this.indexedBy.elementGeometryChanged(this);
       }
       
       public void getBounds(RectF bound, SVGAndroidRenderer renderer)
@@ -2085,18 +2370,42 @@ public class SVG
       {
     	  if (this.style == null) this.style = new Style();
     	  SVGParser.processStyleProperty(this.style, name, value);
+    	  styleChanged();
+    	  if (name.startsWith("font") || name.equals("stroke-width")) {
+    		  // These are inherited, so descendants may be measured differently too
+    		  invalidateDescendantBounds(this);
+    		  geometryChanged();
+    	  }
       }
 
       public void setStyles(String styleString) throws SAXException
       {
     	  if (this.style == null) this.style = new Style();
     	  SVGParser.parseStyle(this, styleString);
+    	  styleChanged();
+    	  invalidateDescendantBounds(this);
+    	  geometryChanged();
       }
 
       public void clearStyle()
       {
     	  this.style = null;
     	  this.baseStyle = null;
+    	  styleChanged();
+    	  invalidateDescendantBounds(this);
+    	  geometryChanged();
+      }
+
+      /**
+       * Notifies the owning document that the style, baseStyle or classNames of this element
+       * have been changed, so that the precomputed styles of it and its descendants are discarded.
+       */
+      public void styleChanged()
+      {
+    	  invalidateCascadedStyles(this);
+    	  invalidateVisualBounds(this);
+    	  if (this.indexedBy != null)
+    		  this.indexedBy.elementStyleChanged(this);
       }
       
       @Override
@@ -2122,6 +2431,13 @@ public class SVG
    protected abstract static class SvgElement extends SvgElementBase
    {
       public Box  boundingBox = null;
+
+      // Area the element drew in when last rendered, in its parent's coordinate space, including
+      // strokes. Used by the renderer to skip elements outside the clip. Only valid while
+      // visualBoundsValid is true and visualBoundsGeneration matches the document's.
+      RectF    visualBounds = null;
+      boolean  visualBoundsValid = false;
+      int      visualBoundsGeneration = 0;
    }
 
 
@@ -2180,6 +2496,8 @@ public class SVG
       public void             addChild(int index, SvgObject elem) throws SAXException;
       public SvgObject        getElementById(String id) throws SAXException;
       public List<SvgObject>  getElementsByTagName(Class<SvgObject> clazz) throws SAXException;
+      public int              getElementCountByTagName(Class<SvgObject> clazz);
+      public SvgObject        getElementByTagName(Class<SvgObject> clazz, int index);
    }
 
 
@@ -2196,13 +2514,17 @@ public class SVG
       @Override
       public List<SvgObject>  getChildren() { return children; }
       @Override
-      public void addChild(SvgObject elem) throws SAXException  { elem.parent = this; children.add(elem); if (elem.document == null) elem.document = document;}
+      public void addChild(SvgObject elem) throws SAXException  { elem.parent = this; children.add(elem); if (elem.document == null) elem.document = document; if (document != null) document.elementAdded(elem);}
+      @Override
+      public void addChild(int index, SvgObject elem) throws SAXException { elem.parent = this; children.add(index, elem); if (elem.document == null) elem.document = document; if (document != null) document.elementAdded(elem);}
       @Override
-      public void addChild(int index, SvgObject elem) throws SAXException { elem.parent = this; children.add(index, elem); if (elem.document == null) elem.document = document;}
+      public SvgObject getElementById(String id) throws SAXException { SvgObject elem = document.getElementById(id); return (elem != null && elem.parent != null && elem.parent.equals(this.parent)) ? elem : null;  }
       @Override
-      public SvgObject getElementById(String id) throws SAXException { SvgObject elem = document.getElementById(id); return (elem.parent != null && elem.parent.equals(this.parent)) ? elem : null;  }
+      public List<SvgObject> getElementsByTagName(Class<SvgObject> clazz) throws SAXException { return SVG.getElementsByTagName(this, clazz); }
       @Override
-      public List<SvgObject> getElementsByTagName(Class<SvgObject> clazz) throws SAXException { List<SvgObject> elemList = document.getElementsByTagName(clazz); List<SvgObject> list = new ArrayList<SvgObject>(); for(SvgObject o : elemList) if (o.parent != null && o.parent.equals(this.parent)){list.add(o);} return list;}
+      public int getElementCountByTagName(Class<SvgObject> clazz) { return SVG.getElementCountByTagName(this, clazz); }
+      @Override
+      public SvgObject getElementByTagName(Class<SvgObject> clazz, int index) { return SVG.getElementByTagName(this, clazz, index); }
       
       @Override
       public void setRequiredFeatures(Set<String> features) { this.requiredFeatures = features; }
@@ -2276,6 +2598,9 @@ public class SVG
       
       public SvgElementBase getTopElement(float x, float y, SVGAndroidRenderer renderer)
       {
+    	  if (document != null && document.getRootElement() == this)
+    		  return document.getSpatialIndex(renderer).getTopElementAt(x, y);
+
 		  RectF bounds = new RectF();
     	  for(int i=children.size()-1; i>=0; i--)
     	  {
@@ -2305,7 +2630,7 @@ public class SVG
       public Matrix  transform;
 
       @Override
-      public void setTransform(Matrix transform) { this.transform = transform; }
+      public void setTransform(Matrix transform) { this.transform = transform; geometryChanged(); }
       
    }
 
@@ -2329,7 +2654,7 @@ public class SVG
       public Matrix  transform;
 
       @Override
-      public void setTransform(Matrix transform) { this.transform = transform; }
+      public void setTransform(Matrix transform) { this.transform = transform; geometryChanged(); }
       
       public void setStrokeNone()
       {
@@ -2632,8 +2957,11 @@ public class SVG
       @Override
       public void  addChild(SvgObject elem) throws SAXException
       {
-         if (elem instanceof TextChild)
+         if (elem instanceof TextChild) {
             children.add(elem);
+            if (document != null)
+               document.elementAdded(elem);
+         }
          else
             throw new SAXException("Text content elements cannot contain "+elem+" elements.");
       }
@@ -2913,14 +3241,14 @@ public class SVG
       public List<Length>  dx = new ArrayList<Length>();
       public List<Length>  dy = new ArrayList<Length>();
       
-      public void setX(float x){ this.x.clear(); this.x.add(new Length(x)); }
-      public void setY(float y){ this.y.clear(); this.y.add(new Length(y)); }
-      public void setX(float x, Unit unit){ this.x.clear(); this.x.add(new Length(x, unit)); }
-      public void setY(float y, Unit unit){ this.y.clear(); this.y.add(new Length(y, unit)); }
-      public void setX(float x, String unit) throws SAXException{ this.x.clear(); this.x.add(new Length(x, unit)); }
-      public void setY(float y, String unit) throws SAXException{ this.y.clear(); this.y.add(new Length(y, unit)); }
-      public void setX(String x) throws SAXException{ this.x.clear(); this.x.add(Length.parse(x)); }
-      public void setY(String y) throws SAXException{ this.y.clear(); this.y.add(Length.parse(y)); }
+      public void setX(float x){ this.x.clear(); this.x.add(new Length(x)); geometryChanged(); }
+      public void setY(float y){ this.y.clear(); this.y.add(new Length(y)); geometryChanged(); }
+      public void setX(float x, Unit unit){ this.x.clear(); this.x.add(new Length(x, unit)); geometryChanged(); }
+      public void setY(float y, Unit unit){ this.y.clear(); this.y.add(new Length(y, unit)); geometryChanged(); }
+      public void setX(float x, String unit) throws SAXException{ this.x.clear(); this.x.add(new Length(x, unit)); geometryChanged(); }
+      public void setY(float y, String unit) throws SAXException{ this.y.clear(); this.y.add(new Length(y, unit)); geometryChanged(); }
+      public void setX(String x) throws SAXException{ this.x.clear(); this.x.add(Length.parse(x)); geometryChanged(); }
+      public void setY(String y) throws SAXException{ this.y.clear(); this.y.add(Length.parse(y)); geometryChanged(); }
       
       public void addX(float x){ this.x.add(new Length(x)); }
       public void addY(float y){ this.y.add(new Length(y)); }
@@ -2931,14 +3259,14 @@ public class SVG
       public void addX(String x) throws SAXException{ this.x.add(Length.parse(x)); }
       public void addY(String y) throws SAXException{ this.y.add(Length.parse(y)); }
       
-      public void setDX(float dx){ this.dx.clear(); this.dx.add(new Length(dx)); }
-      public void setDY(float dy){ this.dy.clear(); this.dy.add(new Length(dy)); }
-      public void setDX(float dx, Unit unit){ this.dx.clear(); this.dx.add(new Length(dx, unit)); }
-      public void setDY(float dy, Unit unit){ this.dy.clear(); this.dy.add(new Length(dy, unit)); }
-      public void setDX(float dx, String unit) throws SAXException{ this.dx.clear(); this.dx.add(new Length(dx, unit)); }
-      public void setDY(float dy, String unit) throws SAXException{ this.dy.clear(); this.dy.add(new Length(dy, unit)); }
-      public void setDX(String dx) throws SAXException{ this.dx.clear(); this.dx.add(Length.parse(dx)); }
-      public void setDY(String dy) throws SAXException{ this.dy.clear(); this.dy.add(Length.parse(dy)); }
+      public void setDX(float dx){ this.dx.clear(); this.dx.add(new Length(dx)); geometryChanged(); }
+      public void setDY(float dy){ this.dy.clear(); this.dy.add(new Length(dy)); geometryChanged(); }
+      public void setDX(float dx, Unit unit){ this.dx.clear(); this.dx.add(new Length(dx, unit)); geometryChanged(); }
+      public void setDY(float dy, Unit unit){ this.dy.clear(); this.dy.add(new Length(dy, unit)); geometryChanged(); }
+      public void setDX(float dx, String unit) throws SAXException{ this.dx.clear(); this.dx.add(new Length(dx, unit)); geometryChanged(); }
+      public void setDY(float dy, String unit) throws SAXException{ this.dy.clear(); this.dy.add(new Length(dy, unit)); geometryChanged(); }
+      public void setDX(String dx) throws SAXException{ this.dx.clear(); this.dx.add(Length.parse(dx)); geometryChanged(); }
+      public void setDY(String dy) throws SAXException{ this.dy.clear(); this.dy.add(Length.parse(dy)); geometryChanged(); }
       
       public void addDX(float dx){ this.dx.add(new Length(dx)); }
       public void addDY(float dy){ this.dy.add(new Length(dy)); }
@@ -2971,7 +3299,7 @@ public class SVG
       public Matrix  transform;
 
       @Override
-      public void setTransform(Matrix transform) { this.transform = transform; }
+      public void setTransform(Matrix transform) { this.transform = transform; geometryChanged(); }
    }
 
 
@@ -3091,8 +3419,11 @@ public class SVG
       @Override
       public void addChild(SvgObject elem) throws SAXException
       {
-         if (elem instanceof Stop)
+         if (elem instanceof Stop) {
             children.add(elem);
+            if (document != null)
+               document.elementAdded(elem);
+         }
          else
             throw new SAXException("Gradient elements cannot contain "+elem+" elements.");
       }
@@ -3100,8 +3431,11 @@ public class SVG
       @Override
       public void addChild(int index, SvgObject elem) throws SAXException
       {
-          if (elem instanceof Stop)
+          if (elem instanceof Stop) {
               children.add(index, elem);
+              if (document != null)
+                 document.elementAdded(elem);
+          }
            else
               throw new SAXException("Gradient elements cannot contain "+elem+" elements.");
       }
@@ -3110,19 +3444,25 @@ public class SVG
       public SvgObject getElementById(String id) throws SAXException
       {
     	  SvgObject elem = document.getElementById(id);
-    	  return (elem.parent != null && elem.parent.equals(this.parent)) ? elem : null;
+    	  return (elem != null && elem.parent != null && elem.parent.equals(this.parent)) ? elem : null;
       }
       
       @Override
       public List<SvgObject> getElementsByTagName(Class<SvgObject> clazz) throws SAXException
       {
-    	  List<SvgObject> elemList = document.getElementsByTagName(clazz);
-    	  List<SvgObject> list = new ArrayList<SvgObject>();
-    	  for(SvgObject o : elemList)
-    	  {
-    		  if (o.parent != null && o.parent.equals(this.parent)) list.add(o);
-    	  }
-    	  return list;
+    	  return SVG.getElementsByTagName(this, clazz);
+      }
+
+      @Override
+      public int getElementCountByTagName(Class<SvgObject> clazz)
+      {
+         return SVG.getElementCountByTagName(this, clazz);
+      }
+
+      @Override
+      public SvgObject getElementByTagName(Class<SvgObject> clazz, int index)
+      {
+         return SVG.getElementByTagName(this, clazz, index);
       }
 
    }
@@ -3144,6 +3484,10 @@ public class SVG
       public SvgObject getElementById(String id) throws SAXException { return null; }
       @Override
       public List<SvgObject> getElementsByTagName(Class<SvgObject> clazz) throws SAXException { return Collections.emptyList(); }
+      @Override
+      public int getElementCountByTagName(Class<SvgObject> clazz) { return 0; }
+      @Override
+      public SvgObject getElementByTagName(Class<SvgObject> clazz, int index) { throw new IndexOutOfBoundsException(); }
    }
 
 
@@ -3193,11 +3537,9 @@ public class SVG
       public Length  width;
       public Length  height;
       public Matrix  transform;
-      protected File cacheFile;
-      protected Bitmap cacheBitmap;
 
       @Override
-      public void setTransform(Matrix transform) { this.transform = transform; }
+      public void setTransform(Matrix transform) { this.transform = transform; geometryChanged(); }
 
    }
 
@@ -3235,6 +3577,10 @@ public class SVG
       public SvgObject getElementById(String id) throws SAXException { return null; }
       @Override
       public List<SvgObject> getElementsByTagName(Class<SvgObject> clazz) throws SAXException { return Collections.emptyList(); }
+      @Override
+      public int getElementCountByTagName(Class<SvgObject> clazz) { return 0; }
+      @Override
+      public SvgObject getElementByTagName(Class<SvgObject> clazz, int index) { throw new IndexOutOfBoundsException(); }
    }
 
 
@@ -3303,6 +3649,20 @@ public class SVG
       }
 
 
+      // Number of coordinates in the path definition
+      int  getCoordsLength()
+      {
+         return coordsLength;
+      }
+
+
+      // Number of commands in the path definition
+      int  getCommandsLength()
+      {
+         return commandsLength;
+      }
+
+
       private void  addCommand(byte value)
       {
          if (commandsLength == commands.length) {
@@ -3426,23 +3786,506 @@ public class SVG
    }
 
 
-   protected SvgObject  getElementById(String id)
+   /**
+    * Returns the element with the given id attribute, or null if there is none.
+    * <p>
+    * This is a constant time lookup in an index that is updated whenever elements are
+    * added to or removed from the document tree, or their id is changed with
+    * {@link SvgElementBase#setId(String)}.
+    *
+    * @param id the id to look for
+    * @return the matching element, or null.
+    */
+   public SvgObject  getElementById(String id)
    {
-      if (id == null || id.length() == 0)
+      if (id == null || id.length() == 0 || rootElement == null)
          return null;
-      if (id.equals(rootElement.id))
-         return rootElement;
-
-      if (idToElementMap.containsKey(id))
-         return idToElementMap.get(id);
 
-      // Search the object tree for a node with id property that matches 'id'
-      SvgElementBase  result = getElementById(rootElement, id);
-      idToElementMap.put(id, result);
+      SvgElementBase  result = idToElementMap.get(id);
+      if (result == null)
+      {
+         // The element that held this id was removed or renamed. Promote the next element
+         // with the same id, if there is one.
+         if (!unresolvedIds.remove(id))
+            return null;
+         result = getElementById(rootElement, id);
+         if (result != null)
+            idToElementMap.put(id, result);
+         return result;
+      }
+      if (id.equals(result.id))
+         return result;
+
+      // The id field was assigned directly rather than through setId(). Drop the stale
+      // entry and fall back to a search of the object tree for this one lookup.
+      idToElementMap.remove(id);
+      result = getElementById(rootElement, id);
+      if (result != null)
+         idToElementMap.put(id, result);
       return result;
    }
 
 
+   /**
+    * Returns true if the document contains an element with the given id attribute.
+    *
+    * @param id the id to look for
+    * @return true if an element with that id exists.
+    */
+   public boolean  hasElementWithId(String id)
+   {
+      return getElementById(id) != null;
+   }
+
+
+   /**
+    * Discards and rebuilds the id and element class indexes from the object tree. Only needed
+    * if the id fields of elements have been modified directly rather than via
+    * {@link SvgElementBase#setId(String)}, or children lists have been edited directly.
+    */
+   public void  rebuildIndexes()
+   {
+      if (rootElement != null)
+         elementRemoved(rootElement);
+      idToElementMap.clear();
+      unresolvedIds.clear();
+      classToElementsMap.clear();
+      if (rootElement != null)
+         elementAdded(rootElement);
+   }
+
+
+   /*
+    * Called by the tree mutation methods when an element (and its subtree) is attached
+    * to this document. The first element with a given id wins, as per document order.
+    */
+   void  elementAdded(SvgObject obj)
+   {
+      geometryGeneration++;
+      contentGeneration++;
+      documentOrderValid = false;
+      invalidateBounds(obj);
+      invalidateCascadedStyles(obj);
+      elementStyleChanged();
+      addToIndexes(obj, isLastInDocument(obj));
+      gradientCache.elementChanged(obj, true);
+      patternCache.elementChanged(obj, true);
+      clipPathCache.elementChanged(obj, true);
+      markerCache.elementChanged(obj, true);
+      useCache.elementChanged(obj, true);
+      textLayoutCache.elementChanged(obj);
+      for (int i=0; i<spatialIndexes.size(); i++)
+         spatialIndexes.get(i).subtreeAdded(obj);
+      if (displayList != null)
+         displayList.subtreeAdded(obj);
+   }
+
+
+   /*
+    * Adds an element and its subtree to the id and class indexes. 'inOrder' is true when the
+    * subtree is the last thing in the document (eg. while parsing), in which case appending
+    * to the class lists keeps them in document order.
+    */
+   private void  addToIndexes(SvgObject obj, boolean inOrder)
+   {
+      if (obj.indexedBy != this)
+      {
+         if (obj.indexedBy != null)
+            obj.indexedBy.elementRemoved(obj);
+         obj.indexedBy = this;
+         if (obj instanceof SvgElementBase)
+         {
+            SvgElementBase  elem = (SvgElementBase) obj;
+            // Leave ids that are waiting to be resolved again to getElementById(), so that
+            // the first element in document order still wins.
+            if (elem.id != null && !idToElementMap.containsKey(elem.id) && !unresolvedIds.contains(elem.id))
+               idToElementMap.put(elem.id, elem);
+         }
+         ElementClassIndex  sameClass = classToElementsMap.get(obj.getClass());
+         if (sameClass == null) {
+            sameClass = new ElementClassIndex(obj.getClass());
+            classToElementsMap.put(obj.getClass(), sameClass);
+         }
+         sameClass.add(obj, inOrder);
+      }
+      if (obj instanceof SvgContainer)
+      {
+         List<SvgObject>  children = ((SvgContainer) obj).getChildren();
+         for (int i=0; i<children.size(); i++)
+            addToIndexes(children.get(i), inOrder);
+      }
+   }
+
+
+   /*
+    * Returns true if obj is the last child of its parent, and so on up to the root element.
+    */
+   private boolean  isLastInDocument(SvgObject obj)
+   {
+      SvgObject  node = obj;
+      while (node != rootElement)
+      {
+         SvgContainer  parent = node.parent;
+         if (parent == null)
+            return false;
+         List<SvgObject>  siblings = parent.getChildren();
+         if (siblings.isEmpty() || siblings.get(siblings.size() - 1) != node)
+            return false;
+         node = (SvgObject) parent;
+      }
+      return true;
+   }
+
+
+   /*
+    * Called by the tree mutation methods when an element (and its subtree) is detached
+    * from this document.
+    */
+   void  elementRemoved(SvgObject obj)
+   {
+      geometryGeneration++;
+      contentGeneration++;
+      documentOrderValid = false;
+      invalidateBounds(obj);
+      for (int i=0; i<spatialIndexes.size(); i++)
+         spatialIndexes.get(i).subtreeRemoved(obj);
+      pathCache.subtreeRemoved(obj);
+      gradientCache.elementChanged(obj, true);
+      patternCache.elementChanged(obj, false);
+      clipPathCache.elementChanged(obj, false);
+      markerCache.elementChanged(obj, false);
+      useCache.elementChanged(obj, false);
+      textLayoutCache.elementChanged(obj);
+      if (displayList != null)
+         displayList.subtreeRemoved(obj);
+      removeFromIndexes(obj);
+   }
+
+
+   private void  removeFromIndexes(SvgObject obj)
+   {
+      if (obj.indexedBy == this)
+      {
+         obj.indexedBy = null;
+         if (obj instanceof SvgElementBase)
+         {
+            SvgElementBase  elem = (SvgElementBase) obj;
+            if (elem.id != null && idToElementMap.get(elem.id) == elem) {
+               idToElementMap.remove(elem.id);
+               unresolvedIds.add(elem.id);
+            }
+         }
+         ElementClassIndex  sameClass = classToElementsMap.get(obj.getClass());
+         if (sameClass != null)
+            sameClass.remove(obj);
+      }
+      if (obj instanceof SvgContainer)
+      {
+         List<SvgObject>  children = ((SvgContainer) obj).getChildren();
+         for (int i=0; i<children.size(); i++)
+            removeFromIndexes(children.get(i));
+      }
+   }
+
+
+   /*
+    * Discards the precomputed cascaded style of an element and all its descendants.
+    */
+   static void  invalidateCascadedStyles(SvgObject obj)
+   {
+      if (obj instanceof SvgElementBase)
+         ((SvgElementBase) obj).cascadedStyleGeneration = -1;
+      if (obj instanceof SvgElement)
+         ((SvgElement) obj).visualBoundsValid = false;
+      if (obj instanceof SvgContainer)
+      {
+         List<SvgObject>  children = ((SvgContainer) obj).getChildren();
+         for (int i=0; i<children.size(); i++)
+            invalidateCascadedStyles(children.get(i));
+      }
+   }
+
+
+   /*
+    * Called when the style or position of an element has changed. If the stylesheet has
+    * selectors that depend on siblings, the cascade for other elements may change too.
+    */
+   void  elementStyleChanged()
+   {
+      if (cssRules.hasSiblingSelectors()) {
+         styleGeneration++;
+         visualBoundsGeneration++;
+      }
+   }
+
+
+   /*
+    * Marks the cached bounds of an element and all its ancestors as needing recalculation.
+    */
+   static void  invalidateBounds(SvgObject obj)
+   {
+      while (obj != null)
+      {
+         if (obj instanceof SvgElementBase)
+            ((SvgElementBase) obj).boundsDirty = true;
+         if (obj instanceof SvgElement)
+            ((SvgElement) obj).visualBoundsValid = false;
+         obj = (SvgObject) obj.parent;
+      }
+   }
+
+
+   /*
+    * Marks the cached bounds of the descendants of an element as needing recalculation.
+    * Used when an inherited property that affects bounds has changed.
+    */
+   static void  invalidateDescendantBounds(SvgObject obj)
+   {
+      if (!(obj instanceof SvgContainer))
+         return;
+      List<SvgObject>  children = ((SvgContainer) obj).getChildren();
+      for (int i=0; i<children.size(); i++)
+      {
+         SvgObject  child = children.get(i);
+         if (child instanceof SvgElementBase)
+            ((SvgElementBase) child).boundsDirty = true;
+         if (child instanceof SvgElement)
+            ((SvgElement) child).visualBoundsValid = false;
+         if (child instanceof TextPositionedContainer)
+            ((TextPositionedContainer) child).boundingBox = null;
+         else if (child instanceof GraphicsElement)
+            ((GraphicsElement) child).boundingBox = null;
+         invalidateDescendantBounds(child);
+      }
+   }
+
+
+   /*
+    * Called by the renderer before it renders the document. Lengths may be relative to the
+    * viewport, so the visual bounds of elements are only valid for the viewport they were
+    * calculated with.
+    */
+   synchronized void  setRenderViewPort(Box viewPort, Box viewBox, float dpi)
+   {
+      if (!sameBox(viewPort, lastRenderViewPort) || !sameBox(viewBox, lastRenderViewBox) || dpi != lastRenderDPI)
+      {
+         visualBoundsGeneration++;
+         lastRenderViewPort = (viewPort != null) ? new Box(viewPort.minX, viewPort.minY, viewPort.width, viewPort.height) : null;
+         lastRenderViewBox = (viewBox != null) ? new Box(viewBox.minX, viewBox.minY, viewBox.width, viewBox.height) : null;
+         lastRenderDPI = dpi;
+      }
+   }
+
+
+   private static boolean  sameBox(Box a, Box b)
+   {
+      if (a == null || b == null)
+         return a == b;
+      return a.minX == b.minX && a.minY == b.minY && a.width == b.width && a.height == b.height;
+   }
+
+
+   /*
+    * Marks the visual bounds of an element and all its ancestors as needing recalculation.
+    */
+   static void  invalidateVisualBounds(SvgObject obj)
+   {
+      while (obj != null)
+      {
+         if (obj instanceof SvgElement)
+            ((SvgElement) obj).visualBoundsValid = false;
+         obj = (SvgObject) obj.parent;
+      }
+   }
+
+
+   /*
+    * Called by SvgElementBase.geometryChanged() when the bounds of an element may have changed.
+    */
+   void  elementGeometryChanged(SvgElementBase elem)
+   {
+      geometryGeneration++;
+      contentGeneration++;
+      pathCache.elementChanged(elem);
+      gradientCache.elementChanged(elem, false);
+      patternCache.elementChanged(elem, false);
+      clipPathCache.elementChanged(elem, false);
+      markerCache.elementChanged(elem, false);
+      useCache.elementChanged(elem, false);
+      textLayoutCache.elementChanged(elem);
+      for (int i=0; i<spatialIndexes.size(); i++)
+         spatialIndexes.get(i).elementChanged(elem);
+      if (displayList != null)
+         displayList.elementChanged(elem);
+   }
+
+
+   /*
+    * Called by SvgElementBase.styleChanged() when the style of an element has changed.
+    */
+   void  elementStyleChanged(SvgElementBase elem)
+   {
+      contentGeneration++;
+      elementStyleChanged();
+      gradientCache.elementChanged(elem, false);
+      patternCache.elementChanged(elem, false);
+      clipPathCache.elementChanged(elem, false);
+      markerCache.elementChanged(elem, false);
+      useCache.elementChanged(elem, false);
+      textLayoutCache.elementChanged(elem);
+      if (displayList != null)
+         displayList.elementChanged(elem);
+   }
+
+
+   /**
+    * Returns the display list of this document: a recorded form of the document that can be
+    * drawn repeatedly, for example by a View, much faster than {@link #renderToCanvas(Canvas)}.
+    * It is created on the first call and is then kept up to date as the document changes.
+    *
+    * @return the display list
+    */
+   public SVGDisplayList  getDisplayList()
+   {
+      if (displayList == null)
+         displayList = new SVGDisplayList(this);
+      return displayList;
+   }
+
+
+   /**
+    * Returns the cache of the paths built for the shape elements of this document when it is
+    * rendered. It can be used to change the memory budget of the cache or to read its statistics.
+    *
+    * @return the path cache
+    */
+   public SVGPathCache  getPathCache()
+   {
+      return pathCache;
+   }
+
+
+   /**
+    * Returns the cache of the gradient shaders built for the elements of this document when it
+    * is rendered. It can be used to change the size of the cache or to read its statistics.
+    *
+    * @return the gradient cache
+    */
+   public SVGGradientCache  getGradientCache()
+   {
+      return gradientCache;
+   }
+
+
+   /**
+    * Returns the cache of the pattern tiles rendered for the elements of this document. It can be
+    * used to change the memory budget of the cache or to read its statistics.
+    *
+    * @return the pattern cache
+    */
+   public SVGPatternCache  getPatternCache()
+   {
+      return patternCache;
+   }
+
+
+   /**
+    * Returns the cache of the clip paths built for the clipPath elements of this document. It can
+    * be used to change the size of the cache or to read its statistics.
+    *
+    * @return the clip path cache
+    */
+   public SVGClipPathCache  getClipPathCache()
+   {
+      return clipPathCache;
+   }
+
+
+   /**
+    * Returns the cache of the pictures recorded for the marker elements of this document. It can
+    * be used to change the size of the cache or to read its statistics.
+    *
+    * @return the marker cache
+    */
+   public SVGMarkerCache  getMarkerCache()
+   {
+      return markerCache;
+   }
+
+
+   /**
+    * Returns the cache of the pictures recorded for the symbol and svg elements of this document
+    * that are referenced by {@code <use>} elements. It can be used to change the size of the cache
+    * or to read its statistics.
+    *
+    * @return the use cache
+    */
+   public SVGUseCache  getUseCache()
+   {
+      return useCache;
+   }
+
+
+   /**
+    * Returns the cache of the layout of the text elements of this document. It can be used to
+    * change the size of the cache or to read its statistics.
+    *
+    * @return the text layout cache
+    */
+   public SVGTextLayoutCache  getTextLayoutCache()
+   {
+      return textLayoutCache;
+   }
+
+
+   /**
+    * Returns the spatial index of the bounds of the rendered elements of this document, as
+    * measured at the viewport and DPI of a renderer. The index is built on the first call for
+    * that viewport and DPI and then kept up to date as the document changes. Renderers with the
+    * same viewport and DPI share an index. Indexes for a few different viewports are kept, so
+    * that for example a view and an {@link SVGTileRenderer} don't rebuild each other's index.
+    *
+    * @param renderer the renderer used to measure elements
+    * @return the spatial index
+    */
+   public SVGSpatialIndex  getSpatialIndex(SVGAndroidRenderer renderer)
+   {
+      for (int i=0; i<spatialIndexes.size(); i++)
+      {
+         SVGSpatialIndex  index = spatialIndexes.get(i);
+         if (index.isMeasuredWith(renderer))
+         {
+            if (i > 0) {
+               spatialIndexes.remove(i);
+               spatialIndexes.add(0, index);
+            }
+            index.setRenderer(renderer);
+            return index;
+         }
+      }
+      SVGSpatialIndex  index = new SVGSpatialIndex(this, renderer);
+      spatialIndexes.add(0, index);
+      if (spatialIndexes.size() > MAX_SPATIAL_INDEXES)
+         spatialIndexes.remove(MAX_SPATIAL_INDEXES);
+      return index;
+   }
+
+
+   /*
+    * Called by SvgElementBase.setId() before the id of an element changes.
+    */
+   void  idChanged(SvgElementBase elem, String oldId, String newId)
+   {
+      if (oldId != null && idToElementMap.get(oldId) == elem) {
+         idToElementMap.remove(oldId);
+         unresolvedIds.add(oldId);
+      }
+      // If newId is waiting to be resolved again, an earlier element may already have it
+      if (newId != null && !idToElementMap.containsKey(newId) && !unresolvedIds.contains(newId))
+         idToElementMap.put(newId, elem);
+   }
+
+
    private SvgElementBase  getElementById(SvgContainer obj, String id)
    {
       SvgElementBase  elem = (SvgElementBase) obj;
@@ -3466,29 +4309,336 @@ public class SVG
    }
 
 
+   /**
+    * Returns a new list of all the elements in the document of the given class
+    * (eg. {@code SVG.Path.class}). Subclasses do not match.
+    *
+    * @param clazz the element class to look for
+    * @return the matching elements, in document order.
+    */
+   @SuppressWarnings("rawtypes")
+   public List<SvgObject>  getElementsByTagName(Class clazz)
+   {
+      ElementClassIndex  sameClass = classToElementsMap.get(clazz);
+      if (sameClass == null)
+         return new ArrayList<SvgObject>(0);
+      return new ArrayList<SvgObject>(sameClass.getElements());
+   }
+
+
+   /**
+    * Returns the number of elements of the given class in the document. Use together with
+    * {@link #getElementByTagName(Class, int)} to iterate over the elements without allocation.
+    * <p>
+    * The document must not be modified during such an iteration.
+    *
+    * @param clazz the element class to look for
+    * @return the number of matching elements.
+    */
+   @SuppressWarnings("rawtypes")
+   public int  getElementCountByTagName(Class clazz)
+   {
+      ElementClassIndex  sameClass = classToElementsMap.get(clazz);
+      return (sameClass == null) ? 0 : sameClass.members.size();
+   }
+
+
+   /**
+    * Returns the index'th element of the given class in the document.
+    *
+    * @param clazz the element class to look for
+    * @param index a value from 0 to {@code getElementCountByTagName(clazz) - 1}
+    * @return the matching element.
+    * @throws IndexOutOfBoundsException if index is out of range.
+    */
    @SuppressWarnings("rawtypes")
-   protected List<SvgObject>  getElementsByTagName(Class clazz)
+   public SvgObject  getElementByTagName(Class clazz, int index)
    {
-       // Search the object tree for nodes with the give element class
-      return getElementsByTagName(rootElement, clazz);
+      ElementClassIndex  sameClass = classToElementsMap.get(clazz);
+      if (sameClass == null)
+         throw new IndexOutOfBoundsException("No "+clazz.getSimpleName()+" elements in document");
+      return sameClass.getElements().get(index);
    }
 
 
+   /*
+    * Implementation of SvgContainer.getElementsByTagName(). Returns the descendants of 'container'
+    * with the given class. Uses the element class index of the document when 'container' is
+    * part of it, otherwise falls back to a search of the subtree.
+    */
    @SuppressWarnings("rawtypes")
-   private List<SvgObject>  getElementsByTagName(SvgContainer obj, Class clazz)
+   static List<SvgObject>  getElementsByTagName(SvgContainer container, Class clazz)
    {
+      SVG  document = ((SvgObject) container).indexedBy;
+      if (document != null)
+      {
+         ElementClassIndex  index = document.classToElementsMap.get(clazz);
+         if (index == null)
+            return new ArrayList<SvgObject>(0);
+         int  start = document.getDescendantRangeStart(index, (SvgObject) container);
+         int  end = document.getDescendantRangeEnd(index, (SvgObject) container);
+         return new ArrayList<SvgObject>(index.getElements().subList(start, end));
+      }
       List<SvgObject>  result = new ArrayList<SvgObject>();
+      collectElementsByTagName(container, clazz, result);
+      return result;
+   }
+
+
+   /*
+    * Implementation of SvgContainer.getElementCountByTagName(). Together with getElementByTagName()
+    * it iterates over the descendants of 'container' with the given class without allocation, when
+    * 'container' is part of a document. Otherwise the subtree is searched on every call.
+    */
+   @SuppressWarnings("rawtypes")
+   static int  getElementCountByTagName(SvgContainer container, Class clazz)
+   {
+      SVG  document = ((SvgObject) container).indexedBy;
+      if (document != null)
+      {
+         ElementClassIndex  index = document.classToElementsMap.get(clazz);
+         if (index == null)
+            return 0;
+         return document.getDescendantRangeEnd(index, (SvgObject) container) - document.getDescendantRangeStart(index, (SvgObject) container);
+      }
+      return countElementsByTagName(container, clazz);
+   }
+
+
+   /*
+    * Implementation of SvgContainer.getElementByTagName(). Returns the index'th descendant of
+    * 'container' with the given class, in document order.
+    */
+   @SuppressWarnings("rawtypes")
+   static SvgObject  getElementByTagName(SvgContainer container, Class clazz, int index)
+   {
+      SVG  document = ((SvgObject) container).indexedBy;
+      if (document != null)
+      {
+         ElementClassIndex  sameClass = document.classToElementsMap.get(clazz);
+         if (sameClass != null)
+         {
+            int  start = document.getDescendantRangeStart(sameClass, (SvgObject) container);
+            int  end = document.getDescendantRangeEnd(sameClass, (SvgObject) container);
+            if (index >= 0 && index < end - start)
+               return sameClass.getElements().get(start + index);
+         }
+      }
+      else if (index >= 0)
+      {
+         SvgObject  obj = findElementByTagName(container, clazz, new int[] {index});
+         if (obj != null)
+            return obj;
+      }
+      throw new IndexOutOfBoundsException("No "+clazz.getSimpleName()+" element "+index+" in container");
+   }
+
 
-      if (obj.getClass() == clazz)
-         result.add((SvgObject) obj);
+   @SuppressWarnings("rawtypes")
+   private static void  collectElementsByTagName(SvgContainer obj, Class clazz, List<SvgObject> result)
+   {
       for (SvgObject child: obj.getChildren())
       {
          if (child.getClass() == clazz)
             result.add(child);
          if (child instanceof SvgContainer)
-            getElementsByTagName((SvgContainer) child, clazz);
+            collectElementsByTagName((SvgContainer) child, clazz, result);
       }
-      return result;
+   }
+
+
+   @SuppressWarnings("rawtypes")
+   private static int  countElementsByTagName(SvgContainer obj, Class clazz)
+   {
+      int  count = 0;
+      for (SvgObject child: obj.getChildren())
+      {
+         if (child.getClass() == clazz)
+            count++;
+         if (child instanceof SvgContainer)
+            count += countElementsByTagName((SvgContainer) child, clazz);
+      }
+      return count;
+   }
+
+
+   // Returns the descendant of the given class after skipping 'skip[0]' of them, or null
+   @SuppressWarnings("rawtypes")
+   private static SvgObject  findElementByTagName(SvgContainer obj, Class clazz, int[] skip)
+   {
+      for (SvgObject child: obj.getChildren())
+      {
+         if (child.getClass() == clazz && skip[0]-- == 0)
+            return child;
+         if (child instanceof SvgContainer)
+         {
+            SvgObject  found = findElementByTagName((SvgContainer) child, clazz, skip);
+            if (found != null)
+               return found;
+         }
+      }
+      return null;
+   }
+
+
+   /*
+    * The descendants of a container that have a given class are a contiguous range of the document
+    * ordered list of that class. These return the start and end (exclusive) of that range, found
+    * by a binary search on the document order of the elements.
+    */
+   private int  getDescendantRangeStart(ElementClassIndex index, SvgObject container)
+   {
+      updateDocumentOrder();
+      return index.lowerBound(container.documentOrder + 1);
+   }
+
+   private int  getDescendantRangeEnd(ElementClassIndex index, SvgObject container)
+   {
+      updateDocumentOrder();
+      return index.lowerBound(container.subtreeEnd + 1);
+   }
+
+
+   /*
+    * Numbers the objects of the tree in document order, if the tree has changed since last time.
+    */
+   private void  updateDocumentOrder()
+   {
+      if (documentOrderValid)
+         return;
+      if (rootElement != null)
+         numberSubtree(rootElement, 0);
+      documentOrderValid = true;
+   }
+
+
+   // Returns the next document order number after the subtree
+   private static int  numberSubtree(SvgObject obj, int order)
+   {
+      obj.documentOrder = order++;
+      if (obj instanceof SvgContainer)
+      {
+         List<SvgObject>  children = ((SvgContainer) obj).getChildren();
+         for (int i=0; i<children.size(); i++)
+            order = numberSubtree(children.get(i), order);
+      }
+      obj.subtreeEnd = order - 1;
+      return order;
+   }
+
+
+   /*
+    * The elements of one class in a document. Membership is kept in a set so that removing
+    * large subtrees stays linear. The document ordered list is only rebuilt when it is asked
+    * for after an edit that may have changed the order.
+    */
+   class ElementClassIndex
+   {
+      final Class<?>        clazz;
+      final Set<SvgObject>  members = new LinkedHashSet<SvgObject>();
+
+      private List<SvgObject>  ordered = new ArrayList<SvgObject>();
+      private boolean          hasRemovals = false;   // 'ordered' may contain removed elements
+      private boolean          outOfOrder = false;    // 'ordered' needs rebuilding from the tree
+
+
+      ElementClassIndex(Class<?> clazz)
+      {
+         this.clazz = clazz;
+      }
+
+      void  add(SvgObject obj, boolean inOrder)
+      {
+         members.add(obj);
+         if (inOrder && !outOfOrder && !hasRemovals)
+            ordered.add(obj);
+         else
+            outOfOrder = true;
+      }
+
+      void  remove(SvgObject obj)
+      {
+         if (members.remove(obj))
+            hasRemovals = true;
+      }
+
+      List<SvgObject>  getElements()
+      {
+         if (outOfOrder)
+         {
+            ordered.clear();
+            if (rootElement != null)
+               collectMembers(rootElement);
+         }
+         else if (hasRemovals)
+         {
+            // Removal does not change the relative order of the elements that are left
+            List<SvgObject>  remaining = new ArrayList<SvgObject>(members.size());
+            for (int i=0; i<ordered.size(); i++) {
+               if (members.contains(ordered.get(i)))
+                  remaining.add(ordered.get(i));
+            }
+            ordered = remaining;
+         }
+         outOfOrder = false;
+         hasRemovals = false;
+         return ordered;
+      }
+
+      // Returns the position in the document ordered list of the first element whose
+      // document order is at least 'order'. The document order must be up to date.
+      int  lowerBound(int order)
+      {
+         List<SvgObject>  elements = getElements();
+         int  low = 0;
+         int  high = elements.size();
+         while (low < high)
+         {
+            int  mid = (low + high) >>> 1;
+            if (elements.get(mid).documentOrder < order)
+               low = mid + 1;
+            else
+               high = mid;
+         }
+         return low;
+      }
+
+      private void  collectMembers(SvgObject obj)
+      {
+         if (obj.getClass() == clazz && members.contains(obj))
+            ordered.add(obj);
+         if (obj instanceof SvgContainer)
+         {
+            List<SvgObject>  children = ((SvgContainer) obj).getChildren();
+            for (int i=0; i<children.size(); i++)
+               collectMembers(children.get(i));
+         }
+      }
+   }
+
+
+   private static boolean  isDescendantOf(SvgObject obj, SvgContainer ancestor)
+   {
+      SvgContainer  parent = obj.parent;
+      while (parent != null)
+      {
+         if (parent == ancestor)
+            return true;
+         parent = ((SvgObject) parent).parent;
+      }
+      return false;
+   }
+
+
+   /*
+    * Returns true if one of the two objects is the other or one of its ancestors.
+    * Used by the caches to find out whether a change affects what they hold.
+    */
+   static boolean  isRelated(SvgObject a, SvgObject b)
+   {
+      return a == b ||
+             (a instanceof SvgContainer && isDescendantOf(b, (SvgContainer) a)) ||
+             (b instanceof SvgContainer && isDescendantOf(a, (SvgContainer) b));
    }
 
 
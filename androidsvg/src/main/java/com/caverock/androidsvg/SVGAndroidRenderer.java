@@ -18,30 +18,34 @@
 package com.caverock.androidsvg;
 
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
-import java.util.Stack;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorMatrix;
+import android.graphics.ColorMatrixColorFilter;
 import android.graphics.DashPathEffect;
 import android.graphics.LinearGradient;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PathMeasure;
+import android.graphics.Picture;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.RadialGradient;
 import android.graphics.RectF;
 import android.graphics.Shader;
-import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Shader.TileMode;
 import android.graphics.Typeface;
 import android.util.Base64;
@@ -79,6 +83,7 @@ import com.caverock.androidsvg.SVG.SvgRadialGradient;
 import com.caverock.androidsvg.SVG.TextContainer;
 import com.caverock.androidsvg.SVG.TextSequence;
 import com.caverock.androidsvg.SVG.Unit;
+import com.caverock.androidsvg.SVGLevelOfDetail.SmallElementMode;
 
 /**
  * The rendering part of AndroidSVG.
@@ -97,37 +102,144 @@ public class SVGAndroidRenderer
    private float    dpi;    // dots per inch. Needed for accurate conversion of length values that have real world units, such as "cm".
    private boolean  directRenderingMode;
    private Paint    emptyPaint = new Paint();
+   private Paint    imagePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+   private RectF    imageRect = new RectF();
 
    // Renderer state
    private SVG                  document;
    private RendererState        state;
-   private Stack<RendererState> stateStack;  // Keeps track of render state as we render
-   
-   // Keep track of element stack while rendering.
-   private Stack<SvgContainer>  parentStack; // The 'render parent' for elements like Symbol cf. file parent
-   private Stack<Matrix>        matrixStack; // Keeps track of current transform as we descend into element tree
 
-   // Canvas stack for when we are processing mask elements
-   private Stack<Canvas>  canvasStack;
-   private Stack<Bitmap>  bitmapStack;
+   // The stacks used while rendering. They are reused by the renderers on a thread, see StatePool.
+   private StatePool  pool = null;
+   private boolean    poolIsShared;
+   private int        stateDepth;   // Keeps track of render state as we render
+   private int        parentDepth;  // The 'render parent' for elements like Symbol cf. file parent, and its transform
+   private int        stateAllocations = 0;
+
+   // Reused by updateParentBoundingBox()
+   private Matrix   parentMatrix = new Matrix();
+   private Matrix   parentCanvasMatrix = new Matrix();
+   private float[]  parentPoints = new float[8];
+   private RectF    parentRect = new RectF();
+
+   // Reused by updateStyle() to calculate dash intervals
+   private float[]  dashScratch = new float[8];
+
+   // Number of typeface, path effect and shader changes that were applied, or skipped because
+   // the Paint already had that value.
+   private int  paintUpdateCount = 0;
+   private int  paintUpdateSkipCount = 0;
+
+   // Offscreen bitmaps for masks come from here
+   private SVGBitmapPool  bitmapPool = SVGBitmapPool.getDefault();
+
+   // Reused by pushLayer() and the mask pipeline. The mask paint is created when first needed.
+   private Paint   maskPaint = null;
+   private RectF   layerBounds = new RectF();
+   private Matrix  maskMatrix = new Matrix();
+   private RectF   maskRect = new RectF();
+   private RectF   maskElementRect = new RectF();
+   private Matrix  maskInverseMatrix = new Matrix();
+   private android.graphics.Rect  maskSourceRect = new android.graphics.Rect();
+   private android.graphics.Rect  layerClipRect = new android.graphics.Rect();
+   private int     maskCount = 0;
+   private int     maskBitmapBytes = 0;
+   private int     peakMaskBitmapBytes = 0;
+
+   // Reused list of the CSS rules that may apply to the element being styled
+   private List<CSSParser.Rule>  cssRuleCandidates = new ArrayList<CSSParser.Rule>();
+   // Bloom filter of the ancestors of the element being rendered. Used to quickly reject CSS rules.
+   private CSSParser.AncestorFilter  ancestorFilter = new CSSParser.AncestorFilter();
+
+   // Display list to draw the children of the root element from, if any
+   private SVGDisplayList   displayList = null;
+   // While recording a display list chunk: the elements resolved by reference, whether any
+   // reference could not be resolved, and whether a feature that can't be recorded was used.
+   private List<SvgObject>  recordedReferences = null;
+   private boolean          recordedUnresolvedReference;
+   private boolean          recordingUnsafe;
+
+   // Canvas.isHardwareAccelerated() is an API 11 method, so it is called by reflection, as
+   // SVGImageView does for setLayerType(). Null if it is not available.
+   private static Method  isHardwareAcceleratedMethod = null;
+
+   // The canvas last checked by canDrawPictures(), and the result
+   private Canvas   pictureCheckedCanvas = null;
+   private boolean  pictureCheckedResult;
+
+   static
+   {
+      try {
+         isHardwareAcceleratedMethod = Canvas.class.getMethod("isHardwareAccelerated");
+      }
+      catch (NoSuchMethodException e) { /* do nothing */
+      }
+   }
+
+   // While rendering a pattern tile or building a clip path: the elements resolved by reference, and
+   // whether any reference could not be resolved. Used to discard it from its cache when they change.
+   private List<SvgObject>  trackedReferences = null;
+   private boolean          trackedUnresolvedReference;
+   // While building a clip path: the depth of clipPath elements being built, and whether any of
+   // their children applied a clip path of its own
+   private int              clipBuildDepth = 0;
+   private boolean          clipBuildHasNestedClip;
+   private Paint            patternPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+   private Matrix           patternMatrix = new Matrix();
+   private float[]          patternVectors = new float[4];
+
+   // Patterns whose tile would have more pixels than this are rendered directly
+   private static final int  MAX_PATTERN_TILE_PIXELS = 1024 * 1024;
+
+   // The number of markers, and of <use> elements, drawn by replaying a recorded picture
+   private int    markerReplayCount = 0;
+   private int    useReplayCount = 0;
+
+   // Greater than zero while rendering content that is referenced from elsewhere (<use>, markers,
+   // patterns and masks). Its visual bounds depend on the context, so it is never culled.
+   private int    referenceDepth = 0;
+   private int    culledCount = 0;
+   private RectF  tempVisualBounds = new RectF();
+
+   // Level of detail policy, if any, and objects reused when applying it
+   private SVGLevelOfDetail  levelOfDetail = null;
+   private Matrix            lodMatrix = new Matrix();
+   private RectF             lodBounds = new RectF();
+   private RectF             lodShapeBounds = new RectF();
+   private Paint             lodPaint = new Paint();
+   // The fill paint reference last checked for a pattern by renderAtLowDetail(), and the result.
+   // Elements with the same style share the reference, so it is only resolved once for them.
+   private SVG.SvgPaint      lodCheckedFill = null;
+   private int               lodCheckedFillGeneration = 0;
+   private boolean           lodCheckedFillIsPattern = false;
+
+   // Reused by doStroke() for non-scaling strokes
+   private Paint   nonScalingStrokePaint = new Paint();
+   private Matrix  nonScalingMatrix = new Matrix();
+   private Matrix  nonScalingInverse = new Matrix();
+   private Path    nonScalingPath = new Path();
+   private Path    nonScalingOutline = new Path();
 
 
    private static final float  BEZIER_ARC_FACTOR = 0.5522847498f;
 
-   // The feColorMatrix luminance-to-alpha coefficient. Used for <mask>s.
-   // Using integer arithmetic for a little extra speed.
-   private static final int  LUMINANCE_FACTOR_SHIFT = 15;
-   private static final int  LUMINANCE_TO_ALPHA_RED = (int)(0.2125f * (1 << LUMINANCE_FACTOR_SHIFT));
-   private static final int  LUMINANCE_TO_ALPHA_GREEN = (int)(0.7154f * (1 << LUMINANCE_FACTOR_SHIFT));
-   private static final int  LUMINANCE_TO_ALPHA_BLUE = (int)(0.0721f * (1 << LUMINANCE_FACTOR_SHIFT));
+   private static final double  LOG_2 = Math.log(2);
+
+   // The feColorMatrix luminance-to-alpha coefficients. Used for <mask>s.
+   private static final float  LUMINANCE_TO_ALPHA_RED = 0.2125f;
+   private static final float  LUMINANCE_TO_ALPHA_GREEN = 0.7154f;
+   private static final float  LUMINANCE_TO_ALPHA_BLUE = 0.0721f;
 
    private static final String DEFAULT_FONT_FAMILY = "sans-serif";
 
    protected static HashSet<String>  supportedFeatures = null;
 
 
-   protected class RendererState implements Cloneable
+   protected static class RendererState implements Cloneable
    {
+      // Shared and never modified, so that states can be reset without allocating
+      static final Style  DEFAULT_STYLE = Style.getDefaultStyle();
+
       public Style    style;
       public boolean  hasFill;
       public boolean  hasStroke;
@@ -140,6 +252,14 @@ public class SVGAndroidRenderer
       // Set when we doing direct rendering.
       public boolean  directRendering;
 
+      // What has been applied to the Paints, so that unchanged values are not applied again.
+      // The typeface is valid once it has been set from the font properties of 'style'.
+      // The dash intervals are those of the Paints' path effect, or null if they have none.
+      // They are shared between states, and never modified.
+      boolean  typefaceValid;
+      float[]  dashIntervals;
+      float    dashOffset;
+
 
       public RendererState()
       {
@@ -156,6 +276,52 @@ public class SVGAndroidRenderer
          style = Style.getDefaultStyle();
       }
 
+      /*
+       * Make this state a copy of another, reusing this state's Style and Paints.
+       */
+      public void  set(RendererState src)
+      {
+         style.set(src.style);
+         hasFill = src.hasFill;
+         hasStroke = src.hasStroke;
+         fillPaint.set(src.fillPaint);
+         strokePaint.set(src.strokePaint);
+         viewPort = src.viewPort;
+         viewBox = src.viewBox;
+         spacePreserve = src.spacePreserve;
+         directRendering = src.directRendering;
+         typefaceValid = src.typefaceValid;
+         dashIntervals = src.dashIntervals;
+         dashOffset = src.dashOffset;
+      }
+
+      /*
+       * Return this state to the way it was when it was constructed.
+       */
+      public void  reset()
+      {
+         fillPaint.reset();
+         fillPaint.setFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG | Paint.SUBPIXEL_TEXT_FLAG);
+         fillPaint.setStyle(Paint.Style.FILL);
+         fillPaint.setTypeface(Typeface.DEFAULT);
+
+         strokePaint.reset();
+         strokePaint.setFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG | Paint.SUBPIXEL_TEXT_FLAG);
+         strokePaint.setStyle(Paint.Style.STROKE);
+         strokePaint.setTypeface(Typeface.DEFAULT);
+
+         style.set(DEFAULT_STYLE);
+         hasFill = false;
+         hasStroke = false;
+         viewPort = null;
+         viewBox = null;
+         spacePreserve = false;
+         directRendering = false;
+         typefaceValid = false;
+         dashIntervals = null;
+         dashOffset = 0f;
+      }
+
       @Override
       protected Object  clone()
       {
@@ -176,6 +342,98 @@ public class SVGAndroidRenderer
 
    }
 
+   /*
+    * The stacks used while rendering, with preallocated renderer states, Paints and matrices
+    * that are reused from one render to the next, so that drawing a document again does not
+    * allocate. Each thread keeps one for the renderers it runs, see acquireStatePool().
+    */
+   private static class StatePool
+   {
+      private static final int  INITIAL_DEPTH = 32;
+
+      RendererState    rootState = new RendererState();
+      RendererState[]  stateStack = new RendererState[INITIAL_DEPTH];  // the saved states
+      RendererState[]  stateSlots = new RendererState[INITIAL_DEPTH];  // the states reused at each depth
+
+      SvgContainer[]   parentStack = new SvgContainer[INITIAL_DEPTH];
+      Matrix[]         matrixStack = new Matrix[INITIAL_DEPTH];
+
+      // Canvas stack for when we are processing mask elements, with the offscreen bitmaps
+      // and the device bounds they cover
+      List<Canvas>     canvasStack = new ArrayList<Canvas>();
+      List<Bitmap>     bitmapStack = new ArrayList<Bitmap>();
+      List<android.graphics.Rect>  boundsStack = new ArrayList<android.graphics.Rect>();
+
+      boolean          inUse = false;
+
+      void  growStateStack()
+      {
+         int  newLength = stateStack.length * 2;
+         RendererState[]  newStack = new RendererState[newLength];
+         RendererState[]  newSlots = new RendererState[newLength];
+         System.arraycopy(stateStack, 0, newStack, 0, stateStack.length);
+         System.arraycopy(stateSlots, 0, newSlots, 0, stateSlots.length);
+         stateStack = newStack;
+         stateSlots = newSlots;
+      }
+
+      void  growParentStack()
+      {
+         int  newLength = parentStack.length * 2;
+         SvgContainer[]  newParents = new SvgContainer[newLength];
+         Matrix[]        newMatrices = new Matrix[newLength];
+         System.arraycopy(parentStack, 0, newParents, 0, parentStack.length);
+         System.arraycopy(matrixStack, 0, newMatrices, 0, matrixStack.length);
+         parentStack = newParents;
+         matrixStack = newMatrices;
+      }
+
+      void  clear(SVGBitmapPool bitmapPool)
+      {
+         // Don't keep elements or states of the last document alive
+         Arrays.fill(stateStack, null);
+         Arrays.fill(parentStack, null);
+         canvasStack.clear();
+         // Bitmaps are only left over if a render failed part way through
+         for (Bitmap bitmap: bitmapStack)
+            bitmapPool.release(bitmap);
+         bitmapStack.clear();
+         boundsStack.clear();
+      }
+   }
+
+   private static final ThreadLocal<StatePool>  threadStatePool = new ThreadLocal<StatePool>()
+   {
+      @Override
+      protected StatePool  initialValue()
+      {
+         return new StatePool();
+      }
+   };
+
+
+   /*
+    * Use the current thread's state pool for a render, or a new one if it is already in use
+    * by another renderer on this thread.
+    */
+   private void  acquireStatePool()
+   {
+      StatePool  threadPool = threadStatePool.get();
+      poolIsShared = !threadPool.inUse;
+      pool = poolIsShared ? threadPool : new StatePool();
+      pool.inUse = true;
+   }
+
+
+   private void  releaseStatePool()
+   {
+      pool.clear(bitmapPool);
+      if (poolIsShared)
+         pool.inUse = false;
+      pool = null;
+   }
+
+
    protected RendererState getState()
    {
       if (state == null) resetState();
@@ -184,11 +442,17 @@ public class SVGAndroidRenderer
 
    private void  resetState()
    {
-      state = new RendererState();
-      stateStack = new Stack<RendererState>();
+      // Renderers that are only used for measuring don't release their pool, so don't share one
+      if (pool == null) {
+         pool = new StatePool();
+         poolIsShared = false;
+      }
+
+      state = pool.rootState;
+      state.reset();
 
-      // Initialise the style state properties like Paints etc using a fresh instance of Style
-      updateStyle(state, Style.getDefaultStyle());
+      // Initialise the style state properties like Paints etc using the default Style
+      updateStyle(state, RendererState.DEFAULT_STYLE);
 
       state.viewPort = this.canvasViewPort;
 
@@ -196,16 +460,75 @@ public class SVGAndroidRenderer
       state.directRendering = this.directRenderingMode;
 
       // Push a copy of the state with 'default' style, so that inherit works for top level objects
-      stateStack.push((RendererState) state.clone());   // Manual push here - don't use statePush();
-
-      // Initialise the stacks used for mask handling
-      canvasStack = new Stack<Canvas>();
-      bitmapStack = new Stack<Bitmap>();
+      stateDepth = 0;   // Manual push here - don't use statePush();
+      pool.stateStack[stateDepth++] = getStateSlot(0);
+      pool.stateStack[0].set(state);
 
       // Keep track of element stack while rendering.
       // The 'render parent' for some elements (eg <use> references) is different from its DOM parent.
-      matrixStack = new Stack<Matrix>();
-      parentStack = new Stack<SvgContainer>();
+      parentDepth = 0;
+      ancestorFilter.clear();
+   }
+
+
+   private RendererState  getStateSlot(int depth)
+   {
+      RendererState  slot = pool.stateSlots[depth];
+      if (slot == null) {
+         slot = pool.stateSlots[depth] = new RendererState();
+         stateAllocations++;
+      }
+      return slot;
+   }
+
+
+   /*
+    * Returns the number of renderer states and matrices this renderer has had to allocate.
+    * Renderers reuse the ones allocated by earlier renderers on the same thread, so when an
+    * unchanged document is drawn again this should be zero.
+    */
+   int  getStateAllocationCount()
+   {
+      return stateAllocations;
+   }
+
+
+   /*
+    * Returns the number of masked elements this renderer has drawn.
+    */
+   int  getMaskCount()
+   {
+      return maskCount;
+   }
+
+
+   /*
+    * Returns the largest number of bytes of offscreen mask bitmaps this renderer has had
+    * in use at the same time.
+    */
+   int  getPeakMaskBitmapBytes()
+   {
+      return peakMaskBitmapBytes;
+   }
+
+
+   /*
+    * Returns the number of markers this renderer has drawn by replaying a picture from the
+    * document's marker cache, rather than rendering their content.
+    */
+   int  getMarkerReplayCount()
+   {
+      return markerReplayCount;
+   }
+
+
+   /*
+    * Returns the number of {@code <use>} elements this renderer has drawn by replaying a picture
+    * from the document's use cache, rather than rendering the element they reference.
+    */
+   int  getUseReplayCount()
+   {
+      return useReplayCount;
    }
 
 
@@ -229,6 +552,29 @@ public class SVGAndroidRenderer
    {
       return dpi;
    }
+
+
+   /*
+    * Returns true if recorded pictures can be replayed to the current canvas. Hardware accelerated
+    * canvases don't support drawPicture() before API 23 (Marshmallow).
+    */
+   private boolean  canDrawPictures()
+   {
+      if (android.os.Build.VERSION.SDK_INT >= 23 || isHardwareAcceleratedMethod == null)
+         return true;
+      if (canvas != pictureCheckedCanvas)
+      {
+         pictureCheckedCanvas = canvas;
+         try {
+            pictureCheckedResult = !((Boolean) isHardwareAcceleratedMethod.invoke(canvas));
+         }
+         catch (Exception e) {
+            Log.w(TAG, "Unexpected failure calling isHardwareAccelerated", e);
+            pictureCheckedResult = false;
+         }
+      }
+      return pictureCheckedResult;
+   }
    
    protected void setCanvas(Canvas canvas)
    {
@@ -245,6 +591,22 @@ public class SVGAndroidRenderer
 	   this.canvasViewPort = viewPort;
    }
 
+   protected SVG.Box getViewPort()
+   {
+	   return canvasViewPort;
+   }
+
+   protected void setLevelOfDetail(SVGLevelOfDetail levelOfDetail)
+   {
+      this.levelOfDetail = levelOfDetail;
+   }
+
+
+   protected void setDisplayList(SVGDisplayList displayList)
+   {
+	   this.displayList = displayList;
+   }
+
 
    protected float  getCurrentFontSize()
    {
@@ -272,6 +634,16 @@ public class SVGAndroidRenderer
    }
 
 
+   /*
+    * Get the view port that percentage lengths are measured against, or null if there
+    * is none because the renderer is not currently rendering.
+    */
+   SVG.Box  getMeasureViewPort()
+   {
+      return (state != null) ? getCurrentViewPortInUserUnits() : null;
+   }
+
+
    /*
     * Render the whole document.
     */
@@ -288,14 +660,24 @@ public class SVGAndroidRenderer
       }
 
       // Initialise the state
-      resetState();
+      acquireStatePool();
+      try
+      {
+         resetState();
+         document.setRenderViewPort(canvasViewPort, (viewBox != null) ? viewBox : rootObj.viewBox, dpi);
 
-      checkXMLSpaceAttribute(rootObj);
+         checkXMLSpaceAttribute(rootObj);
 
-      // Render the document
-      render(rootObj, rootObj.width, rootObj.height,
-             (viewBox != null) ? viewBox : rootObj.viewBox,
-             (positioning != null) ? positioning : rootObj.preserveAspectRatio);
+         // Render the document
+         render(rootObj, rootObj.width, rootObj.height,
+                (viewBox != null) ? viewBox : rootObj.viewBox,
+                (positioning != null) ? positioning : rootObj.preserveAspectRatio);
+      }
+      finally
+      {
+         state = null;
+         releaseStatePool();
+      }
    }
 
 
@@ -308,6 +690,15 @@ public class SVGAndroidRenderer
       if (obj instanceof NotDirectlyRendered)
          return;
 
+      // Skip elements that drew entirely outside the current clip last time
+      if (isCulled(obj)) {
+         culledCount++;
+         return;
+      }
+      // Skip elements that were too small to be seen last time
+      if (isBelowDetailThreshold(obj))
+         return;
+
       // Save state
       statePush();
 
@@ -365,6 +756,122 @@ public class SVGAndroidRenderer
    }
 
 
+   /*
+    * Render the children of the root element by replaying their recorded pictures from the
+    * display list, recording the ones that are missing or out of date first.
+    */
+   private void  renderChildrenFromDisplayList(SVG.Svg obj, Box viewBox, PreserveAspectRatio positioning)
+   {
+      // Pictures are recorded in the root user space. Find the area of the viewport in that space.
+      RectF  bounds = new RectF(state.viewPort.minX, state.viewPort.minY, state.viewPort.maxX(), state.viewPort.maxY());
+      if (viewBox != null) {
+         Matrix  m = new Matrix();
+         if (!calculateViewBoxTransform(state.viewPort, viewBox, positioning).invert(m)) {
+            renderChildren(obj, true);
+            return;
+         }
+         m.mapRect(bounds);
+      }
+
+      parentPush(obj);
+      displayList.beginFrame(bounds, dpi);
+
+      for (SVG.SvgObject child: obj.getChildren())
+      {
+         if (child instanceof NotDirectlyRendered)
+            continue;
+
+         SVGDisplayList.Chunk  chunk = displayList.getChunk(child);
+         if (chunk == null)
+            chunk = recordChild(child, bounds);
+
+         if (chunk.picture != null) {
+            canvas.save();
+            canvas.translate(bounds.left, bounds.top);
+            canvas.drawPicture(chunk.picture);
+            canvas.restore();
+         } else {
+            render(child);
+         }
+      }
+
+      displayList.endFrame();
+      parentPop();
+   }
+
+
+   /*
+    * Record a child of the root element into a Picture and add it to the display list.
+    * If it uses a feature that can't be recorded, it is added without a picture.
+    */
+   @SuppressWarnings("deprecation")
+   private SVGDisplayList.Chunk  recordChild(SvgObject child, RectF bounds)
+   {
+      Picture  picture = new Picture();
+      Canvas   savedCanvas = canvas;
+
+      canvas = picture.beginRecording((int) Math.ceil(bounds.width()) + 1, (int) Math.ceil(bounds.height()) + 1);
+      canvas.translate(-bounds.left, -bounds.top);
+      // Only the transform changes. The render parent is still the root element.
+      pushParentMatrix(pool.parentStack[parentDepth - 1]);
+
+      recordedReferences = new ArrayList<SvgObject>();
+      recordedUnresolvedReference = false;
+      recordingUnsafe = false;
+
+      render(child);
+
+      picture.endRecording();
+      pool.parentStack[--parentDepth] = null;
+      canvas = savedCanvas;
+
+      SVGDisplayList.Chunk  chunk = displayList.putChunk(child, recordingUnsafe ? null : picture, recordedReferences, recordedUnresolvedReference);
+      recordedReferences = null;
+      return chunk;
+   }
+
+
+   /*
+    * Resolve a reference to another element, remembering it if a display list chunk, a pattern tile
+    * or a clip path is being recorded.
+    */
+   private SvgObject  resolveIRI(SVG doc, String iri)
+   {
+      SvgObject  ref = doc.resolveIRI(iri);
+      if (recordedReferences != null) {
+         if (ref != null)
+            recordedReferences.add(ref);
+         else
+            recordedUnresolvedReference = true;
+      }
+      if (trackedReferences != null) {
+         if (ref != null)
+            trackedReferences.add(ref);
+         else
+            trackedUnresolvedReference = true;
+      }
+      return ref;
+   }
+
+
+   /*
+    * Remember the references made by something taken from a cache, as if they had been resolved again.
+    */
+   private void  addCachedReferences(List<SvgObject> references, boolean hasUnresolvedReferences)
+   {
+      if (recordedReferences != null) {
+         recordedReferences.addAll(references);
+         if (hasUnresolvedReferences)
+            recordedUnresolvedReference = true;
+      }
+      if (trackedReferences != null) {
+         trackedReferences.addAll(references);
+         if (hasUnresolvedReferences)
+            trackedUnresolvedReference = true;
+      }
+   }
+
+
    //==============================================================================
 
 
@@ -373,8 +880,7 @@ public class SVGAndroidRenderer
       // Save matrix and clip
       canvas.save();
       // Save style state
-      stateStack.push(state);
-      state = (RendererState) state.clone();
+      pushState();
    }
 
 
@@ -383,25 +889,359 @@ public class SVGAndroidRenderer
       // Restore matrix and clip
       canvas.restore();
       // Restore style state
-      state = stateStack.pop();
+      popState();
+   }
+
+
+   /*
+    * Save the style state, and make the current state a copy of it. The copy reuses the
+    * state, Style and Paints previously used at this depth.
+    */
+   private void  pushState()
+   {
+      if (stateDepth == pool.stateStack.length)
+         pool.growStateStack();
+      RendererState  slot = getStateSlot(stateDepth);
+      slot.set(state);
+      pool.stateStack[stateDepth++] = state;
+      state = slot;
+   }
+
+
+   private void  popState()
+   {
+      state = pool.stateStack[--stateDepth];
+      pool.stateStack[stateDepth] = null;
    }
 
 
    //==============================================================================
 
 
-   @SuppressWarnings("deprecation")
    private void  parentPush(SvgContainer obj)
    {
-      parentStack.push(obj);
-      matrixStack.push(canvas.getMatrix());
+      pushParentMatrix(obj);
+      ancestorFilter.push(obj);
    }
 
 
    private void  parentPop()
    {
-      parentStack.pop();
-      matrixStack.pop();
+      pool.parentStack[--parentDepth] = null;
+      ancestorFilter.pop();
+   }
+
+
+   @SuppressWarnings("deprecation")
+   private void  pushParentMatrix(SvgContainer obj)
+   {
+      if (parentDepth == pool.parentStack.length)
+         pool.growParentStack();
+      Matrix  m = pool.matrixStack[parentDepth];
+      if (m == null) {
+         m = pool.matrixStack[parentDepth] = new Matrix();
+         stateAllocations++;
+      }
+      canvas.getMatrix(m);
+      pool.parentStack[parentDepth++] = obj;
+   }
+
+
+   /*
+    * Check whether an element can be skipped because the area it drew in when last rendered
+    * is outside the current clip. Elements that drew nothing last time (eg. because they were
+    * display:none, possibly set directly in the style fields) are always rendered, so that they
+    * are measured again.
+    */
+   private boolean  isCulled(SvgObject obj)
+   {
+      if (referenceDepth > 0 || !(obj instanceof SvgElement))
+         return false;
+      return hasVisualBounds((SvgElement) obj) && canvas.quickReject(((SvgElement) obj).visualBounds, Canvas.EdgeType.AA);
+   }
+
+
+   /*
+    * Returns true if the element has non-empty visual bounds from a previous render that are still valid.
+    */
+   private boolean  hasVisualBounds(SvgElement elem)
+   {
+      return elem.visualBoundsValid && elem.visualBoundsGeneration == document.visualBoundsGeneration &&
+             elem.visualBounds != null && !elem.visualBounds.isEmpty();
+   }
+
+
+   /*
+    * Remember the area an element drew in, so that it can be culled next time. 'bounds' is in
+    * the element's user space (an empty rect if nothing was drawn), or null if it is not known.
+    */
+   private void  setVisualBounds(SvgElement obj, RectF bounds, Matrix transform)
+   {
+      if (referenceDepth > 0)
+         return;
+      if (bounds == null) {
+         obj.visualBoundsValid = false;
+         return;
+      }
+      if (transform != null)
+         transform.mapRect(bounds);
+      // Keep the existing object if possible, as other threads may be reading it
+      if (!obj.visualBoundsValid || obj.visualBounds == null || !obj.visualBounds.equals(bounds))
+         obj.visualBounds = new RectF(bounds);
+      obj.visualBoundsGeneration = document.visualBoundsGeneration;
+      obj.visualBoundsValid = true;
+   }
+
+
+   /*
+    * Set the visual bounds of an element that drew nothing.
+    */
+   private void  setEmptyVisualBounds(SvgElement obj)
+   {
+      tempVisualBounds.setEmpty();
+      setVisualBounds(obj, tempVisualBounds, null);
+   }
+
+
+   /*
+    * Set the visual bounds of a shape or text element from its bounding box and the current stroke.
+    * Markers can extend anywhere, so elements that have them are never culled.
+    */
+   private void  setStrokedVisualBounds(SvgElement obj, Matrix transform, boolean hasMarkers)
+   {
+      if (obj.boundingBox == null || hasMarkers || state.style.vectorEffect == VectorEffect.NonScalingStroke) {
+         setVisualBounds(obj, null, null);
+         return;
+      }
+      RectF  bounds = tempVisualBounds;
+      bounds.set(obj.boundingBox.minX, obj.boundingBox.minY, obj.boundingBox.maxX(), obj.boundingBox.maxY());
+      if (state.hasStroke)
+      {
+         // Allow for miter joins and square caps
+         float  halfWidth = state.strokePaint.getStrokeWidth() / 2f;
+         float  factor = (state.strokePaint.getStrokeJoin() == Paint.Join.MITER) ? Math.max(state.strokePaint.getStrokeMiter(), 1.5f) : 1.5f;
+         bounds.inset(-halfWidth * factor, -halfWidth * factor);
+      }
+      setVisualBounds(obj, bounds, transform);
+   }
+
+
+   private boolean  hasMarkers()
+   {
+      return state.style.markerStart != null || state.style.markerMid != null || state.style.markerEnd != null;
+   }
+
+
+   /*
+    * Set the visual bounds of a group to the union of those of its children.
+    */
+   private void  setGroupVisualBounds(SVG.Group obj)
+   {
+      if (referenceDepth > 0)
+         return;
+      RectF  bounds = new RectF();
+      for (SVG.SvgObject child: obj.getChildren())
+      {
+         if (child instanceof NotDirectlyRendered || !(child instanceof SvgElement))
+            continue;
+         SvgElement  elem = (SvgElement) child;
+         if (!elem.visualBoundsValid || elem.visualBoundsGeneration != document.visualBoundsGeneration) {
+            setVisualBounds(obj, null, null);
+            return;
+         }
+         bounds.union(elem.visualBounds);
+      }
+      setVisualBounds(obj, bounds, obj.transform);
+   }
+
+
+   /*
+    * Returns the number of elements that were skipped because they were outside the clip.
+    */
+   int  getCulledCount()
+   {
+      return culledCount;
+   }
+
+
+   void  resetCulledCount()
+   {
+      culledCount = 0;
+   }
+
+
+   /*
+    * Returns the number of CSS rules that were rejected by the ancestor filter without the need
+    * to check the element's ancestors.
+    */
+   int  getCSSFastRejectCount()
+   {
+      return ancestorFilter.getFastRejectCount();
+   }
+
+
+   //==============================================================================
+   // Level of detail
+
+
+   /*
+    * Returns the scale from the current user space to device pixels.
+    */
+   @SuppressWarnings("deprecation")
+   private float  getDeviceScale()
+   {
+      canvas.getMatrix(lodMatrix);
+      return lodMatrix.mapRadius(1f);
+   }
+
+
+   /*
+    * Check whether a rect in the current user space is smaller than the minimum element size on the device.
+    */
+   @SuppressWarnings("deprecation")
+   private boolean  isBelowMinElementSize(RectF bounds)
+   {
+      float  minSize = levelOfDetail.getMinElementSize();
+      canvas.getMatrix(lodMatrix);
+      lodBounds.set(bounds);
+      lodMatrix.mapRect(lodBounds);
+      return lodBounds.width() < minSize && lodBounds.height() < minSize;
+   }
+
+
+   /*
+    * Check whether an element can be skipped because the area it drew in when last rendered
+    * is too small to be seen. Only used when small elements are to be skipped, as we don't
+    * know what colour a dot for a group should be.
+    */
+   private boolean  isBelowDetailThreshold(SvgObject obj)
+   {
+      if (levelOfDetail == null || levelOfDetail.getMinElementSize() <= 0f || levelOfDetail.getSmallElementMode() != SmallElementMode.Skip)
+         return false;
+      if (!(obj instanceof SvgElement))
+         return false;
+      SvgElement  elem = (SvgElement) obj;
+      if (!hasVisualBounds(elem))
+         return false;
+      return isBelowMinElementSize(elem.visualBounds);
+   }
+
+
+   /*
+    * Apply the level of detail policy to a shape whose bounding box, fill and stroke are known.
+    * Returns true if the shape was too small, and has been skipped or drawn as a dot instead.
+    */
+   private boolean  renderAtLowDetail(SvgElement obj)
+   {
+      if (levelOfDetail == null || levelOfDetail.getMinElementSize() <= 0f || obj.boundingBox == null)
+         return false;
+      // Markers and non-scaling strokes can be much larger than the shape itself
+      if (hasMarkers() || state.style.vectorEffect == VectorEffect.NonScalingStroke)
+         return false;
+
+      RectF  bounds = lodShapeBounds;
+      bounds.set(obj.boundingBox.minX, obj.boundingBox.minY, obj.boundingBox.maxX(), obj.boundingBox.maxY());
+      if (state.hasStroke) {
+         float  halfWidth = state.strokePaint.getStrokeWidth() / 2f;
+         bounds.inset(-halfWidth, -halfWidth);
+      }
+      if (!isBelowMinElementSize(bounds))
+         return false;
+
+      if (levelOfDetail.getSmallElementMode() == SmallElementMode.Dot)
+      {
+         // Draw the bounds, which antialiasing reduces to a dot of roughly the right coverage
+         boolean  patternFill = state.hasFill && isPatternFill(state.style.fill);
+         if (state.hasFill && !patternFill) {
+            canvas.drawRect(bounds, state.fillPaint);
+         } else if (state.hasStroke) {
+            lodPaint.set(state.strokePaint);
+            lodPaint.setStyle(Paint.Style.FILL);
+            canvas.drawRect(bounds, lodPaint);
+         }
+      }
+      return true;
+   }
+
+
+   /*
+    * Returns true if a fill paint refers to a pattern. The result for the last paint checked is kept,
+    * until the document changes.
+    */
+   private boolean  isPatternFill(SVG.SvgPaint fill)
+   {
+      if (!(fill instanceof SVG.PaintReference))
+         return false;
+      if (fill != lodCheckedFill || lodCheckedFillGeneration != document.contentGeneration)
+      {
+         lodCheckedFill = fill;
+         lodCheckedFillGeneration = document.contentGeneration;
+         lodCheckedFillIsPattern = resolveIRI(document, ((SVG.PaintReference) fill).href) instanceof SVG.Pattern;
+      }
+      return lodCheckedFillIsPattern;
+   }
+
+
+   /*
+    * Returns a version of a path with its curves flattened and its points thinned to the
+    * tolerance of the level of detail policy at the current scale. Simplified paths are cached
+    * for tolerances rounded down to a power of two, so that nearby scales share them.
+    */
+   private Path  simplifyPath(SVG.Path obj, Path path)
+   {
+      if (levelOfDetail == null || levelOfDetail.getFlatteningTolerance() <= 0f)
+         return path;
+      float  scale = getDeviceScale();
+      if (scale <= 0f)
+         return path;
+
+      int  level = (int) Math.floor(Math.log(levelOfDetail.getFlatteningTolerance() / scale) / LOG_2);
+
+      SVGPathCache  cache = getPathCache(obj);
+      Path          simplified = (cache != null) ? cache.getSimplified(obj, level) : null;
+      if (simplified != null)
+         return simplified;
+
+      SimplifiedPathConverter  converter = new SimplifiedPathConverter(obj.d, (float) Math.pow(2, level));
+      // At large scales flattening produces more points than the original path has
+      int  complexity = converter.getPointCount() * 2;
+      if (complexity < obj.d.getCoordsLength()) {
+         simplified = converter.getPath();
+      } else {
+         simplified = path;
+         complexity = 0;
+      }
+
+      if (cache != null)
+         cache.putSimplified(obj, level, simplified, complexity);
+      return simplified;
+   }
+
+
+   /*
+    * Check whether text at the current font size is too small to be drawn as glyphs.
+    */
+   private boolean  isTextBelowDetailThreshold()
+   {
+      if (levelOfDetail == null || levelOfDetail.getMinTextSize() <= 0f)
+         return false;
+      return state.fillPaint.getTextSize() * getDeviceScale() < levelOfDetail.getMinTextSize();
+   }
+
+
+   /*
+    * Draw a run of text as a bar from the baseline up to the x-height.
+    */
+   private void  drawTextAsBar(float x, float y, float width)
+   {
+      float  xHeight = state.fillPaint.getTextSize() / 2f;
+      if (state.hasFill) {
+         canvas.drawRect(x, y - xHeight, x + width, y, state.fillPaint);
+      } else if (state.hasStroke) {
+         lodPaint.set(state.strokePaint);
+         lodPaint.setStyle(Paint.Style.FILL);
+         canvas.drawRect(x, y - xHeight, x + width, y, lodPaint);
+      }
    }
 
 
@@ -413,15 +1253,29 @@ public class SVGAndroidRenderer
       boolean  isRootSVG = (obj.parent == null);
       state.style.resetNonInheritingProperties(isRootSVG);
 
+      // Use the precomputed cascade if we have one
+      Style  cascaded = getCascadedStyle(obj);
+      if (cascaded != null)
+      {
+         updateStyle(state, cascaded);
+         return;
+      }
+
       // Apply the styles defined by style attributes on the element
       if (obj.baseStyle != null)
          updateStyle(state, obj.baseStyle);
 
-      // Apply the styles from any CSS files or <style> elements
+      // Apply the styles from any CSS files or <style> elements. Only the rules whose
+      // rightmost selector could match this element's id, classes or tag are tested.
       if (document.hasCSSRules())
       {
-         for (CSSParser.Rule rule: document.getCSSRules())
+         boolean  useFilter = ancestorFilter.isUsableFor(obj);
+         document.getCSSRuleCandidates(obj, cssRuleCandidates);
+         for (int i=0; i<cssRuleCandidates.size(); i++)
          {
+            CSSParser.Rule  rule = cssRuleCandidates.get(i);
+            if (useFilter && !ancestorFilter.mightMatch(rule.selector))
+               continue;
             if (CSSParser.ruleMatch(rule.selector, obj)) {
                updateStyle(state, rule.style);
             }
@@ -434,6 +1288,43 @@ public class SVGAndroidRenderer
    }
 
 
+   /*
+    * Returns the combination of the element's style attributes, matching CSS rules and 'style'
+    * attribute, in cascade order. The result is kept on the element until its style, classes or
+    * position in the tree, or the document's CSS rules, change. Returns null if the cascade
+    * cannot be precomputed for this element.
+    */
+   private Style  getCascadedStyle(SvgElementBase obj)
+   {
+      if (obj.cascadedStyleGeneration == document.styleGeneration)
+         return obj.cascadedStyle;
+
+      Style    cascaded = new Style();
+      boolean  ok = true;
+      if (obj.baseStyle != null)
+         ok = cascaded.cascadeFrom(obj.baseStyle);
+      if (ok && document.hasCSSRules())
+      {
+         boolean  useFilter = ancestorFilter.isUsableFor(obj);
+         document.getCSSRuleCandidates(obj, cssRuleCandidates);
+         for (int i=0; ok && i<cssRuleCandidates.size(); i++)
+         {
+            CSSParser.Rule  rule = cssRuleCandidates.get(i);
+            if (useFilter && !ancestorFilter.mightMatch(rule.selector))
+               continue;
+            if (CSSParser.ruleMatch(rule.selector, obj))
+               ok = cascaded.cascadeFrom(rule.style);
+         }
+      }
+      if (ok && obj.style != null)
+         ok = cascaded.cascadeFrom(obj.style);
+
+      obj.cascadedStyle = ok ? cascaded : null;
+      obj.cascadedStyleGeneration = document.styleGeneration;
+      return obj.cascadedStyle;
+   }
+
+
    /*
     * Check and update xml:space handling.
     */
@@ -456,7 +1347,7 @@ public class SVGAndroidRenderer
       // First check for pattern fill. It requires special handling.
       if (state.style.fill instanceof SVG.PaintReference)
       {
-         SVG.SvgObject  ref = document.resolveIRI(((SVG.PaintReference) state.style.fill).href);
+         SVG.SvgObject  ref = resolveIRI(document, ((SVG.PaintReference) state.style.fill).href);
          if (ref instanceof SVG.Pattern) {
             SVG.Pattern  pattern = (SVG.Pattern)ref;
             fillWithPattern(obj, path, pattern);
@@ -478,33 +1369,45 @@ public class SVGAndroidRenderer
       {
          // For non-scaling-stroke, the stroke width is not transformed along with the path.
          // It will be rendered at the same width no matter how the document contents are transformed.
+         // This depends on the final canvas transform, so can't be recorded in a display list.
+         recordingUnsafe = true;
 
          // First step: get the current canvas matrix
-         Matrix  currentMatrix = canvas.getMatrix();
+         Matrix  currentMatrix = nonScalingMatrix;
+         canvas.getMatrix(currentMatrix);
          // Transform the path using this transform
-         Path  transformedPath = new Path();
+         Path  transformedPath = nonScalingPath;
          path.transform(currentMatrix, transformedPath);
-         // Reset the current canvas transform completely
-         canvas.setMatrix(new Matrix());
 
-         // If there is a shader (such as a gradient), we need to update its transform also
-         Shader  shader = state.strokePaint.getShader();
-         Matrix  currentShaderMatrix = new Matrix();
-         if (shader != null) {
-            shader.getLocalMatrix(currentShaderMatrix);
-            Matrix  newShaderMatrix = new Matrix(currentShaderMatrix);
-            newShaderMatrix.postConcat(currentMatrix);
-            shader.setLocalMatrix(newShaderMatrix);
+         // If there is a shader (such as a gradient), it must stay in user space. Gradient shaders
+         // come from the document's gradient cache and may be in use by other renderers or held
+         // by recorded pictures, so their transform must not be changed. Instead, make the outline
+         // of the stroke in device units and map it back into user space, where it is filled with
+         // the shader under the current canvas transform.
+         Matrix  inverse = nonScalingInverse;
+         if (state.strokePaint.getShader() != null && currentMatrix.invert(inverse))
+         {
+            Path  outline = nonScalingOutline;
+            outline.rewind();
+            state.strokePaint.getFillPath(transformedPath, outline);
+            outline.transform(inverse);
+            nonScalingStrokePaint.set(state.strokePaint);
+            nonScalingStrokePaint.setStyle(Paint.Style.FILL);
+            // The outline is already dashed
+            nonScalingStrokePaint.setPathEffect(null);
+            canvas.drawPath(outline, nonScalingStrokePaint);
          }
+         else
+         {
+            // Reset the current canvas transform completely
+            canvas.setMatrix(null);
 
-         // Render the transformed path. The stroke width used will be in unscaled device units.
-         canvas.drawPath(transformedPath, state.strokePaint);
+            // Render the transformed path. The stroke width used will be in unscaled device units.
+            canvas.drawPath(transformedPath, state.strokePaint);
 
-         // Return the current canvas transform to what it was before all this happened         
-         canvas.setMatrix(currentMatrix);
-         // And reset the shader matrix also
-         if (shader != null)
-            shader.setLocalMatrix(currentShaderMatrix);
+            // Return the current canvas transform to what it was before all this happened
+            canvas.setMatrix(currentMatrix);
+         }
       }
       else
       {
@@ -605,12 +1508,15 @@ public class SVGAndroidRenderer
          canvas.translate(_x, _y);
       }
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       // Action the viewport-fill property (if set)
       viewportFill();
 
-      renderChildren(obj, true);
+      if (displayList != null && obj == document.getRootElement() && !state.style.overflow && canDrawPictures())
+         renderChildrenFromDisplayList(obj, viewBox, positioning);
+      else
+         renderChildren(obj, true);
 
       if (compositing)
          popLayer(obj);
@@ -628,8 +1534,10 @@ public class SVGAndroidRenderer
 
       updateStyleForElement(state, obj);
 
-      if (!display())
+      if (!display()) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       if (obj.transform != null) {
          canvas.concat(obj.transform);
@@ -637,7 +1545,7 @@ public class SVGAndroidRenderer
 
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       renderChildren(obj, true);
 
@@ -645,6 +1553,7 @@ public class SVGAndroidRenderer
          popLayer(obj);
 
       updateParentBoundingBox(obj);
+      setGroupVisualBounds(obj);
    }
 
 
@@ -666,18 +1575,21 @@ public class SVGAndroidRenderer
          return;
 
       // Convert the corners of the child bbox to world space
-      Matrix  m = new Matrix();
+      Matrix  m = parentMatrix;
       // Get the inverse of the child transform
-      if (matrixStack.peek().invert(m)) {
-         float[] pts = {obj.boundingBox.minX, obj.boundingBox.minY,
-                        obj.boundingBox.maxX(), obj.boundingBox.minY,
-                        obj.boundingBox.maxX(), obj.boundingBox.maxY(),
-                        obj.boundingBox.minX, obj.boundingBox.maxY()};
+      if (pool.matrixStack[parentDepth - 1].invert(m)) {
+         float[] pts = parentPoints;
+         pts[0] = obj.boundingBox.minX;    pts[1] = obj.boundingBox.minY;
+         pts[2] = obj.boundingBox.maxX();  pts[3] = obj.boundingBox.minY;
+         pts[4] = obj.boundingBox.maxX();  pts[5] = obj.boundingBox.maxY();
+         pts[6] = obj.boundingBox.minX;    pts[7] = obj.boundingBox.maxY();
          // Now concatenate the parent's matrix to create a child-to-parent transform
-         m.preConcat(canvas.getMatrix());
+         canvas.getMatrix(parentCanvasMatrix);
+         m.preConcat(parentCanvasMatrix);
          m.mapPoints(pts);
          // Finally, find the bounding box of the transformed points
-         RectF  rect = new RectF(pts[0], pts[1], pts[0], pts[1]);
+         RectF  rect = parentRect;
+         rect.set(pts[0], pts[1], pts[0], pts[1]);
          for (int i=2; i<=6; i+=2) {
             if (pts[i] < rect.left) rect.left = pts[i]; 
             if (pts[i] > rect.right) rect.right = pts[i]; 
@@ -685,7 +1597,7 @@ public class SVGAndroidRenderer
             if (pts[i+1] > rect.bottom) rect.bottom = pts[i+1]; 
          }
          // Update the parent bounding box with the transformed bbox
-         SvgElement  parent = (SvgElement) parentStack.peek();
+         SvgElement  parent = (SvgElement) pool.parentStack[parentDepth - 1];
          if (parent.boundingBox == null)
             parent.boundingBox = Box.fromLimits(rect.left, rect.top, rect.right, rect.bottom);
          else
@@ -697,20 +1609,21 @@ public class SVGAndroidRenderer
    //==============================================================================
 
 
-   private boolean  pushLayer()
+   private boolean  pushLayer(SvgElement obj)
    {
       if (!requiresCompositing())
          return false;
 
-      // Custom version of statePush() that also saves the layer
-      canvas.saveLayerAlpha(null, clamp255(state.style.opacity), Canvas.HAS_ALPHA_LAYER_SAVE_FLAG);
+      // Custom version of statePush() that also saves the layer. The layer only covers the area
+      // the element can draw in, rather than the whole canvas.
+      getLayerBounds(obj, layerBounds);
+      canvas.saveLayerAlpha(layerBounds, clamp255(state.style.opacity), Canvas.HAS_ALPHA_LAYER_SAVE_FLAG);
 
       // Save style state
-      stateStack.push(state);
-      state = (RendererState) state.clone();
+      pushState();
 
       if (state.style.mask != null && state.directRendering) {
-         SVG.SvgObject  ref = document.resolveIRI(state.style.mask);
+         SVG.SvgObject  ref = resolveIRI(document, state.style.mask);
          // Check the we are referencing a mask element
          if (ref == null || !(ref instanceof SVG.Mask)) {
             // This is an invalid mask reference - disable this object's mask
@@ -718,9 +1631,20 @@ public class SVGAndroidRenderer
             state.style.mask = null;
             return true;
          }
-         // We now need to replace the canvas with one onto which we draw the content that is getting masked
-         canvasStack.push(canvas);
-         duplicateCanvas();
+         if (recordedReferences != null) {
+            // Masks are rendered to bitmaps at device resolution, so can't be recorded in a display list.
+            // This chunk will be discarded and rendered directly, so skip the mask processing.
+            recordingUnsafe = true;
+            state.style.mask = null;
+            return true;
+         }
+         // We now need to replace the canvas with one onto which we draw the content that is getting masked.
+         // It only needs to cover the part of the device the content can draw in.
+         android.graphics.Rect  bounds = getMaskDeviceBounds();
+         pool.canvasStack.add(canvas);
+         pool.boundsStack.add(bounds);
+         duplicateCanvas(bounds, Color.TRANSPARENT);
+         maskCount++;
       }
 
       return true;
@@ -732,20 +1656,32 @@ public class SVGAndroidRenderer
       // If this is masked content, apply the mask now
       if (state.style.mask != null && state.directRendering) {
          // The masked content has been drawn, now we have to render the mask to a separate canvas
-         SVG.SvgObject  ref = document.resolveIRI(state.style.mask);
-         duplicateCanvas();
+         SVG.SvgObject  ref = resolveIRI(document, state.style.mask);
+         android.graphics.Rect    bounds = pool.boundsStack.remove(pool.boundsStack.size() - 1);
+         Canvas  contentCanvas = canvas;
+         Bitmap  maskedContent = pool.bitmapStack.get(pool.bitmapStack.size() - 1);
+
+         // The mask is rendered over opaque black, so that its colours end up multiplied by its alpha
+         duplicateCanvas(bounds, Color.BLACK);
          renderMask((SVG.Mask) ref, obj);
-         
-         Bitmap  maskedContent = processMaskBitmaps();
-         
+         Bitmap  mask = pool.bitmapStack.remove(pool.bitmapStack.size() - 1);
+
+         // Multiply the alpha of the content by the luminance of the mask
+         maskMatrix.reset();
+         contentCanvas.setMatrix(maskMatrix);
+         contentCanvas.drawBitmap(mask, 0, 0, getMaskPaint());
+         releaseMaskBitmap(mask);
+
          // Retrieve the real canvas
-         canvas = canvasStack.pop();
+         canvas = pool.canvasStack.remove(pool.canvasStack.size() - 1);
+         pool.bitmapStack.remove(pool.bitmapStack.size() - 1);
          canvas.save();
-         // Reset the canvas matrix so that we can draw the maskedContent exactly over the top of the root bitmap
-         canvas.setMatrix(new Matrix());
-         canvas.drawBitmap(maskedContent, 0, 0, state.fillPaint);
-         maskedContent.recycle();
+         // Reset the canvas matrix so that we can draw the maskedContent exactly over its device bounds
+         canvas.setMatrix(maskMatrix);
+         maskSourceRect.set(0, 0, bounds.width(), bounds.height());
+         canvas.drawBitmap(maskedContent, maskSourceRect, bounds, state.fillPaint);
          canvas.restore();
+         releaseMaskBitmap(maskedContent);
       }
 
       statePop();
@@ -762,61 +1698,121 @@ public class SVGAndroidRenderer
    }
 
 
+   /*
+    * Sets 'bounds' to the area, in the current user space, that an element drawn in a layer can draw in:
+    * the current clip, narrowed down to where the element drew last time if that is known. The layer
+    * and mask bitmaps are sized from this, so it relies on every change to the element's geometry
+    * being followed by geometryChanged(), which invalidates the bounds from last time. The editing
+    * listeners (MoveListener and DrawListener) do this.
+    */
+   @SuppressWarnings("deprecation")
+   private void  getLayerBounds(SvgElement obj, RectF bounds)
+   {
+      if (canvas.getClipBounds(layerClipRect))
+         bounds.set(layerClipRect);
+      else
+         bounds.setEmpty();
+
+      // Visual bounds are in the parent's user space, but the element's own transform
+      // has already been applied to the canvas
+      Matrix  transform = null;
+      boolean usesVisualBounds = false;
+      if (obj instanceof SVG.GraphicsElement) {
+         transform = ((SVG.GraphicsElement) obj).transform;
+         usesVisualBounds = true;
+      } else if (obj.getClass() == SVG.Group.class) {
+         transform = ((SVG.Group) obj).transform;
+         usesVisualBounds = true;
+      }
+      // Bounds that are empty because the element drew nothing last time are not used
+      if (usesVisualBounds && referenceDepth == 0 && hasVisualBounds(obj))
+      {
+         maskElementRect.set(obj.visualBounds);
+         if (transform == null || transform.invert(maskInverseMatrix))
+         {
+            if (transform != null)
+               maskInverseMatrix.mapRect(maskElementRect);
+            // Allow a device pixel for antialiasing
+            canvas.getMatrix(maskMatrix);
+            float  scale = maskMatrix.mapRadius(1f);
+            if (scale > 0f)
+               maskElementRect.inset(-1f / scale, -1f / scale);
+            if (!bounds.intersect(maskElementRect))
+               bounds.setEmpty();
+         }
+      }
+   }
+
+
+   /*
+    * Returns the area of the device that the content of the current layer can draw in.
+    * At least one pixel is returned.
+    */
    @SuppressWarnings("deprecation")
-   private void duplicateCanvas()
+   private android.graphics.Rect  getMaskDeviceBounds()
    {
+      canvas.getMatrix(maskMatrix);
+      maskMatrix.mapRect(maskRect, layerBounds);
+      android.graphics.Rect  bounds = new android.graphics.Rect();
+      maskRect.roundOut(bounds);
+      if (!bounds.intersect(0, 0, canvas.getWidth(), canvas.getHeight()))
+         bounds.set(0, 0, 1, 1);
+      return bounds;
+   }
+
+
+   /*
+    * Replace the canvas with one that draws into a bitmap from the pool, covering the given device bounds,
+    * with the same transform as the real canvas. The bitmap is filled with the background colour.
+    */
+   private void  duplicateCanvas(android.graphics.Rect bounds, int background)
+   {
+      Bitmap  newBM;
       try {
-         Bitmap  newBM = Bitmap.createBitmap(canvas.getWidth(), canvas.getHeight(), Bitmap.Config.ARGB_8888);
-         bitmapStack.push(newBM);
-         Canvas  newCanvas = new Canvas(newBM);
-         newCanvas.setMatrix(canvas.getMatrix());
-         canvas = newCanvas;
+         newBM = bitmapPool.acquire(bounds.width(), bounds.height());
       } catch (OutOfMemoryError e) {
          error("Not enough memory to create temporary bitmaps for mask processing");
          throw e;
       }
+      newBM.eraseColor(background);
+      pool.bitmapStack.add(newBM);
+      maskBitmapBytes += newBM.getRowBytes() * newBM.getHeight();
+      peakMaskBitmapBytes = Math.max(peakMaskBitmapBytes, maskBitmapBytes);
+
+      Canvas  realCanvas = pool.canvasStack.get(pool.canvasStack.size() - 1);
+      realCanvas.getMatrix(maskMatrix);
+      Canvas  newCanvas = new Canvas(newBM);
+      newCanvas.clipRect(0, 0, bounds.width(), bounds.height());
+      newCanvas.translate(-bounds.left, -bounds.top);
+      newCanvas.concat(maskMatrix);
+      canvas = newCanvas;
    }
 
 
-   private Bitmap  processMaskBitmaps()
+   private void  releaseMaskBitmap(Bitmap bitmap)
    {
-      // Retrieve the rendered mask
-      Bitmap  mask = bitmapStack.pop();
-      // Retrieve the rendered content to which the mask is to be applied
-      Bitmap  maskedContent = bitmapStack.pop();
-      // Convert the mask bitmap to an alpha channel and multiply it to the content
-      // We will process the bitmaps in a row-wise fashion to save memory.
-      // It doesn't seem to be be significantly slower than doing it all at once.
-      int    w = mask.getWidth();
-      int    h = mask.getHeight();
-      int[]  maskBuf = new int[w];
-      int[]  maskedContentBuf = new int[w];
-      for (int y=0; y<h; y++)
-      {
-         mask.getPixels(maskBuf, 0, w, 0, y, w, 1);
-         maskedContent.getPixels(maskedContentBuf, 0, w, 0, y, w, 1);
-         for (int x=0; x<w; x++)
-         {
-            int  px = maskBuf[x];
-            int  b = px & 0xff;
-            int  g = (px >> 8) & 0xff;
-            int  r = (px >> 16) & 0xff;
-            int  a = (px >> 24) & 0xff;
-            if (a == 0) {
-               // Shortcut for transparent mask pixels
-               maskedContentBuf[x] = 0;
-               continue;
-            }
-            int  maskAlpha = (r * LUMINANCE_TO_ALPHA_RED + g * LUMINANCE_TO_ALPHA_GREEN + b * LUMINANCE_TO_ALPHA_BLUE) * a / (255 << LUMINANCE_FACTOR_SHIFT);
-            int  content = maskedContentBuf[x];
-            int  contentAlpha = (content >> 24) & 0xff;
-            contentAlpha = (contentAlpha * maskAlpha) / 255;
-            maskedContentBuf[x] = (content & 0x00ffffff) | (contentAlpha << 24);
-         }
-         maskedContent.setPixels(maskedContentBuf, 0, w, 0, y, w, 1);
-      }
-      mask.recycle();
-      return maskedContent;
+      maskBitmapBytes -= bitmap.getRowBytes() * bitmap.getHeight();
+      bitmapPool.release(bitmap);
+   }
+
+
+   /*
+    * The paint that multiplies the alpha of the destination by the luminance of the bitmap being drawn.
+    */
+   private Paint  getMaskPaint()
+   {
+      if (maskPaint == null)
+      {
+         ColorMatrix  luminanceToAlpha = new ColorMatrix(new float[] {
+               0, 0, 0, 0, 0,
+               0, 0, 0, 0, 0,
+               0, 0, 0, 0, 0,
+               LUMINANCE_TO_ALPHA_RED, LUMINANCE_TO_ALPHA_GREEN, LUMINANCE_TO_ALPHA_BLUE, 0, 0 });
+         maskPaint = new Paint();
+         maskPaint.setColorFilter(new ColorMatrixColorFilter(luminanceToAlpha));
+         maskPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_IN));
+      }
+      return maskPaint;
    }
 
 
@@ -841,7 +1837,7 @@ public class SVGAndroidRenderer
 
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       renderSwitchChild(obj);
 
@@ -900,7 +1896,7 @@ public class SVGAndroidRenderer
             if (reqfonts.isEmpty() || fileResolver==null)
                continue;
             for (String fontName: reqfonts) {
-               if (fileResolver.resolveFont(fontName, state.style.fontWeight, String.valueOf(state.style.fontStyle)) == null)
+               if (SVGTypefaceCache.getDefault().resolveFont(fileResolver, fontName, state.style.fontWeight, state.style.fontStyle) == null)
                   continue ChildLoop;
             }
          }
@@ -1003,7 +1999,7 @@ public class SVGAndroidRenderer
          return;
 
       // Locate the referenced object
-      SVG.SvgObject  ref = obj.document.resolveIRI(obj.href);
+      SVG.SvgObject  ref = resolveIRI(obj.document, obj.href);
       if (ref == null) {
          error("Use reference '%s' not found", obj.href);
          return;
@@ -1020,40 +2016,202 @@ public class SVGAndroidRenderer
       m.preTranslate(_x, _y);
       canvas.concat(m);
 
-      checkForClipPath(obj);
+      checkForClipPath(obj);
+
+      boolean  compositing = pushLayer(obj);
+
+      parentPush(obj);
+      referenceDepth++;
+
+      if (ref instanceof SVG.Svg || ref instanceof SVG.Symbol)
+      {
+         Length _w, _h;
+         if (ref instanceof SVG.Svg) {
+            SVG.Svg  svgElem = (SVG.Svg) ref;
+            _w = (obj.width != null) ? obj.width : svgElem.width;
+            _h = (obj.height != null) ? obj.height : svgElem.height;
+         } else {
+            _w = (obj.width != null) ? obj.width : new Length(100, Unit.percent);
+            _h = (obj.height != null) ? obj.height : new Length(100, Unit.percent);
+         }
+
+         SVGUseCache.Entry  instance = getUseInstance(obj, ref, _w, _h);
+         if (instance != null && instance.picture != null)
+         {
+            canvas.save();
+            canvas.translate(instance.left, instance.top);
+            canvas.drawPicture(instance.picture);
+            canvas.restore();
+            if (instance.boundingBox != null) {
+               Box  bbox = instance.boundingBox;
+               if (obj.boundingBox == null)
+                  obj.boundingBox = new Box(bbox.minX, bbox.minY, bbox.width, bbox.height);
+               else
+                  obj.boundingBox.union(bbox);
+            }
+            useReplayCount++;
+         }
+         else
+         {
+            statePush();
+            renderUseTarget(ref, _w, _h);
+            statePop();
+         }
+      }
+      else
+      {
+         render(ref);
+      }
+
+      referenceDepth--;
+      parentPop();
+
+      if (compositing)
+         popLayer(obj);
+
+      updateParentBoundingBox(obj);
+   }
+
+
+   private void  renderUseTarget(SvgObject ref, Length width, Length height)
+   {
+      if (ref instanceof SVG.Svg)
+         render((SVG.Svg) ref, width, height);
+      else
+         render((SVG.Symbol) ref, width, height);
+   }
+
+
+   /*
+    * Returns the recorded picture of the <svg> or <symbol> referenced by a <use> element, for the
+    * current inherited style, from the document's use cache, recording it if necessary. Returns null
+    * if it has to be rendered directly.
+    */
+   private SVGUseCache.Entry  getUseInstance(SVG.Use obj, SvgObject ref, Length width, Length height)
+   {
+      // Level of detail decisions depend on the final canvas transform, so can't be recorded.
+      // The root element may be drawing from the document's display list.
+      if (levelOfDetail != null || obj.document == null || ref == obj.document.getRootElement() || !canDrawPictures())
+         return null;
+
+      SVGUseCache  cache = obj.document.getUseCache();
+      Box          viewPortUser = getCurrentViewPortInUserUnits();
 
-      boolean  compositing = pushLayer();
+      SVGUseCache.Entry  entry = cache.get(ref, width, height, viewPortUser, state.style, state.spacePreserve, obj.document.visualBoundsGeneration);
+      if (entry != null) {
+         addCachedReferences(entry.references, entry.hasUnresolvedReferences);
+         return entry;
+      }
+      entry = recordUseTarget(obj, ref, width, height);
+      cache.put(ref, width, height, viewPortUser, state.style, state.spacePreserve, entry);
+      return entry;
+   }
 
-      parentPush(obj);
 
-      if (ref instanceof SVG.Svg)
+   /*
+    * Returns the viewport that an <svg> or <symbol> referenced by a <use> element clips its content to,
+    * in the user space of the <use> element. Returns null if its overflow is visible, so that the bounds
+    * of its content aren't known, or if it draws nothing.
+    */
+   private RectF  getUseTargetClip(SvgObject ref, Length width, Length height)
+   {
+      if ((width != null && width.isZero()) ||
+          (height != null && height.isZero()))
+         return null;
+
+      statePush();
+      try
       {
-         statePush();
+         updateStyleForElement(state, (SvgElementBase) ref);
+         if (state.style.overflow)
+            return null;
+
+         if (ref instanceof SVG.Symbol)
+         {
+            // As in render(SVG.Symbol)
+            float  _w = (width != null) ? width.floatValueX(this) : state.viewPort.width;
+            float  _h = (height != null) ? height.floatValueX(this) : state.viewPort.height;
+            return new RectF(0, 0, _w, _h);
+         }
+
+         // As in render(SVG.Svg)
          SVG.Svg  svgElem = (SVG.Svg) ref;
-         Length _w = (obj.width != null) ? obj.width : svgElem.width;
-         Length _h = (obj.height != null) ? obj.height : svgElem.height;
-         render(svgElem, _w, _h);
-         statePop();
+         if (!display())
+            return null;
+         float  _x = 0f;
+         float  _y = 0f;
+         if (svgElem.parent != null)
+         {
+            _x = (svgElem.x != null) ? svgElem.x.floatValueX(this) : 0f;
+            _y = (svgElem.y != null) ? svgElem.y.floatValueY(this) : 0f;
+         }
+         Box    viewPortUser = getCurrentViewPortInUserUnits();
+         float  _w = (width != null) ? width.floatValueX(this) : viewPortUser.width;
+         float  _h = (height != null) ? height.floatValueY(this) : viewPortUser.height;
+         return new RectF(_x, _y, _x + _w, _y + _h);
       }
-      else if (ref instanceof SVG.Symbol)
+      finally
       {
-         Length _w = (obj.width != null) ? obj.width : new Length(100, Unit.percent);
-         Length _h = (obj.height != null) ? obj.height : new Length(100, Unit.percent);
-         statePush();
-         render((SVG.Symbol) ref, _w, _h);
          statePop();
       }
-      else
+   }
+
+
+   /*
+    * Record the <svg> or <symbol> referenced by a <use> element into a Picture. The picture is left
+    * out of the returned entry if the bounds of the content aren't known, or it used a feature that
+    * can't be recorded.
+    */
+   @SuppressWarnings("deprecation")
+   private SVGUseCache.Entry  recordUseTarget(SVG.Use obj, SvgObject ref, Length width, Length height)
+   {
+      RectF  bounds = getUseTargetClip(ref, width, height);
+      if (bounds == null || bounds.isEmpty())
+         return new SVGUseCache.Entry(null, 0f, 0f, new ArrayList<SvgObject>(), false, null);
+
+      Picture          picture = new Picture();
+      Canvas           savedCanvas = canvas;
+      List<SvgObject>  savedReferences = recordedReferences;
+      boolean          savedUnresolvedReference = recordedUnresolvedReference;
+      boolean          savedUnsafe = recordingUnsafe;
+      // The bounding box that the content adds to the <use> element is kept with the picture
+      Box              savedBoundingBox = obj.boundingBox;
+      try
       {
-         render(ref);
-      }
+         canvas = picture.beginRecording((int) Math.ceil(bounds.width()) + 1, (int) Math.ceil(bounds.height()) + 1);
+         canvas.translate(-bounds.left, -bounds.top);
+         // Only the transform changes. The render parent is still the <use> element.
+         pushParentMatrix(obj);
+         obj.boundingBox = null;
 
-      parentPop();
+         recordedReferences = new ArrayList<SvgObject>();
+         recordedUnresolvedReference = false;
+         recordingUnsafe = false;
 
-      if (compositing)
-         popLayer(obj);
+         statePush();
+         renderUseTarget(ref, width, height);
+         statePop();
 
-      updateParentBoundingBox(obj);
+         picture.endRecording();
+         pool.parentStack[--parentDepth] = null;
+         return new SVGUseCache.Entry(recordingUnsafe ? null : picture, bounds.left, bounds.top, recordedReferences, recordedUnresolvedReference, obj.boundingBox);
+      }
+      finally
+      {
+         List<SvgObject>  references = recordedReferences;
+         boolean          hasUnresolvedReferences = recordedUnresolvedReference;
+         canvas = savedCanvas;
+         recordedReferences = savedReferences;
+         recordedUnresolvedReference = savedUnresolvedReference;
+         recordingUnsafe = savedUnsafe;
+         obj.boundingBox = savedBoundingBox;
+         // An outer display list chunk depends on the same references
+         if (recordedReferences != null) {
+            recordedReferences.addAll(references);
+            if (hasUnresolvedReferences)
+               recordedUnresolvedReference = true;
+         }
+      }
    }
 
 
@@ -1064,32 +2222,40 @@ public class SVGAndroidRenderer
    {
       debug("Path render");
 
-      if (obj.d == null)
+      if (obj.d == null) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       updateStyleForElement(state, obj);
 
-      if (!display())
-         return;
-      if (!visible())
+      if (!display() || !visible()) {
+         setEmptyVisualBounds(obj);
          return;
-      if (!state.hasStroke && !state.hasFill)
+      }
+      if (!state.hasStroke && !state.hasFill) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       if (obj.transform != null)
          canvas.concat(obj.transform);
 
-      Path  path = (new PathConverter(obj.d)).getPath();
-
-      if (obj.boundingBox == null) {
-         obj.boundingBox = calculatePathBounds(path);
-      }
+      Path  path = makePathAndBoundingBox(obj);
       updateParentBoundingBox(obj);
 
       checkForGradientsAndPatterns(obj);
+
+      if (renderAtLowDetail(obj)) {
+         setStrokedVisualBounds(obj, obj.transform, false);
+         return;
+      }
+
       checkForClipPath(obj);
+
+      path = simplifyPath(obj, path);
       
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       if (state.hasFill) {
          path.setFillType(getFillTypeFromState());
@@ -1102,6 +2268,8 @@ public class SVGAndroidRenderer
 
       if (compositing)
          popLayer(obj);
+
+      setStrokedVisualBounds(obj, obj.transform, hasMarkers());
    }
 
 
@@ -1120,15 +2288,17 @@ public class SVGAndroidRenderer
    {
       debug("Rect render");
 
-      if (obj.width == null || obj.height == null || obj.width.isZero() || obj.height.isZero())
+      if (obj.width == null || obj.height == null || obj.width.isZero() || obj.height.isZero()) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       updateStyleForElement(state, obj);
 
-      if (!display())
-         return;
-      if (!visible())
+      if (!display() || !visible()) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       if (obj.transform != null)
          canvas.concat(obj.transform);
@@ -1137,9 +2307,15 @@ public class SVGAndroidRenderer
       updateParentBoundingBox(obj);
 
       checkForGradientsAndPatterns(obj);
+
+      if (renderAtLowDetail(obj)) {
+         setStrokedVisualBounds(obj, obj.transform, false);
+         return;
+      }
+
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       if (state.hasFill)
          doFilledPath(obj, path);
@@ -1149,6 +2325,8 @@ public class SVGAndroidRenderer
 
       if (compositing)
          popLayer(obj);
+
+      setStrokedVisualBounds(obj, obj.transform, false);
    }
 
 
@@ -1159,15 +2337,17 @@ public class SVGAndroidRenderer
    {
       debug("Circle render");
 
-      if (obj.r == null || obj.r.isZero())
+      if (obj.r == null || obj.r.isZero()) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       updateStyleForElement(state, obj);
 
-      if (!display())
-         return;
-      if (!visible())
+      if (!display() || !visible()) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       if (obj.transform != null)
          canvas.concat(obj.transform);
@@ -1176,9 +2356,15 @@ public class SVGAndroidRenderer
       updateParentBoundingBox(obj);
 
       checkForGradientsAndPatterns(obj);
+
+      if (renderAtLowDetail(obj)) {
+         setStrokedVisualBounds(obj, obj.transform, false);
+         return;
+      }
+
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       if (state.hasFill)
          doFilledPath(obj, path);
@@ -1187,6 +2373,8 @@ public class SVGAndroidRenderer
 
       if (compositing)
          popLayer(obj);
+
+      setStrokedVisualBounds(obj, obj.transform, false);
    }
 
 
@@ -1197,15 +2385,17 @@ public class SVGAndroidRenderer
    {
       debug("Ellipse render");
 
-      if (obj.rx == null || obj.ry == null || obj.rx.isZero() || obj.ry.isZero())
+      if (obj.rx == null || obj.ry == null || obj.rx.isZero() || obj.ry.isZero()) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       updateStyleForElement(state, obj);
 
-      if (!display())
-         return;
-      if (!visible())
+      if (!display() || !visible()) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       if (obj.transform != null)
          canvas.concat(obj.transform);
@@ -1214,9 +2404,15 @@ public class SVGAndroidRenderer
       updateParentBoundingBox(obj);
 
       checkForGradientsAndPatterns(obj);
+
+      if (renderAtLowDetail(obj)) {
+         setStrokedVisualBounds(obj, obj.transform, false);
+         return;
+      }
+
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       if (state.hasFill)
          doFilledPath(obj, path);
@@ -1225,6 +2421,8 @@ public class SVGAndroidRenderer
 
       if (compositing)
          popLayer(obj);
+
+      setStrokedVisualBounds(obj, obj.transform, false);
    }
 
 
@@ -1237,12 +2435,14 @@ public class SVGAndroidRenderer
 
       updateStyleForElement(state, obj);
 
-      if (!display())
+      if (!display() || !visible()) {
+         setEmptyVisualBounds(obj);
          return;
-      if (!visible())
-         return;
-      if (!state.hasStroke)
+      }
+      if (!state.hasStroke) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       if (obj.transform != null)
          canvas.concat(obj.transform);
@@ -1251,9 +2451,15 @@ public class SVGAndroidRenderer
       updateParentBoundingBox(obj);
 
       checkForGradientsAndPatterns(obj);
+
+      if (renderAtLowDetail(obj)) {
+         setStrokedVisualBounds(obj, obj.transform, false);
+         return;
+      }
+
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       doStroke(path);
 
@@ -1261,6 +2467,8 @@ public class SVGAndroidRenderer
 
       if (compositing)
          popLayer(obj);
+
+      setStrokedVisualBounds(obj, obj.transform, hasMarkers());
    }
 
 
@@ -1288,27 +2496,37 @@ public class SVGAndroidRenderer
 
       updateStyleForElement(state, obj);
 
-      if (!display())
-         return;
-      if (!visible())
+      if (!display() || !visible()) {
+         setEmptyVisualBounds(obj);
          return;
-      if (!state.hasStroke && !state.hasFill)
+      }
+      if (!state.hasStroke && !state.hasFill) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       if (obj.transform != null)
          canvas.concat(obj.transform);
 
       int  numPoints = obj.points == null ? 0 : obj.points.length;
-      if (numPoints < 2)
+      if (numPoints < 2) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       Path  path = makePathAndBoundingBox(obj);
       updateParentBoundingBox(obj);
 
       checkForGradientsAndPatterns(obj);
+
+      if (renderAtLowDetail(obj)) {
+         setStrokedVisualBounds(obj, obj.transform, false);
+         return;
+      }
+
       checkForClipPath(obj);
       
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       if (state.hasFill)
          doFilledPath(obj, path);
@@ -1319,6 +2537,8 @@ public class SVGAndroidRenderer
 
       if (compositing)
          popLayer(obj);
+
+      setStrokedVisualBounds(obj, obj.transform, hasMarkers());
    }
 
 
@@ -1372,27 +2592,37 @@ public class SVGAndroidRenderer
 
       updateStyleForElement(state, obj);
 
-      if (!display())
-         return;
-      if (!visible())
+      if (!display() || !visible()) {
+         setEmptyVisualBounds(obj);
          return;
-      if (!state.hasStroke && !state.hasFill)
+      }
+      if (!state.hasStroke && !state.hasFill) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       if (obj.transform != null)
          canvas.concat(obj.transform);
 
       int  numPoints = obj.points == null ? 0 : obj.points.length;
-      if (numPoints < 2)
+      if (numPoints < 2) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       Path  path = makePathAndBoundingBox(obj);
       updateParentBoundingBox(obj);
 
       checkForGradientsAndPatterns(obj);
+
+      if (renderAtLowDetail(obj)) {
+         setStrokedVisualBounds(obj, obj.transform, false);
+         return;
+      }
+
       checkForClipPath(obj);
       
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       if (state.hasFill)
          doFilledPath(obj, path);
@@ -1403,6 +2633,8 @@ public class SVGAndroidRenderer
 
       if (compositing)
          popLayer(obj);
+
+      setStrokedVisualBounds(obj, obj.transform, hasMarkers());
    }
 
 
@@ -1415,8 +2647,10 @@ public class SVGAndroidRenderer
 
       updateStyleForElement(state, obj);
 
-      if (!display())
+      if (!display()) {
+         setEmptyVisualBounds(obj);
          return;
+      }
 
       if (obj.transform != null)
          canvas.concat(obj.transform);
@@ -1448,12 +2682,23 @@ public class SVGAndroidRenderer
       checkForGradientsAndPatterns(obj);
       checkForClipPath(obj);
       
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       enumerateTextSpans(obj, new PlainTextDrawer(x + dx, y + dy));
 
       if (compositing)
          popLayer(obj);
+
+      // The bounding box only covers simple text at the first position
+      boolean  simpleText = (dx == 0 && dy == 0);
+      for (SVG.SvgObject child: obj.getChildren()) {
+         if (!(child instanceof TextSequence))
+            simpleText = false;
+      }
+      if (simpleText)
+         setStrokedVisualBounds(obj, obj.transform, false);
+      else
+         setVisualBounds(obj, null, null);
    }
 
 
@@ -1479,20 +2724,27 @@ public class SVGAndroidRenderer
       }
 
       @Override
-      public void processText(String text)
+      public void processText(String text, float width)
       {
          debug("TextSequence render");
 
          if (visible())
          {
-            if (state.hasFill)
-               canvas.drawText(text, x, y, state.fillPaint);
-            if (state.hasStroke)
-               canvas.drawText(text, x, y, state.strokePaint);
+            if (isTextBelowDetailThreshold())
+            {
+               drawTextAsBar(x, y, width);
+            }
+            else
+            {
+               if (state.hasFill)
+                  canvas.drawText(text, x, y, state.fillPaint);
+               if (state.hasStroke)
+                  canvas.drawText(text, x, y, state.strokePaint);
+            }
          }
 
          // Update the current text position
-         x += state.fillPaint.measureText(text);
+         x += width;
       }
    }
 
@@ -1503,12 +2755,16 @@ public class SVGAndroidRenderer
 
    private abstract class  TextProcessor
    {
+      // Set if the text depends on another element, through a <tref> or <textPath>
+      public boolean  usedReference = false;
+
       public boolean  doTextContainer(TextContainer obj)
       {
          return true;
       }
 
-      public abstract void  processText(String text);
+      // 'width' is the advance width of the text with the current font
+      public abstract void  processText(String text, float width);
    }
 
 
@@ -1529,7 +2785,8 @@ public class SVGAndroidRenderer
          SvgObject  child = iter.next();
 
          if (child instanceof SVG.TextSequence) {
-            textprocessor.processText(textXMLSpaceTransform(((SVG.TextSequence) child).text, isFirstChild, !iter.hasNext() /*isLastChild*/));
+            SVGTextLayoutCache.Run  run = getTextRun(obj, (SVG.TextSequence) child, isFirstChild, !iter.hasNext() /*isLastChild*/);
+            textprocessor.processText(run.text, run.width);
          } else {
             processTextChild(child, textprocessor);
          }
@@ -1546,6 +2803,8 @@ public class SVGAndroidRenderer
 
       if (obj instanceof SVG.TextPath)
       {
+         textprocessor.usedReference = true;
+
          // Save state
          statePush();
 
@@ -1583,7 +2842,7 @@ public class SVGAndroidRenderer
                ((PlainTextDrawer) textprocessor).y = y + dy;
             }
 
-            boolean  compositing = pushLayer();
+            boolean  compositing = pushLayer(tspan);
 
             enumerateTextSpans(tspan, textprocessor);
 
@@ -1608,14 +2867,16 @@ public class SVGAndroidRenderer
             checkForGradientsAndPatterns((SvgElement) tref.getTextRoot());
 
             // Locate the referenced object
-            SVG.SvgObject  ref = obj.document.resolveIRI(tref.href);
+            SVG.SvgObject  ref = resolveIRI(obj.document, tref.href);
             if (ref != null && (ref instanceof TextContainer))
             {
                StringBuilder  str = new StringBuilder();
                extractRawText((TextContainer) ref, str);
                if (str.length() > 0) {
-                  textprocessor.processText(str.toString());
+                  String  text = str.toString();
+                  textprocessor.processText(text, state.fillPaint.measureText(text));
                }
+               textprocessor.usedReference = true;
             }
             else
             {
@@ -1643,7 +2904,7 @@ public class SVGAndroidRenderer
       if (!visible())
          return;
 
-      SVG.SvgObject  ref = obj.document.resolveIRI(obj.href);
+      SVG.SvgObject  ref = resolveIRI(obj.document, obj.href);
       if (ref == null)
       {
          error("TextPath reference '%s' not found", obj.href);
@@ -1651,7 +2912,7 @@ public class SVGAndroidRenderer
       }
 
       SVG.Path     pathObj = (SVG.Path) ref;
-      Path         path = (new PathConverter(pathObj.d)).getPath();
+      Path         path = new Path(makePathAndBoundingBox(pathObj));
 
       if (pathObj.transform != null)
          path.transform(pathObj.transform);
@@ -1673,7 +2934,7 @@ public class SVGAndroidRenderer
 
       checkForGradientsAndPatterns((SvgElement) obj.getTextRoot());
       
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       enumerateTextSpans(obj, new PathTextDrawer(path, startOffset, 0f));
 
@@ -1693,7 +2954,7 @@ public class SVGAndroidRenderer
       }
 
       @Override
-      public void processText(String text)
+      public void processText(String text, float width)
       {
          if (visible())
          {
@@ -1704,7 +2965,7 @@ public class SVGAndroidRenderer
          }
 
          // Update the current text position
-         x += state.fillPaint.measureText(text);
+         x += width;
       }
    }
 
@@ -1719,8 +2980,22 @@ public class SVGAndroidRenderer
     */
    private float  calculateTextWidth(TextContainer parentTextObj)
    {
+      SvgObject           textRoot = getTextRoot(parentTextObj);
+      SVGTextLayoutCache  cache = (parentTextObj.document != null) ? parentTextObj.document.getTextLayoutCache() : null;
+      Typeface            typeface = state.fillPaint.getTypeface();
+      float               textSize = state.fillPaint.getTextSize();
+      if (cache != null)
+      {
+         SVGTextLayoutCache.Run  run = cache.get(textRoot, parentTextObj, null, typeface, textSize, state.spacePreserve, parentTextObj.document.visualBoundsGeneration);
+         if (run != null)
+            return run.width;
+      }
+
       TextWidthCalculator  proc = new TextWidthCalculator();
       enumerateTextSpans(parentTextObj, proc);
+      // The elements referenced by a <tref> or <textPath> can change without the layout being discarded
+      if (cache != null && !proc.usedReference)
+         cache.put(textRoot, parentTextObj, new SVGTextLayoutCache.Run(null, null, proc.x, typeface, textSize, state.spacePreserve));
       return proc.x;
    }
 
@@ -1729,13 +3004,46 @@ public class SVGAndroidRenderer
       public float x = 0;
 
       @Override
-      public void processText(String text)
+      public void processText(String text, float width)
       {
-         x += state.fillPaint.measureText(text);
+         x += width;
       }
    }
 
 
+   /*
+    * Returns the text of a text node of 'parent', transformed by the xml:space rules, and its advance
+    * width with the current font. Taken from the document's text layout cache if already measured.
+    */
+   private SVGTextLayoutCache.Run  getTextRun(TextContainer parent, SVG.TextSequence seq, boolean isFirstChild, boolean isLastChild)
+   {
+      SvgObject           textRoot = getTextRoot(parent);
+      SVGTextLayoutCache  cache = (seq.document != null) ? seq.document.getTextLayoutCache() : null;
+      Typeface            typeface = state.fillPaint.getTypeface();
+      float               textSize = state.fillPaint.getTextSize();
+      if (cache != null)
+      {
+         SVGTextLayoutCache.Run  run = cache.get(textRoot, seq, seq.text, typeface, textSize, state.spacePreserve, seq.document.visualBoundsGeneration);
+         if (run != null)
+            return run;
+      }
+
+      String                  text = textXMLSpaceTransform(seq.text, isFirstChild, isLastChild);
+      SVGTextLayoutCache.Run  run = new SVGTextLayoutCache.Run(seq.text, text, state.fillPaint.measureText(text), typeface, textSize, state.spacePreserve);
+      if (cache != null)
+         cache.put(textRoot, seq, run);
+      return run;
+   }
+
+
+   private static SvgObject  getTextRoot(TextContainer obj)
+   {
+      if (obj instanceof SVG.TextChild && ((SVG.TextChild) obj).getTextRoot() instanceof SvgObject)
+         return (SvgObject) ((SVG.TextChild) obj).getTextRoot();
+      return obj;
+   }
+
+
    //==============================================================================
 
 
@@ -1762,13 +3070,13 @@ public class SVGAndroidRenderer
             // Since we cheat a bit with our textPath rendering, we need
             // to cheat a bit with our bbox calculation.
             SVG.TextPath  tpath = (SVG.TextPath) obj;
-            SVG.SvgObject  ref = obj.document.resolveIRI(tpath.href);
+            SVG.SvgObject  ref = resolveIRI(obj.document, tpath.href);
             if (ref == null) {
                error("TextPath path reference '%s' not found", tpath.href);
                return false;
             }
             SVG.Path  pathObj = (SVG.Path) ref;
-            Path      path = (new PathConverter(pathObj.d)).getPath();
+            Path      path = new Path(makePathAndBoundingBox(pathObj));
             if (pathObj.transform != null)
                path.transform(pathObj.transform);
             RectF     pathBounds = new RectF();
@@ -1780,7 +3088,7 @@ public class SVGAndroidRenderer
       }
 
       @Override
-      public void processText(String text)
+      public void processText(String text, float width)
       {
          if (visible())
          {
@@ -1795,7 +3103,7 @@ public class SVGAndroidRenderer
          }
 
          // Update the current text position
-         x += state.fillPaint.measureText(text);
+         x += width;
       }
    }
 
@@ -1872,7 +3180,7 @@ public class SVGAndroidRenderer
          state.viewBox = obj.viewBox;
       }
       
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(obj);
 
       renderChildren(obj, true);
 
@@ -1900,55 +3208,6 @@ public class SVGAndroidRenderer
       // "If attribute 'preserveAspectRatio' is not specified, then the effect is as if a value of xMidYMid meet were specified."
       PreserveAspectRatio  positioning = (obj.preserveAspectRatio != null) ? obj.preserveAspectRatio : PreserveAspectRatio.LETTERBOX;
 
-      // Locate the referenced image
-      Bitmap image = obj.cacheBitmap;
-      if (image == null && obj.cacheFile != null && obj.cacheFile.exists())
-      {
-    	  image = BitmapFactory.decodeFile(obj.cacheFile.getAbsolutePath());
-      }
-      if (image == null)
-      {
-          image = checkForImageDataURL(obj.href);
-      }
-      if (image == null)
-      {
-         SVGExternalFileResolver  fileResolver = document.getFileResolver();
-         if (fileResolver == null)
-            return;
-
-         image = fileResolver.resolveImage(obj.href);
-      }
-      else if (obj.cacheFile == null || ! obj.cacheFile.exists())
-      {
-    	  // Cache bitmap
-          int  comma = obj.href.indexOf(',');
-          String mime = obj.href.substring(6, comma).toLowerCase(Locale.getDefault());
-          if (mime.startsWith("image/jpg") || mime.startsWith("image/jpg"))
-          {
-        	try
-			{
-          	  File f = File.createTempFile("picture_"+obj.hashCode(), ".svg.jpg");
-        	  f.deleteOnExit();
-          	  FileOutputStream stream = new FileOutputStream(f);
-          	  image.compress(CompressFormat.JPEG, 100, stream);
-			  stream.close();
-			  obj.cacheFile = f;
-			}
-			catch (IOException e)
-			{
-				e.printStackTrace();
-			}
-         }
-      }
-      if (image == null) {
-         error("Could not locate image '%s'", obj.href);
-         return;
-      }
-
-      if (! image.equals(obj.cacheBitmap))
-      {
-    	  obj.cacheBitmap = image;
-      }
       updateStyleForElement(state, obj);
 
       if (!display())
@@ -1956,6 +3215,39 @@ public class SVGAndroidRenderer
       if (!visible())
          return;
 
+      // Locate the referenced image. Its full size is needed to lay it out, before it can be decoded.
+      SVGImageCache            cache = SVGImageCache.getDefault();
+      boolean                  isDataURL = isImageDataURL(obj.href);
+      byte[]                   imageData = null;
+      SVGExternalFileResolver  fileResolver = null;
+      Bitmap                   fullImage = null;
+      if (!isDataURL) {
+         fileResolver = document.getFileResolver();
+         if (fileResolver == null)
+            return;
+      }
+      int[]  imageSize = cache.getImageSize(fileResolver, obj.href);
+      if (imageSize == null)
+      {
+         if (isDataURL) {
+            imageData = decodeImageDataURL(obj.href);
+            BitmapFactory.Options  options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(imageData, 0, imageData.length, options);
+            if (options.outWidth > 0 && options.outHeight > 0)
+               imageSize = new int[] {options.outWidth, options.outHeight};
+         } else {
+            fullImage = fileResolver.resolveImage(obj.href);
+            if (fullImage != null)
+               imageSize = new int[] {fullImage.getWidth(), fullImage.getHeight()};
+         }
+         if (imageSize == null) {
+            error("Could not locate image '%s'", obj.href);
+            return;
+         }
+         cache.putImageSize(fileResolver, obj.href, imageSize);
+      }
+
       if (obj.transform != null) {
          canvas.concat(obj.transform);
       }
@@ -1970,45 +3262,103 @@ public class SVGAndroidRenderer
          setClipRect(state.viewPort.minX, state.viewPort.minY, state.viewPort.width, state.viewPort.height);
       }
 
-      obj.boundingBox = new SVG.Box(0,  0,  image.getWidth(), image.getHeight());
+      obj.boundingBox = new SVG.Box(0,  0,  imageSize[0], imageSize[1]);
       canvas.concat(calculateViewBoxTransform(state.viewPort, obj.boundingBox, positioning));
 
       updateParentBoundingBox(obj);
 
       checkForClipPath(obj);
 
-      boolean  compositing = pushLayer();
+      // Decode the image at about the size it is drawn at on the device. When recording, or not drawing
+      // directly to the device, the final size isn't known, so the full size is used.
+      int  sampleSize = 1;
+      if (state.directRendering && recordedReferences == null)
+         sampleSize = SVGImageCache.calculateSampleSize(getDeviceScale());
+
+      Bitmap  image = cache.get(fileResolver, obj.href, sampleSize);
+      if (image == null)
+      {
+         if (isDataURL && imageData == null)
+            imageData = decodeImageDataURL(obj.href);
+         image = decodeImage(obj.href, imageData, fileResolver, fullImage, sampleSize);
+         if (image == null) {
+            error("Could not locate image '%s'", obj.href);
+            return;
+         }
+         cache.put(fileResolver, obj.href, sampleSize, image);
+      }
+
+      boolean  compositing = pushLayer(obj);
 
       viewportFill();
 
-      canvas.drawBitmap(image, 0, 0, emptyPaint);
+      if (image.getWidth() == imageSize[0] && image.getHeight() == imageSize[1]) {
+         canvas.drawBitmap(image, 0, 0, emptyPaint);
+      } else {
+         // Draw the sampled down image over the area of the full size one
+         imageRect.set(0, 0, imageSize[0], imageSize[1]);
+         canvas.drawBitmap(image, null, imageRect, imagePaint);
+      }
 
       if (compositing)
          popLayer(obj);
    }
 
 
+   /*
+    * Decode an image, sampled down by 'sampleSize'. 'imageData' is the content of a data URL, or null
+    * if the image comes from the file resolver. 'fullImage' is the full size image from the resolver,
+    * if it has already been obtained.
+    */
+   private Bitmap  decodeImage(String href, byte[] imageData, SVGExternalFileResolver fileResolver, Bitmap fullImage, int sampleSize)
+   {
+      if (imageData != null)
+      {
+         BitmapFactory.Options  options = new BitmapFactory.Options();
+         options.inSampleSize = sampleSize;
+         return BitmapFactory.decodeByteArray(imageData, 0, imageData.length, options);
+      }
+
+      // Resolvers provide the image at full size, so scale it down ourselves
+      if (fullImage == null)
+         fullImage = fileResolver.resolveImage(href);
+      if (fullImage == null || sampleSize == 1)
+         return fullImage;
+      int  width = Math.max(1, fullImage.getWidth() / sampleSize);
+      int  height = Math.max(1, fullImage.getHeight() / sampleSize);
+      return Bitmap.createScaledBitmap(fullImage, width, height, true);
+   }
+
+
    //==============================================================================
 
 
    /*
-    * Check for an decode an image encoded in a data URL.
+    * Check for an image encoded in a data URL.
     * We don't handle all permutations of data URLs. Only base64 ones.
     */
-   private Bitmap  checkForImageDataURL(String url)
+   private boolean  isImageDataURL(String url)
    {
       if (!url.startsWith("data:"))
-         return null;
+         return false;
       if (url.length() < 14)
-         return null;
+         return false;
 
       int  comma = url.indexOf(',');
       if (comma == -1 || comma < 12)
-         return null;
-      if (!";base64".equals(url.substring(comma-7, comma)))
-         return null;
-      byte[]  imageData = Base64.decode(url.substring(comma+1), Base64.DEFAULT);
-      return BitmapFactory.decodeByteArray(imageData, 0,  imageData.length);
+         return false;
+      return url.startsWith(";base64", comma-7);
+   }
+
+
+   /*
+    * Decode the content of an image encoded in a data URL. The URL must have been checked
+    * with isImageDataURL().
+    */
+   private byte[]  decodeImageDataURL(String url)
+   {
+      int  comma = url.indexOf(',');
+      return Base64.decode(url.substring(comma+1), Base64.DEFAULT);
    }
 
 
@@ -2040,7 +3390,7 @@ public class SVGAndroidRenderer
     * Note values in the two Box parameters whould be in user units. If you pass values
     * that are in "objectBoundingBox" space, you will get incorrect results.
     */
-   private Matrix calculateViewBoxTransform(Box viewPort, Box viewBox, PreserveAspectRatio positioning)
+   static Matrix calculateViewBoxTransform(Box viewPort, Box viewBox, PreserveAspectRatio positioning)
    {
       Matrix m = new Matrix();
 
@@ -2179,10 +3529,14 @@ public class SVGAndroidRenderer
       if (isSpecified(style, SVG.SPECIFIED_STROKE_WIDTH))
       {
          state.style.strokeWidth = style.strokeWidth;
-         state.strokePaint.setStrokeWidth(state.style.strokeWidth.floatValue(this));
+         float  strokeWidth = state.style.strokeWidth.floatValue(this);
+         if (strokeWidth != state.strokePaint.getStrokeWidth())
+            state.strokePaint.setStrokeWidth(strokeWidth);
       }
 
-      if (isSpecified(style, SVG.SPECIFIED_STROKE_LINECAP))
+      // The Paints always match the properties in state.style, so they only need to be
+      // updated when a property changes value.
+      if (isSpecified(style, SVG.SPECIFIED_STROKE_LINECAP) && style.strokeLineCap != state.style.strokeLineCap)
       {
          state.style.strokeLineCap = style.strokeLineCap;
          switch (style.strokeLineCap)
@@ -2201,7 +3555,7 @@ public class SVGAndroidRenderer
          }
       }
 
-      if (isSpecified(style, SVG.SPECIFIED_STROKE_LINEJOIN))
+      if (isSpecified(style, SVG.SPECIFIED_STROKE_LINEJOIN) && style.strokeLineJoin != state.style.strokeLineJoin)
       {
          state.style.strokeLineJoin = style.strokeLineJoin;
          switch (style.strokeLineJoin)
@@ -2220,7 +3574,7 @@ public class SVGAndroidRenderer
          }
       }
 
-      if (isSpecified(style, SVG.SPECIFIED_STROKE_MITERLIMIT))
+      if (isSpecified(style, SVG.SPECIFIED_STROKE_MITERLIMIT) && !objectsEqual(style.strokeMiterLimit, state.style.strokeMiterLimit))
       {
          state.style.strokeMiterLimit = style.strokeMiterLimit;
          state.strokePaint.setStrokeMiter(style.strokeMiterLimit);
@@ -2241,7 +3595,7 @@ public class SVGAndroidRenderer
          // Either the dash array or dash offset has changed.
          if (state.style.strokeDashArray == null)
          {
-            state.strokePaint.setPathEffect(null);
+            setDashPathEffect(state, null, 0, 0f);
          }
          else
          {
@@ -2250,13 +3604,15 @@ public class SVGAndroidRenderer
             // SVG dash arrays can be odd length, whereas Android dash arrays must have an even length.
             // So we solve the problem by doubling the array length.
             int    arrayLen = (n % 2==0) ? n : n*2;
-            float[] intervals = new float[arrayLen];
+            if (dashScratch.length < arrayLen)
+               dashScratch = new float[arrayLen];
+            float[] intervals = dashScratch;
             for (int i=0; i<arrayLen; i++) {
                intervals[i] = state.style.strokeDashArray[i % n].floatValue(this);
                intervalSum += intervals[i];
             }
             if (intervalSum == 0f) {
-               state.strokePaint.setPathEffect(null);
+               setDashPathEffect(state, null, 0, 0f);
             } else {
                float offset = state.style.strokeDashOffset.floatValue(this);
                if (offset < 0) {
@@ -2264,7 +3620,7 @@ public class SVGAndroidRenderer
                   // Just in case we will convert it.
                   offset = intervalSum + (offset % intervalSum);
                }
-               state.strokePaint.setPathEffect( new DashPathEffect(intervals, offset) );
+               setDashPathEffect(state, intervals, arrayLen, offset);
             }
          }
       }
@@ -2273,10 +3629,17 @@ public class SVGAndroidRenderer
       {
          float  currentFontSize = getCurrentFontSize();
          state.style.fontSize = style.fontSize;
-         state.fillPaint.setTextSize(style.fontSize.floatValue(this, currentFontSize));
-         state.strokePaint.setTextSize(style.fontSize.floatValue(this, currentFontSize));
+         float  fontSize = style.fontSize.floatValue(this, currentFontSize);
+         if (fontSize != state.fillPaint.getTextSize()) {
+            state.fillPaint.setTextSize(fontSize);
+            state.strokePaint.setTextSize(fontSize);
+         }
       }
 
+      List<String>     previousFontFamily = state.style.fontFamily;
+      Integer          previousFontWeight = state.style.fontWeight;
+      Style.FontStyle  previousFontStyle = state.style.fontStyle;
+
       if (isSpecified(style, SVG.SPECIFIED_FONT_FAMILY))
       {
          state.style.fontFamily = style.fontFamily;
@@ -2299,7 +3662,15 @@ public class SVGAndroidRenderer
       }
 
       // If typeface, weight or style has changed, update the paint typeface
-      if (isSpecified(style, SVG.SPECIFIED_FONT_FAMILY | SVG.SPECIFIED_FONT_WEIGHT | SVG.SPECIFIED_FONT_STYLE))
+      if (isSpecified(style, SVG.SPECIFIED_FONT_FAMILY | SVG.SPECIFIED_FONT_WEIGHT | SVG.SPECIFIED_FONT_STYLE) &&
+          state.typefaceValid &&
+          objectsEqual(state.style.fontFamily, previousFontFamily) &&
+          objectsEqual(state.style.fontWeight, previousFontWeight) &&
+          state.style.fontStyle == previousFontStyle)
+      {
+         paintUpdateSkipCount++;
+      }
+      else if (isSpecified(style, SVG.SPECIFIED_FONT_FAMILY | SVG.SPECIFIED_FONT_WEIGHT | SVG.SPECIFIED_FONT_STYLE))
       {
          SVGExternalFileResolver  fileResolver = null;
          Typeface  font = null;
@@ -2308,9 +3679,9 @@ public class SVGAndroidRenderer
             fileResolver = document.getFileResolver();
 
             for (String fontName: state.style.fontFamily) {
-               font = checkGenericFont(fontName, state.style.fontWeight, state.style.fontStyle);
+               font = getGenericFont(fontName, state.style.fontWeight, state.style.fontStyle);
                if (font == null && fileResolver != null) {
-                  font = fileResolver.resolveFont(fontName, state.style.fontWeight, String.valueOf(state.style.fontStyle));
+                  font = SVGTypefaceCache.getDefault().resolveFont(fileResolver, fontName, state.style.fontWeight, state.style.fontStyle);
                }
                if (font != null)
                   break;
@@ -2318,13 +3689,15 @@ public class SVGAndroidRenderer
          }
          if (font == null) {
             // Fall back to default font
-            font = checkGenericFont(DEFAULT_FONT_FAMILY, state.style.fontWeight, state.style.fontStyle);
+            font = getGenericFont(DEFAULT_FONT_FAMILY, state.style.fontWeight, state.style.fontStyle);
          }
          state.fillPaint.setTypeface(font);
          state.strokePaint.setTypeface(font);
+         state.typefaceValid = true;
+         paintUpdateCount++;
       }
 
-      if (isSpecified(style, SVG.SPECIFIED_TEXT_DECORATION))
+      if (isSpecified(style, SVG.SPECIFIED_TEXT_DECORATION) && style.textDecoration != state.style.textDecoration)
       {
          state.style.textDecoration = style.textDecoration;
          state.fillPaint.setStrikeThruText(style.textDecoration == TextDecoration.LineThrough);
@@ -2412,11 +3785,88 @@ public class SVGAndroidRenderer
          state.style.viewportFill = style.viewportFill;
       }
 
-      if (isSpecified(style, SVG.SPECIFIED_VIEWPORT_FILL_OPACITY))
-      {
-         state.style.viewportFillOpacity = style.viewportFillOpacity;
-      }
+      if (isSpecified(style, SVG.SPECIFIED_VIEWPORT_FILL_OPACITY))
+      {
+         state.style.viewportFillOpacity = style.viewportFillOpacity;
+      }
+
+   }
+
+
+   /*
+    * Set the dash path effect of the stroke Paint, unless it already has one with the same intervals.
+    * 'intervals' may be a scratch array, of which the first 'count' elements are used.
+    */
+   private void  setDashPathEffect(RendererState state, float[] intervals, int count, float offset)
+   {
+      if (intervals == null)
+      {
+         if (state.dashIntervals == null) {
+            paintUpdateSkipCount++;
+            return;
+         }
+         state.strokePaint.setPathEffect(null);
+         state.dashIntervals = null;
+         paintUpdateCount++;
+         return;
+      }
+
+      if (state.dashIntervals != null && state.dashIntervals.length == count && state.dashOffset == offset)
+      {
+         boolean  same = true;
+         for (int i=0; i<count && same; i++)
+            same = (state.dashIntervals[i] == intervals[i]);
+         if (same) {
+            paintUpdateSkipCount++;
+            return;
+         }
+      }
+
+      float[]  newIntervals = new float[count];
+      System.arraycopy(intervals, 0, newIntervals, 0, count);
+      state.strokePaint.setPathEffect( new DashPathEffect(newIntervals, offset) );
+      state.dashIntervals = newIntervals;
+      state.dashOffset = offset;
+      paintUpdateCount++;
+   }
+
+
+   /*
+    * Set the shader of a Paint, if it is not already set to it.
+    */
+   private void  setPaintShader(Paint paint, Shader shader)
+   {
+      if (paint.getShader() == shader) {
+         paintUpdateSkipCount++;
+         return;
+      }
+      paint.setShader(shader);
+      paintUpdateCount++;
+   }
+
+
+   private static boolean  objectsEqual(Object a, Object b)
+   {
+      return (a == b) || (a != null && a.equals(b));
+   }
+
+
+   /*
+    * Returns the number of typeface, dash path effect and shader changes that were made to Paints.
+    */
+   int  getPaintUpdateCount()
+   {
+      return paintUpdateCount;
+   }
+
 
+   /*
+    * Returns the number of typeface, dash path effect and shader changes that were skipped
+    * because the Paint already had that value, for example when sibling elements have the same style.
+    */
+   int  getPaintUpdateSkipCount()
+   {
+      return paintUpdateSkipCount;
    }
 
 
@@ -2432,10 +3882,28 @@ public class SVGAndroidRenderer
          return;
       }
       col = clamp255(paintOpacity) << 24 | col;
-      if (isFill)
-         state.fillPaint.setColor(col);
-      else
-         state.strokePaint.setColor(col);
+      Paint  p = isFill ? state.fillPaint : state.strokePaint;
+      if (p.getColor() != col)
+         p.setColor(col);
+      // Remove any gradient inherited from the parent
+      if (p.getShader() != null)
+         setPaintShader(p, null);
+   }
+
+
+   /*
+    * Returns the Typeface for a generic font family, or null if the name isn't one.
+    * Results are kept in the shared Typeface cache.
+    */
+   private Typeface  getGenericFont(String fontName, Integer fontWeight, FontStyle fontStyle)
+   {
+      SVGTypefaceCache        cache = SVGTypefaceCache.getDefault();
+      SVGTypefaceCache.Entry  entry = cache.get(null, fontName, fontWeight, fontStyle);
+      if (entry != null)
+         return entry.typeface;
+      Typeface  font = checkGenericFont(fontName, fontWeight, fontStyle);
+      cache.put(null, fontName, fontWeight, fontStyle, font);
+      return font;
    }
 
 
@@ -2594,6 +4062,147 @@ public class SVGAndroidRenderer
    }
 
 
+   /*
+    * Converts a path definition to a Path made only of straight lines, for drawing at a low
+    * level of detail. Curves are flattened to within 'tolerance', and points closer than
+    * 'tolerance' to the previous point are dropped.
+    */
+   protected static class  SimplifiedPathConverter implements PathInterface
+   {
+      private static final int  MAX_CURVE_SEGMENTS = 64;
+
+      Path     path = new Path();
+      float    tolerance;
+      float    lastX, lastY;          // current point of the path definition
+      float    startX, startY;        // start of the current subpath
+      float    emittedX, emittedY;    // last point added to the Path
+      boolean  pending = false;       // whether the current point was dropped
+      int      pointCount = 0;
+
+      public SimplifiedPathConverter(PathDefinition pathDef, float tolerance)
+      {
+         this.tolerance = tolerance;
+         if (pathDef == null)
+            return;
+         pathDef.enumeratePath(this);
+         flush();
+      }
+
+      public Path  getPath()
+      {
+         return path;
+      }
+
+      public int  getPointCount()
+      {
+         return pointCount;
+      }
+
+      @Override
+      public void moveTo(float x, float y)
+      {
+         flush();
+         path.moveTo(x, y);
+         pointCount++;
+         lastX = startX = emittedX = x;
+         lastY = startY = emittedY = y;
+      }
+
+      @Override
+      public void lineTo(float x, float y)
+      {
+         addPoint(x, y);
+      }
+
+      @Override
+      public void cubicTo(float x1, float y1, float x2, float y2, float x3, float y3)
+      {
+         float  x0 = lastX, y0 = lastY;
+         // Wang's formula for the number of line segments needed
+         float  dd = Math.max(distance(x0 - 2*x1 + x2, y0 - 2*y1 + y2), distance(x1 - 2*x2 + x3, y1 - 2*y2 + y3));
+         int    n = segmentCount(0.75f * dd);
+         for (int i=1; i<n; i++)
+         {
+            float  t = (float) i / n;
+            float  mt = 1f - t;
+            float  a = mt * mt * mt, b = 3f * mt * mt * t, c = 3f * mt * t * t, d = t * t * t;
+            addPoint(a*x0 + b*x1 + c*x2 + d*x3, a*y0 + b*y1 + c*y2 + d*y3);
+         }
+         addPoint(x3, y3);
+      }
+
+      @Override
+      public void quadTo(float x1, float y1, float x2, float y2)
+      {
+         float  x0 = lastX, y0 = lastY;
+         int    n = segmentCount(0.25f * distance(x0 - 2*x1 + x2, y0 - 2*y1 + y2));
+         for (int i=1; i<n; i++)
+         {
+            float  t = (float) i / n;
+            float  mt = 1f - t;
+            float  a = mt * mt, b = 2f * mt * t, c = t * t;
+            addPoint(a*x0 + b*x1 + c*x2, a*y0 + b*y1 + c*y2);
+         }
+         addPoint(x2, y2);
+      }
+
+      @Override
+      public void arcTo(float rx, float ry, float xAxisRotation, boolean largeArcFlag, boolean sweepFlag, float x, float y)
+      {
+         SVGAndroidRenderer.arcTo(lastX, lastY, rx, ry, xAxisRotation, largeArcFlag, sweepFlag, x, y, this);
+         lastX = x;
+         lastY = y;
+      }
+
+      @Override
+      public void close()
+      {
+         flush();
+         path.close();
+         lastX = emittedX = startX;
+         lastY = emittedY = startY;
+      }
+
+      private void  addPoint(float x, float y)
+      {
+         lastX = x;
+         lastY = y;
+         if (distance(x - emittedX, y - emittedY) < tolerance) {
+            pending = true;
+            return;
+         }
+         path.lineTo(x, y);
+         pointCount++;
+         emittedX = x;
+         emittedY = y;
+         pending = false;
+      }
+
+      // Add the current point if it was dropped, so that the subpath ends in the right place
+      private void  flush()
+      {
+         if (!pending)
+            return;
+         path.lineTo(lastX, lastY);
+         pointCount++;
+         emittedX = lastX;
+         emittedY = lastY;
+         pending = false;
+      }
+
+      private int  segmentCount(float deviation)
+      {
+         int  n = (int) Math.ceil(Math.sqrt(deviation / tolerance));
+         return Math.max(1, Math.min(n, MAX_CURVE_SEGMENTS));
+      }
+
+      private static float  distance(float dx, float dy)
+      {
+         return (float) Math.sqrt(dx*dx + dy*dy);
+      }
+   }
+
+
    //=========================================================================
    // Handling of Arcs
 
@@ -2958,7 +4567,7 @@ public class SVGAndroidRenderer
       SVG.Marker  _markerEnd = null;
 
       if (state.style.markerStart != null) {
-         SVG.SvgObject  ref = obj.document.resolveIRI(state.style.markerStart);
+         SVG.SvgObject  ref = resolveIRI(obj.document, state.style.markerStart);
          if (ref != null)
             _markerStart = (SVG.Marker) ref;
          else
@@ -2966,7 +4575,7 @@ public class SVGAndroidRenderer
       }
 
       if (state.style.markerMid != null) {
-         SVG.SvgObject  ref = obj.document.resolveIRI(state.style.markerMid);
+         SVG.SvgObject  ref = resolveIRI(obj.document, state.style.markerMid);
          if (ref != null)
             _markerMid = (SVG.Marker) ref;
          else
@@ -2974,7 +4583,7 @@ public class SVGAndroidRenderer
       }
 
       if (state.style.markerEnd != null) {
-         SVG.SvgObject  ref = obj.document.resolveIRI(state.style.markerEnd);
+         SVG.SvgObject  ref = resolveIRI(obj.document, state.style.markerEnd);
          if (ref != null)
             _markerEnd = (SVG.Marker) ref;
          else
@@ -3000,52 +4609,42 @@ public class SVGAndroidRenderer
       state.style.markerStart = state.style.markerMid = state.style.markerEnd = null;
 
       if (_markerStart != null)
-         renderMarker(_markerStart, markers.get(0));
+         renderMarker(_markerStart, getMarkerInstance(_markerStart), markers.get(0));
 
-      if (_markerMid != null)
+      if (_markerMid != null && markerCount > 2)
       {
+         // Recorded once, then replayed at every vertex
+         SVGMarkerCache.Entry  instance = getMarkerInstance(_markerMid);
          for (int i=1; i<(markerCount-1); i++) {
-            renderMarker(_markerMid, markers.get(i));
+            renderMarker(_markerMid, instance, markers.get(i));
          }
       }
 
       if (_markerEnd != null)
-         renderMarker(_markerEnd, markers.get(markerCount-1));
+         renderMarker(_markerEnd, getMarkerInstance(_markerEnd), markers.get(markerCount-1));
    }
 
 
    /*
-    * Render the given marker type at the given position
+    * The transforms and clip that place the content of a marker relative to the marker
+    * position, once the marker has been rotated.
     */
-   private void renderMarker(Marker marker, MarkerVector pos)
+   private static class MarkerLayout
    {
-      float  angle = 0f;
-      float  unitsScale;
-
-      statePush();
+      Matrix  positionMatrix = new Matrix();  // units scale, and refX/refY alignment
+      Matrix  viewBoxMatrix = null;           // viewBox scale, if there is a viewBox
+      RectF   clip = null;                    // in the space of positionMatrix. Null if overflow is visible.
+   }
 
-      // Calculate vector angle
-      if (marker.orient != null)
-      {
-         if (Float.isNaN(marker.orient))  // Indicates "auto"
-         {
-            if (pos.dx != 0 || pos.dy != 0) {
-               angle = (float) Math.toDegrees( Math.atan2(pos.dy, pos.dx) );
-            }
-         } else {
-            angle = marker.orient;
-         }
-      }
-      // Calculate units scale
-      unitsScale = marker.markerUnitsAreUser ? 1f : state.style.strokeWidth.floatValue(dpi);
 
-      // "Properties inherit into the <marker> element from its ancestors; properties do not
-      // inherit from the element referencing the <marker> element." (sect 11.6.2)
-      state = findInheritFromAncestorState(marker);
+   /*
+    * Calculate the layout of a marker. The marker's state must be current.
+    */
+   private MarkerLayout  calculateMarkerLayout(Marker marker, float unitsScale)
+   {
+      MarkerLayout  layout = new MarkerLayout();
+      Matrix        m = layout.positionMatrix;
 
-      Matrix m = new Matrix();
-      m.preTranslate(pos.x, pos.y);
-      m.preRotate(angle);
       m.preScale(unitsScale, unitsScale);
       // Scale and/or translate the marker to fit in the marker viewPort
       float _refX = (marker.refX != null) ? marker.refX.floatValueX(this) : 0f;
@@ -3073,7 +4672,6 @@ public class SVGAndroidRenderer
 
          //m.preTranslate(viewPort.minX, viewPort.minY);
          m.preTranslate(-_refX * xScale, -_refY * yScale);
-         canvas.concat(m);
 
          // Now we need to take account of alignment setting, because it affects the
          // size and position of the clip rectangle.
@@ -3116,31 +4714,186 @@ public class SVGAndroidRenderer
          }
 
          if (!state.style.overflow) {
-            setClipRect(xOffset, yOffset, _markerWidth, _markerHeight);
+            layout.clip = new RectF(xOffset, yOffset, xOffset + _markerWidth, yOffset + _markerHeight);
          }
 
-         m.reset();
-         m.preScale(xScale, yScale);
-         canvas.concat(m);
+         layout.viewBoxMatrix = new Matrix();
+         layout.viewBoxMatrix.preScale(xScale, yScale);
       }
       else
       {
          // No viewBox provided
 
          m.preTranslate(-_refX, -_refY);
-         canvas.concat(m);
 
          if (!state.style.overflow) {
-            setClipRect(0, 0, _markerWidth, _markerHeight);
+            layout.clip = new RectF(0, 0, _markerWidth, _markerHeight);
          }
       }
+      return layout;
+   }
+
+
+   /*
+    * Render the content of a marker. The canvas must have been translated to the marker
+    * position and rotated, and the marker's state must be current.
+    */
+   private void  renderMarkerContent(Marker marker, MarkerLayout layout)
+   {
+      canvas.concat(layout.positionMatrix);
+      if (layout.clip != null) {
+         setClipRect(layout.clip.left, layout.clip.top, layout.clip.width(), layout.clip.height());
+      }
+      if (layout.viewBoxMatrix != null) {
+         canvas.concat(layout.viewBoxMatrix);
+      }
 
-      boolean  compositing = pushLayer();
+      boolean  compositing = pushLayer(marker);
 
+      referenceDepth++;
       renderChildren(marker, false);
+      referenceDepth--;
 
       if (compositing)
          popLayer(marker);
+   }
+
+
+   /*
+    * Returns the recorded picture of a marker for the current stroke width and viewport, from the
+    * document's marker cache, recording it if necessary. Returns null if the marker has to be rendered
+    * directly at each vertex.
+    */
+   private SVGMarkerCache.Entry  getMarkerInstance(Marker marker)
+   {
+      // Level of detail decisions depend on the final canvas transform, so can't be recorded
+      if (levelOfDetail != null || marker.indexedBy == null || !canDrawPictures())
+         return null;
+
+      SVGMarkerCache  cache = marker.indexedBy.getMarkerCache();
+      float           unitsScale = marker.markerUnitsAreUser ? 1f : state.style.strokeWidth.floatValue(dpi);
+      Box             viewPortUser = getCurrentViewPortInUserUnits();
+
+      SVGMarkerCache.Entry  entry = cache.get(marker, unitsScale, viewPortUser, marker.indexedBy.visualBoundsGeneration);
+      if (entry != null) {
+         addCachedReferences(entry.references, entry.hasUnresolvedReferences);
+         return entry;
+      }
+      entry = recordMarker(marker, unitsScale);
+      cache.put(marker, unitsScale, viewPortUser, entry);
+      return entry;
+   }
+
+
+   /*
+    * Record the content of a marker into a Picture. The picture is left out of the returned entry
+    * if the marker overflows its viewport, or used a feature that can't be recorded.
+    */
+   @SuppressWarnings("deprecation")
+   private SVGMarkerCache.Entry  recordMarker(Marker marker, float unitsScale)
+   {
+      statePush();
+
+      // "Properties inherit into the <marker> element from its ancestors; properties do not
+      // inherit from the element referencing the <marker> element." (sect 11.6.2)
+      state = findInheritFromAncestorState(marker);
+
+      MarkerLayout  layout = calculateMarkerLayout(marker, unitsScale);
+      if (layout.clip == null || layout.clip.isEmpty()) {
+         // The bounds of the content aren't known, or there is nothing to draw
+         statePop();
+         return new SVGMarkerCache.Entry(null, 0f, 0f, new ArrayList<SvgObject>(), false);
+      }
+
+      // The bounds of the marker relative to the marker position
+      RectF  bounds = new RectF(layout.clip);
+      layout.positionMatrix.mapRect(bounds);
+
+      Picture          picture = new Picture();
+      Canvas           savedCanvas = canvas;
+      List<SvgObject>  savedReferences = recordedReferences;
+      boolean          savedUnresolvedReference = recordedUnresolvedReference;
+      boolean          savedUnsafe = recordingUnsafe;
+      try
+      {
+         canvas = picture.beginRecording((int) Math.ceil(bounds.width()) + 1, (int) Math.ceil(bounds.height()) + 1);
+         canvas.translate(-bounds.left, -bounds.top);
+
+         recordedReferences = new ArrayList<SvgObject>();
+         recordedUnresolvedReference = false;
+         recordingUnsafe = false;
+
+         renderMarkerContent(marker, layout);
+
+         picture.endRecording();
+         return new SVGMarkerCache.Entry(recordingUnsafe ? null : picture, bounds.left, bounds.top, recordedReferences, recordedUnresolvedReference);
+      }
+      finally
+      {
+         List<SvgObject>  references = recordedReferences;
+         boolean          hasUnresolvedReferences = recordedUnresolvedReference;
+         canvas = savedCanvas;
+         recordedReferences = savedReferences;
+         recordedUnresolvedReference = savedUnresolvedReference;
+         recordingUnsafe = savedUnsafe;
+         // An outer display list chunk depends on the same references
+         if (recordedReferences != null) {
+            recordedReferences.addAll(references);
+            if (hasUnresolvedReferences)
+               recordedUnresolvedReference = true;
+         }
+         statePop();
+      }
+   }
+
+
+   /*
+    * Render the given marker type at the given position. If the marker has been recorded, its
+    * picture is replayed, otherwise it is rendered directly.
+    */
+   private void renderMarker(Marker marker, SVGMarkerCache.Entry instance, MarkerVector pos)
+   {
+      float  angle = 0f;
+
+      // Calculate vector angle
+      if (marker.orient != null)
+      {
+         if (Float.isNaN(marker.orient))  // Indicates "auto"
+         {
+            if (pos.dx != 0 || pos.dy != 0) {
+               angle = (float) Math.toDegrees( Math.atan2(pos.dy, pos.dx) );
+            }
+         } else {
+            angle = marker.orient;
+         }
+      }
+
+      if (instance != null && instance.picture != null)
+      {
+         canvas.save();
+         canvas.translate(pos.x, pos.y);
+         canvas.rotate(angle);
+         canvas.translate(instance.left, instance.top);
+         canvas.drawPicture(instance.picture);
+         canvas.restore();
+         markerReplayCount++;
+         return;
+      }
+
+      statePush();
+
+      // Calculate units scale
+      float  unitsScale = marker.markerUnitsAreUser ? 1f : state.style.strokeWidth.floatValue(dpi);
+
+      // "Properties inherit into the <marker> element from its ancestors; properties do not
+      // inherit from the element referencing the <marker> element." (sect 11.6.2)
+      state = findInheritFromAncestorState(marker);
+
+      MarkerLayout  layout = calculateMarkerLayout(marker, unitsScale);
+
+      canvas.translate(pos.x, pos.y);
+      canvas.rotate(angle);
+      renderMarkerContent(marker, layout);
 
       statePop();
    }
@@ -3152,9 +4905,21 @@ public class SVGAndroidRenderer
     */
    private RendererState  findInheritFromAncestorState(SvgObject obj)
    {
-      RendererState newState = new RendererState();
-      updateStyle(newState, Style.getDefaultStyle());
-      return findInheritFromAncestorState(obj, newState);
+      return findInheritFromAncestorState(obj, resetPushedState());
+   }
+
+
+   /*
+    * Reset the current state to the default style. The caller must have just pushed the state,
+    * so that the current state is a reused slot that nothing else refers to.
+    */
+   private RendererState  resetPushedState()
+   {
+      boolean  directRendering = state.directRendering;
+      state.reset();
+      state.directRendering = directRendering;
+      updateStyle(state, RendererState.DEFAULT_STYLE);
+      return state;
    }
 
 
@@ -3218,7 +4983,7 @@ public class SVGAndroidRenderer
     */
    private void  decodePaintReference(boolean isFill, Box boundingBox, PaintReference paintref)
    {
-      SVG.SvgObject  ref = document.resolveIRI(paintref.href);
+      SVG.SvgObject  ref = resolveIRI(document, paintref.href);
       if (ref == null)
       {
          error("%s reference '%s' not found", (isFill ? "Fill":"Stroke"), paintref.href);
@@ -3245,7 +5010,7 @@ public class SVGAndroidRenderer
    private void  makeLinearGradient(boolean isFill, Box boundingBox, SvgLinearGradient gradient)
    {
       if (gradient.href != null)
-         fillInChainedGradientFields(gradient, gradient.href);
+         resolveGradientChain(gradient);
 
       boolean  userUnits = (gradient.gradientUnitsAreUser != null && gradient.gradientUnitsAreUser);
       Paint    paint = isFill ? state.fillPaint : state.strokePaint;
@@ -3265,70 +5030,45 @@ public class SVGAndroidRenderer
          _y1 = (gradient.y1 != null) ? gradient.y1.floatValue(this, 1f): 0f;
          _x2 = (gradient.x2 != null) ? gradient.x2.floatValue(this, 1f): 1f;
          _y2 = (gradient.y2 != null) ? gradient.y2.floatValue(this, 1f): 0f;
-      }
-
-      // Push the state
-      statePush();
-
-      // Set the style for the gradient (inherits from its own ancestors, not from callee's state)
-      state = findInheritFromAncestorState(gradient);
-
-      // Calculate the gradient transform matrix
-      Matrix m = new Matrix();
-      if (!userUnits)
-      {
-         m.preTranslate(boundingBox.minX, boundingBox.minY);
-         m.preScale(boundingBox.width, boundingBox.height);
-      }
-      if (gradient.gradientTransform != null)
-      {
-         m.preConcat(gradient.gradientTransform);
-      }
-
-      // Create the colour and position arrays for the shader
-      int    numStops = gradient.children.size();
-      if (numStops == 0) {
-         // If there are no stops defined, we are to treat it as paint = 'none' (see spec 13.2.4)
-         statePop();
-         if (isFill)
-            state.hasFill = false;
-         else
-            state.hasStroke = false;
-         return;
-      }
-
-      int[]  colours = new int[numStops];
-      float[]  positions = new float[numStops];
-      int  i = 0;
-      float  lastOffset = -1;
-      for (SvgObject child: gradient.children)
-      {
-         Stop  stop = (Stop) child;
-         if (i == 0 || stop.offset >= lastOffset) {
-            positions[i] = stop.offset;
-            lastOffset = stop.offset;
-         } else {
-            // Each offset must be equal or greater than the last one.
-            // If it doesn't we need to replace it with the previous value.
-            positions[i] = lastOffset;
-         }
+      }
 
-         statePush();
+      SVGGradientCache  cache = getGradientCache(gradient);
+      Box               keyBox = userUnits ? null : boundingBox;
+      if (cache != null)
+      {
+         Shader  shader = cache.getShader(gradient, userUnits, _x1, _y1, _x2, _y2, keyBox, gradient.indexedBy.styleGeneration);
+         if (shader != null) {
+            setPaintShader(paint, shader);
+            return;
+         }
+      }
 
-         updateStyleForElement(state, stop);
-         Colour col = (SVG.Colour) state.style.stopColor;
-         if (col == null)
-            col = Colour.BLACK;
-         colours[i] = clamp255(state.style.stopOpacity) << 24 | col.colour;
-         i++;
+      SVGGradientCache.Stops  stops = getGradientStops(gradient, cache);
+      if (stops == null) {
+         // If there are no stops defined, we are to treat it as paint = 'none' (see spec 13.2.4)
+         if (isFill)
+            state.hasFill = false;
+         else
+            state.hasStroke = false;
+         return;
+      }
+      int  numStops = stops.colours.length;
 
-         statePop();
+      // Calculate the gradient transform matrix
+      Matrix m = new Matrix();
+      if (!userUnits)
+      {
+         m.preTranslate(boundingBox.minX, boundingBox.minY);
+         m.preScale(boundingBox.width, boundingBox.height);
+      }
+      if (gradient.gradientTransform != null)
+      {
+         m.preConcat(gradient.gradientTransform);
       }
 
       // If gradient vector is zero length, we instead fill with last stop colour
       if ((_x1 == _x2 && _y1 == _y2) || numStops == 1) {
-         statePop();
-         paint.setColor(colours[numStops - 1]);
+         paint.setColor(stops.colours[numStops - 1]);
          return;
       }
 
@@ -3341,20 +5081,20 @@ public class SVGAndroidRenderer
          else if (gradient.spreadMethod == GradientSpread.repeat)
             tileMode = TileMode.REPEAT;
       }
-      
-      statePop();
 
       // Create shader instance
-      LinearGradient  gr = new LinearGradient(_x1, _y1, _x2, _y2, colours, positions, tileMode); 
+      LinearGradient  gr = new LinearGradient(_x1, _y1, _x2, _y2, stops.colours, stops.positions, tileMode); 
       gr.setLocalMatrix(m);
-      paint.setShader(gr);
+      if (cache != null)
+         cache.putShader(gradient, userUnits, _x1, _y1, _x2, _y2, keyBox, gr);
+      setPaintShader(paint, gr);
    }
 
 
    private void  makeRadialGradient(boolean isFill, Box boundingBox, SvgRadialGradient gradient)
    {
       if (gradient.href != null)
-         fillInChainedGradientFields(gradient, gradient.href);
+         resolveGradientChain(gradient);
 
       boolean  userUnits = (gradient.gradientUnitsAreUser != null && gradient.gradientUnitsAreUser);
       Paint    paint = isFill ? state.fillPaint : state.strokePaint;
@@ -3376,11 +5116,27 @@ public class SVGAndroidRenderer
       // fx and fy are ignored because Android RadialGradient doesn't support a
       // 'focus' point that is different from cx,cy.
 
-      // Push the state
-      statePush();
+      SVGGradientCache  cache = getGradientCache(gradient);
+      Box               keyBox = userUnits ? null : boundingBox;
+      if (cache != null)
+      {
+         Shader  shader = cache.getShader(gradient, userUnits, _cx, _cy, _r, 0f, keyBox, gradient.indexedBy.styleGeneration);
+         if (shader != null) {
+            setPaintShader(paint, shader);
+            return;
+         }
+      }
 
-      // Set the style for the gradient (inherits from its own ancestors, not from callee's state)
-      state = findInheritFromAncestorState(gradient);
+      SVGGradientCache.Stops  stops = getGradientStops(gradient, cache);
+      if (stops == null) {
+         // If there are no stops defined, we are to treat it as paint = 'none' (see spec 13.2.4)
+         if (isFill)
+            state.hasFill = false;
+         else
+            state.hasStroke = false;
+         return;
+      }
+      int  numStops = stops.colours.length;
 
       // Calculate the gradient transform matrix
       Matrix m = new Matrix();
@@ -3394,18 +5150,58 @@ public class SVGAndroidRenderer
          m.preConcat(gradient.gradientTransform);
       }
 
-      // Create the colour and position arrays for the shader
-      int    numStops = gradient.children.size();
-      if (numStops == 0) {
-         // If there are no stops defined, we are to treat it as paint = 'none' (see spec 13.2.4)
-         statePop();
-         if (isFill)
-            state.hasFill = false;
-         else
-            state.hasStroke = false;
+      // If gradient radius is zero, we instead fill with last stop colour
+      if (_r == 0 || numStops == 1) {
+         paint.setColor(stops.colours[numStops - 1]);
          return;
       }
 
+      // Convert spreadMethod->TileMode
+      TileMode  tileMode = TileMode.CLAMP;
+      if (gradient.spreadMethod != null)
+      {
+         if (gradient.spreadMethod == GradientSpread.reflect)
+            tileMode = TileMode.MIRROR;
+         else if (gradient.spreadMethod == GradientSpread.repeat)
+            tileMode = TileMode.REPEAT;
+      }
+
+      // Create shader instance
+      RadialGradient  gr = new RadialGradient(_cx, _cy, _r, stops.colours, stops.positions, tileMode); 
+      gr.setLocalMatrix(m);
+      if (cache != null)
+         cache.putShader(gradient, userUnits, _cx, _cy, _r, 0f, keyBox, gr);
+      setPaintShader(paint, gr);
+   }
+
+
+   private SVGGradientCache  getGradientCache(GradientElement gradient)
+   {
+      // Only cache gradients of a document that will tell us about changes to them
+      return (gradient.indexedBy != null) ? gradient.indexedBy.getGradientCache() : null;
+   }
+
+
+   /*
+    * Create the colour and position arrays for a gradient's shader, or fetch them from the cache.
+    * Returns null if the gradient has no stops.
+    */
+   private SVGGradientCache.Stops  getGradientStops(GradientElement gradient, SVGGradientCache cache)
+   {
+      int  numStops = gradient.children.size();
+      if (numStops == 0)
+         return null;
+
+      SVGGradientCache.Stops  stops = (cache != null) ? cache.getStops(gradient, gradient.indexedBy.styleGeneration) : null;
+      if (stops != null)
+         return stops;
+
+      // Push the state
+      statePush();
+
+      // Set the style for the gradient (inherits from its own ancestors, not from callee's state)
+      state = findInheritFromAncestorState(gradient);
+
       int[]  colours = new int[numStops];
       float[]  positions = new float[numStops];
       int  i = 0;
@@ -3434,29 +5230,35 @@ public class SVGAndroidRenderer
          statePop();
       }
 
-      // If gradient radius is zero, we instead fill with last stop colour
-      if (_r == 0 || numStops == 1) {
-         statePop();
-         paint.setColor(colours[numStops - 1]);
-         return;
-      }
+      statePop();
 
-      // Convert spreadMethod->TileMode
-      TileMode  tileMode = TileMode.CLAMP;
-      if (gradient.spreadMethod != null)
+      stops = new SVGGradientCache.Stops(colours, positions);
+      if (cache != null)
+         cache.putStops(gradient, stops);
+      return stops;
+   }
+
+
+   /*
+    * Fill in the fields a gradient inherits through its href attribute. The gradients in the chain
+    * are remembered, so that later calls only need to record them as references of a display list chunk.
+    */
+   private void  resolveGradientChain(GradientElement gradient)
+   {
+      SVGGradientCache  cache = getGradientCache(gradient);
+      List<SvgObject>   chain = (cache != null) ? cache.getChain(gradient) : null;
+      if (chain != null)
       {
-         if (gradient.spreadMethod == GradientSpread.reflect)
-            tileMode = TileMode.MIRROR;
-         else if (gradient.spreadMethod == GradientSpread.repeat)
-            tileMode = TileMode.REPEAT;
+         if (recordedReferences != null)
+            recordedReferences.addAll(chain);
+         return;
       }
 
-      statePop();
-
-      // Create shader instance
-      RadialGradient  gr = new RadialGradient(_cx, _cy, _r, colours, positions, tileMode); 
-      gr.setLocalMatrix(m);
-      paint.setShader(gr);
+      chain = new ArrayList<SvgObject>();
+      boolean  complete = fillInChainedGradientFields(gradient, gradient.href, chain);
+      // Chains with missing references are resolved again, in case the reference is added later
+      if (cache != null && complete)
+         cache.putChain(gradient, chain);
    }
 
 
@@ -3464,22 +5266,23 @@ public class SVGAndroidRenderer
     * Any unspecified fields in this gradient can be 'borrowed' from another
     * gradient specified by the href attribute.
     */
-   private void fillInChainedGradientFields(GradientElement gradient, String href)
+   private boolean fillInChainedGradientFields(GradientElement gradient, String href, List<SvgObject> chain)
    {
       // Locate the referenced object
-      SVG.SvgObject  ref = gradient.document.resolveIRI(href);
+      SVG.SvgObject  ref = resolveIRI(gradient.document, href);
       if (ref == null) {
          // Non-existent
          warn("Gradient reference '%s' not found", href);
-         return;
+         return false;
       }
+      chain.add(ref);
       if (!(ref instanceof GradientElement)) {
          error("Gradient href attributes must point to other gradient elements");
-         return;
+         return true;
       }
       if (ref == gradient) {
          error("Circular reference in gradient href attribute '%s'", href);
-         return;
+         return true;
       }
 
       GradientElement  grRef = (GradientElement) ref;
@@ -3504,7 +5307,8 @@ public class SVGAndroidRenderer
       catch (ClassCastException e) { /* expected - do nothing */ }
 
       if (grRef.href != null)
-         fillInChainedGradientFields(gradient, grRef.href);
+         return fillInChainedGradientFields(gradient, grRef.href, chain);
+      return true;
    }
 
 
@@ -3597,8 +5401,12 @@ public class SVGAndroidRenderer
       if (state.style.clipPath == null)
          return;
 
+      // A clip path applied while building another can't be cached as part of it
+      if (clipBuildDepth > 0)
+         clipBuildHasNestedClip = true;
+
       // Locate the referenced object
-      SVG.SvgObject  ref = obj.document.resolveIRI(state.style.clipPath);
+      SVG.SvgObject  ref = resolveIRI(obj.document, state.style.clipPath);
       if (ref == null) {
          error("ClipPath reference '%s' not found", state.style.clipPath);
          return;
@@ -3639,17 +5447,68 @@ public class SVGAndroidRenderer
 
       checkForClipPath(clipPath);
 
-      Path  combinedPath = new Path();
-      for (SvgObject child: clipPath.children)
-      {
-         addObjectToClip(child, true, combinedPath, new Matrix());
-      }
-      canvas.clipPath(combinedPath);
+      canvas.clipPath(getClipPathGeometry(clipPath, userUnits));
 
       clipStatePop();
    }
 
 
+   /*
+    * Returns the combined path of the children of a clipPath, from the document's clip path cache if possible.
+    * The caller must not modify the returned Path.
+    */
+   private Path  getClipPathGeometry(ClipPath clipPath, boolean userUnits)
+   {
+      SVGClipPathCache  cache = (clipPath.indexedBy != null) ? clipPath.indexedBy.getClipPathCache() : null;
+      Box               viewPortUser = getCurrentViewPortInUserUnits();
+      if (cache != null)
+      {
+         SVGClipPathCache.Entry  entry = cache.get(clipPath, userUnits, viewPortUser, clipPath.indexedBy.visualBoundsGeneration);
+         if (entry != null) {
+            addCachedReferences(entry.references, entry.hasUnresolvedReferences);
+            return entry.path;
+         }
+      }
+
+      List<SvgObject>  savedReferences = trackedReferences;
+      boolean          savedUnresolvedReference = trackedUnresolvedReference;
+      boolean          savedHasNestedClip = clipBuildHasNestedClip;
+      try
+      {
+         trackedReferences = new ArrayList<SvgObject>();
+         trackedUnresolvedReference = false;
+         clipBuildHasNestedClip = false;
+         clipBuildDepth++;
+
+         Path  combinedPath = new Path();
+         for (SvgObject child: clipPath.children)
+         {
+            addObjectToClip(child, true, combinedPath, new Matrix());
+         }
+
+         // Nested clip paths are applied to the canvas as the children are visited, so they would be lost
+         if (cache != null && !clipBuildHasNestedClip)
+            cache.put(clipPath, userUnits, viewPortUser, new SVGClipPathCache.Entry(combinedPath, trackedReferences, trackedUnresolvedReference));
+         return combinedPath;
+      }
+      finally
+      {
+         clipBuildDepth--;
+         List<SvgObject>  references = trackedReferences;
+         boolean          hasUnresolvedReferences = trackedUnresolvedReference;
+         trackedReferences = savedReferences;
+         trackedUnresolvedReference = savedUnresolvedReference;
+         clipBuildHasNestedClip = savedHasNestedClip;
+         // An outer pattern tile or clip path depends on the same references
+         if (trackedReferences != null) {
+            trackedReferences.addAll(references);
+            if (hasUnresolvedReferences)
+               trackedUnresolvedReference = true;
+         }
+      }
+   }
+
+
    private void addObjectToClip(SvgObject obj, boolean allowUse, Path combinedPath, Matrix combinedPathMatrix)
    {
       if (!display())
@@ -3687,8 +5546,7 @@ public class SVGAndroidRenderer
       // Save matrix and clip
       canvas.save(Canvas.MATRIX_SAVE_FLAG);
       // Save style state
-      stateStack.push(state);
-      state = (RendererState) state.clone();
+      pushState();
    }
 
 
@@ -3697,7 +5555,7 @@ public class SVGAndroidRenderer
       // Restore matrix and clip
       canvas.restore();
       // Restore style state
-      state = stateStack.pop();
+      popState();
    }
 
 
@@ -3728,11 +5586,7 @@ public class SVGAndroidRenderer
       if (obj.transform != null)
          combinedPathMatrix.preConcat(obj.transform);
 
-      Path  path = (new PathConverter(obj.d)).getPath();
-
-      if (obj.boundingBox == null) {
-         obj.boundingBox = calculatePathBounds(path);
-      }
+      Path  path = makePathAndBoundingBox(obj);
       checkForClipPath(obj);
 
       //path.setFillType(getClipRuleFromState());
@@ -3785,7 +5639,7 @@ public class SVGAndroidRenderer
          combinedPathMatrix.preConcat(obj.transform);
 
       // Locate the referenced object
-      SVG.SvgObject  ref = obj.document.resolveIRI(obj.href);
+      SVG.SvgObject  ref = resolveIRI(obj.document, obj.href);
       if (ref == null) {
          error("Use reference '%s' not found", obj.href);
          return;
@@ -3863,7 +5717,7 @@ public class SVGAndroidRenderer
       }
 
       @Override
-      public void processText(String text)
+      public void processText(String text, float width)
       {
          if (visible())
          {
@@ -3874,7 +5728,7 @@ public class SVGAndroidRenderer
          }
 
          // Update the current text position
-         x += state.fillPaint.measureText(text);
+         x += width;
       }
    }
 
@@ -3884,6 +5738,40 @@ public class SVGAndroidRenderer
    //==============================================================================
 
 
+   /*
+    * The makePathAndBoundingBox() methods return shared Paths from the document's path cache
+    * when possible. The caller must not modify the returned Path, other than its fill type.
+    */
+   private SVGPathCache  getPathCache(SvgObject obj)
+   {
+      // Only cache elements of a document that will tell us about changes to them
+      return (obj.indexedBy != null) ? obj.indexedBy.getPathCache() : null;
+   }
+
+
+   private Path  makePathAndBoundingBox(SVG.Path obj)
+   {
+      // The sizes of the definition are part of the key, so that a path that is appended to in
+      // place (eg. by DrawListener) is rebuilt even if geometryChanged() is not called
+      SVGPathCache  cache = getPathCache(obj);
+      float         commands = obj.d.getCommandsLength();
+      float         coords = obj.d.getCoordsLength();
+      Path          p = (cache != null) ? cache.get(obj, obj.d, commands, coords, 0, 0, 0, 0) : null;
+      if (p != null)
+         return p;
+
+      p = (new PathConverter(obj.d)).getPath();
+
+      if (obj.boundingBox == null) {
+         obj.boundingBox = calculatePathBounds(p);
+      }
+
+      if (cache != null)
+         cache.put(obj, obj.d, commands, coords, 0, 0, 0, 0, p, obj.d.getCoordsLength());
+      return p;
+   }
+
+
    private Path  makePathAndBoundingBox(Line obj)
    {
       float x1 = (obj.x1 == null) ? 0 : obj.x1.floatValueX(this);
@@ -3891,13 +5779,21 @@ public class SVGAndroidRenderer
       float x2 = (obj.x2 == null) ? 0 : obj.x2.floatValueX(this);
       float y2 = (obj.y2 == null) ? 0 : obj.y2.floatValueY(this);
 
+      SVGPathCache  cache = getPathCache(obj);
+      Path          p = (cache != null) ? cache.get(obj, null, x1, y1, x2, y2, 0, 0) : null;
+      if (p != null)
+         return p;
+
       if (obj.boundingBox == null) {
-         obj.boundingBox = new Box(Math.min(x1, y1), Math.min(y1, y2), Math.abs(x2-x1), Math.abs(y2-y1));
+         obj.boundingBox = new Box(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2-x1), Math.abs(y2-y1));
       }
 
-      Path  p = new Path();
+      p = new Path();
       p.moveTo(x1, y1);
       p.lineTo(x2, y2);
+
+      if (cache != null)
+         cache.put(obj, null, x1, y1, x2, y2, 0, 0, p, 4);
       return p;
    }
 
@@ -3924,6 +5820,11 @@ public class SVGAndroidRenderer
       w = obj.width.floatValueX(this);
       h = obj.height.floatValueY(this);
 
+      SVGPathCache  cache = getPathCache(obj);
+      Path          p = (cache != null) ? cache.get(obj, null, x, y, w, h, rx, ry) : null;
+      if (p != null)
+         return p;
+
       if (obj.boundingBox == null) {
          obj.boundingBox = new Box(x, y, w, h);
       }
@@ -3931,7 +5832,7 @@ public class SVGAndroidRenderer
       float  right = x + w;
       float  bottom = y + h;
 
-      Path  p = new Path();
+      p = new Path();
       if (rx == 0 || ry == 0)
       {
          // Simple rect
@@ -3960,6 +5861,9 @@ public class SVGAndroidRenderer
          p.lineTo(x, y+ry);
       }
       p.close();
+
+      if (cache != null)
+         cache.put(obj, null, x, y, w, h, rx, ry, p, 26);
       return p;
    }
 
@@ -3970,6 +5874,11 @@ public class SVGAndroidRenderer
       float  cy = (obj.cy != null) ? obj.cy.floatValueY(this) : 0f;
       float  r = obj.r.floatValue(this);
 
+      SVGPathCache  cache = getPathCache(obj);
+      Path          p = (cache != null) ? cache.get(obj, null, cx, cy, r, 0, 0, 0) : null;
+      if (p != null)
+         return p;
+
       float  left = cx - r;
       float  top = cy - r;
       float  right = cx + r;
@@ -3981,13 +5890,16 @@ public class SVGAndroidRenderer
 
       float  cp = r * BEZIER_ARC_FACTOR;
 
-      Path  p = new Path();
+      p = new Path();
       p.moveTo(cx, top);
       p.cubicTo(cx+cp, top, right, cy-cp, right, cy);
       p.cubicTo(right, cy+cp, cx+cp, bottom, cx, bottom);
       p.cubicTo(cx-cp, bottom, left, cy+cp, left, cy);
       p.cubicTo(left, cy-cp, cx-cp, top, cx, top);
       p.close();
+
+      if (cache != null)
+         cache.put(obj, null, cx, cy, r, 0, 0, 0, p, 26);
       return p;
    }
 
@@ -3999,6 +5911,11 @@ public class SVGAndroidRenderer
       float  rx = obj.rx.floatValueX(this);
       float  ry = obj.ry.floatValueY(this);
 
+      SVGPathCache  cache = getPathCache(obj);
+      Path          p = (cache != null) ? cache.get(obj, null, cx, cy, rx, ry, 0, 0) : null;
+      if (p != null)
+         return p;
+
       float  left = cx - rx;
       float  top = cy - ry;
       float  right = cx + rx;
@@ -4011,30 +5928,46 @@ public class SVGAndroidRenderer
       float  cpx = rx * BEZIER_ARC_FACTOR;
       float  cpy = ry * BEZIER_ARC_FACTOR;
 
-      Path  p = new Path();
+      p = new Path();
       p.moveTo(cx, top);
       p.cubicTo(cx+cpx, top, right, cy-cpy, right, cy);
       p.cubicTo(right, cy+cpy, cx+cpx, bottom, cx, bottom);
       p.cubicTo(cx-cpx, bottom, left, cy+cpy, left, cy);
       p.cubicTo(left, cy-cpy, cx-cpx, top, cx, top);
       p.close();
+
+      if (cache != null)
+         cache.put(obj, null, cx, cy, rx, ry, 0, 0, p, 26);
       return p;
    }
 
 
    private Path makePathAndBoundingBox(SVG.PolyLine obj)
    {
-      Path  path = new Path();
+      // The last point is part of the key, as it is the one moved in place while a polyline is drawn
+      SVGPathCache  cache = getPathCache(obj);
+      int           numPoints = obj.points.length;
+      float         lastX = obj.points[numPoints - 2];
+      float         lastY = obj.points[numPoints - 1];
+      Path          path = (cache != null) ? cache.get(obj, obj.points, numPoints, lastX, lastY, 0, 0, 0) : null;
 
-      path.moveTo(obj.points[0], obj.points[1]);
-      for (int i=2; i<obj.points.length; i+=2) {
-         path.lineTo(obj.points[i], obj.points[i+1]);
-      }
-      if (obj instanceof SVG.Polygon)
-         path.close();
+      if (path == null)
+      {
+         path = new Path();
 
-      if (obj.boundingBox == null) {
-         obj.boundingBox = calculatePathBounds(path);
+         path.moveTo(obj.points[0], obj.points[1]);
+         for (int i=2; i<obj.points.length; i+=2) {
+            path.lineTo(obj.points[i], obj.points[i+1]);
+         }
+         if (obj instanceof SVG.Polygon)
+            path.close();
+
+         if (obj.boundingBox == null) {
+            obj.boundingBox = calculatePathBounds(path);
+         }
+
+         if (cache != null)
+            cache.put(obj, obj.points, numPoints, lastX, lastY, 0, 0, 0, path, obj.points.length);
       }
 
       path.setFillType(getClipRuleFromState());
@@ -4091,11 +6024,17 @@ public class SVGAndroidRenderer
       canvas.clipPath(path);
 
       // Set the style for the pattern (inherits from its own ancestors, not from callee's state)
-      RendererState  baseState = new RendererState();
-      updateStyle(baseState, Style.getDefaultStyle());
+      RendererState  baseState = resetPushedState();
       baseState.style.overflow = false;    // By default patterns do not overflow
       state = findInheritFromAncestorState(pattern, baseState);
 
+      // Patterns that don't overflow their tile can be drawn with a cached bitmap of one tile
+      if (!state.style.overflow && fillWithPatternTile(obj, path, pattern, x, y, w, h, positioning))
+      {
+         statePop();
+         return;
+      }
+
       // The bounds of the area we need to cover with pattern to ensure that our shape is filled
       Box  patternArea = obj.boundingBox;
       // Apply the patternTransform
@@ -4136,46 +6075,161 @@ public class SVGAndroidRenderer
          {
             stepViewBox.minX = stepX;
             stepViewBox.minY = stepY;
-            // Push the state
-            statePush();
-            // Set pattern clip rectangle if appropriate
-            if (!state.style.overflow) {
-               setClipRect(stepViewBox.minX, stepViewBox.minY, stepViewBox.width, stepViewBox.height);
-            }
-            // Calculate and set the viewport for each instance of the pattern
-            if (pattern.viewBox != null)
-            {
-               canvas.concat(calculateViewBoxTransform(stepViewBox, pattern.viewBox, positioning));
-            }
-            else
-            {
-               boolean  patternContentUnitsAreUser = (pattern.patternContentUnitsAreUser == null || pattern.patternContentUnitsAreUser);
-               // Simple translate of pattern to step position
-               canvas.translate(stepX, stepY);
-               if (!patternContentUnitsAreUser) {
-                  canvas.scale(obj.boundingBox.width, obj.boundingBox.height);
-               }
-            }
+            renderPatternInstance(pattern, stepViewBox, obj.boundingBox, positioning);
+         }
+      }
+      // Pop the state
+      statePop();
+   }
 
-            boolean  compositing = pushLayer();
 
-            // Render the pattern
-            for (SVG.SvgObject child: pattern.children) {
-               render(child);
-            }
+   /*
+    * Render one instance of the pattern's content, into the tile at stepViewBox.
+    */
+   private void  renderPatternInstance(Pattern pattern, Box stepViewBox, Box boundingBox, PreserveAspectRatio positioning)
+   {
+      // Push the state
+      statePush();
+      // Set pattern clip rectangle if appropriate
+      if (!state.style.overflow) {
+         setClipRect(stepViewBox.minX, stepViewBox.minY, stepViewBox.width, stepViewBox.height);
+      }
+      // Calculate and set the viewport for each instance of the pattern
+      if (pattern.viewBox != null)
+      {
+         canvas.concat(calculateViewBoxTransform(stepViewBox, pattern.viewBox, positioning));
+      }
+      else
+      {
+         boolean  patternContentUnitsAreUser = (pattern.patternContentUnitsAreUser == null || pattern.patternContentUnitsAreUser);
+         // Simple translate of pattern to step position
+         canvas.translate(stepViewBox.minX, stepViewBox.minY);
+         if (!patternContentUnitsAreUser) {
+            canvas.scale(boundingBox.width, boundingBox.height);
+         }
+      }
 
-            if (compositing)
-               popLayer(pattern);
+      boolean  compositing = pushLayer(pattern);
 
-            // Pop the state
-            statePop();
-         }
+      // Render the pattern
+      referenceDepth++;
+      for (SVG.SvgObject child: pattern.children) {
+         render(child);
       }
+      referenceDepth--;
+
+      if (compositing)
+         popLayer(pattern);
+
       // Pop the state
       statePop();
    }
 
 
+   /*
+    * Fill a path with a pattern tile taken from the document's pattern cache, or rendered into a bitmap
+    * at the current device scale and added to it. The tile is repeated with a BitmapShader.
+    * Returns false if the pattern has to be rendered directly instead.
+    */
+   @SuppressWarnings("deprecation")
+   private boolean  fillWithPatternTile(SvgElement obj, Path path, Pattern pattern, float x, float y, float w, float h, PreserveAspectRatio positioning)
+   {
+      // Tiles have a fixed resolution, so they can't be used when the output may later be drawn
+      // at another scale (pictures and display list chunks)
+      if (!state.directRendering || recordedReferences != null || pattern.indexedBy == null)
+         return false;
+      SVGPatternCache  cache = pattern.indexedBy.getPatternCache();
+      if (cache.getCacheSize() == 0)
+         return false;
+
+      // Find the device scale of the pattern's coordinate system
+      canvas.getMatrix(patternMatrix);
+      if (pattern.patternTransform != null)
+         patternMatrix.preConcat(pattern.patternTransform);
+      float[]  v = patternVectors;
+      v[0] = 1f;  v[1] = 0f;  v[2] = 0f;  v[3] = 1f;
+      patternMatrix.mapVectors(v);
+      float  scale = Math.max((float) Math.sqrt(v[0]*v[0] + v[1]*v[1]), (float) Math.sqrt(v[2]*v[2] + v[3]*v[3]));
+      if (!(scale > 0f) || Float.isInfinite(scale))
+         return false;
+
+      int    scaleStep = SVGPatternCache.getScaleStep(scale);
+      float  tileScale = SVGPatternCache.getStepScale(scaleStep);
+      int    tileWidth = Math.max(1, (int) Math.ceil(w * tileScale));
+      int    tileHeight = Math.max(1, (int) Math.ceil(h * tileScale));
+      if ((long) tileWidth * tileHeight > MAX_PATTERN_TILE_PIXELS)
+         return false;
+
+      // Without a viewBox, objectBoundingBox content units scale the content by the size of the object
+      boolean  contentUnitsAreBoundingBox = (pattern.viewBox == null && pattern.patternContentUnitsAreUser != null && !pattern.patternContentUnitsAreUser);
+      float    contentWidth = contentUnitsAreBoundingBox ? obj.boundingBox.width : 0f;
+      float    contentHeight = contentUnitsAreBoundingBox ? obj.boundingBox.height : 0f;
+
+      SVGPatternCache.Tile  tile = cache.get(pattern, w, h, contentWidth, contentHeight, scaleStep, pattern.indexedBy.visualBoundsGeneration);
+      if (tile == null)
+      {
+         tile = renderPatternTile(pattern, w, h, obj.boundingBox, positioning, tileWidth, tileHeight);
+         if (tile == null)
+            return false;
+         cache.put(pattern, w, h, contentWidth, contentHeight, scaleStep, tile);
+      }
+
+      // If this is a pattern inside the tile of another pattern, the outer tile depends on this one's references
+      addCachedReferences(tile.references, tile.hasUnresolvedReferences);
+
+      // Map the tile bitmap onto the pattern tile at (x,y)
+      BitmapShader  shader = new BitmapShader(tile.bitmap, TileMode.REPEAT, TileMode.REPEAT);
+      Matrix        m = new Matrix();
+      if (pattern.patternTransform != null)
+         m.set(pattern.patternTransform);
+      m.preTranslate(x, y);
+      m.preScale(w / tile.bitmap.getWidth(), h / tile.bitmap.getHeight());
+      shader.setLocalMatrix(m);
+
+      patternPaint.setShader(shader);
+      canvas.drawPath(path, patternPaint);
+      patternPaint.setShader(null);
+      return true;
+   }
+
+
+   /*
+    * Render one tile of a pattern into a bitmap of the given size.
+    * Returns null if there is not enough memory for the bitmap.
+    */
+   private SVGPatternCache.Tile  renderPatternTile(Pattern pattern, float w, float h, Box boundingBox, PreserveAspectRatio positioning, int tileWidth, int tileHeight)
+   {
+      Bitmap  bitmap;
+      try {
+         bitmap = Bitmap.createBitmap(tileWidth, tileHeight, Bitmap.Config.ARGB_8888);
+      } catch (OutOfMemoryError e) {
+         warn("Not enough memory to create a pattern tile");
+         return null;
+      }
+
+      Canvas           savedCanvas = canvas;
+      List<SvgObject>  savedReferences = trackedReferences;
+      boolean          savedUnresolvedReference = trackedUnresolvedReference;
+      try
+      {
+         canvas = new Canvas(bitmap);
+         canvas.scale(tileWidth / w, tileHeight / h);
+         trackedReferences = new ArrayList<SvgObject>();
+         trackedUnresolvedReference = false;
+
+         renderPatternInstance(pattern, new Box(0f, 0f, w, h), boundingBox, positioning);
+
+         return new SVGPatternCache.Tile(bitmap, trackedReferences, trackedUnresolvedReference);
+      }
+      finally
+      {
+         canvas = savedCanvas;
+         trackedReferences = savedReferences;
+         trackedUnresolvedReference = savedUnresolvedReference;
+      }
+   }
+
+
    /*
     * Any unspecified fields in this pattern can be 'borrowed' from another
     * pattern specified by the href attribute.
@@ -4183,7 +6237,7 @@ public class SVGAndroidRenderer
    private void fillInChainedPatternFields(Pattern pattern, String href)
    {
       // Locate the referenced object
-      SVG.SvgObject  ref = pattern.document.resolveIRI(href);
+      SVG.SvgObject  ref = resolveIRI(pattern.document, href);
       if (ref == null) {
          // Non-existent
          warn("Pattern reference '%s' not found", href);
@@ -4282,7 +6336,9 @@ public class SVGAndroidRenderer
       }
 
       // Render the mask
+      referenceDepth++;
       renderChildren(mask, false);
+      referenceDepth--;
 
       // Pop the state
       statePop();
@@ -215,6 +215,8 @@ public class SVGAndroidWriter
    /**
     * Write the given SVG to the given file with given format (JPG, PNG, WEBP, SVG, SVGZ)
     * The background color for JPEG is backgroundColor parameter
+    * Raster formats are rendered with {@link SVG#getBitmap(int)}, in parallel strips if
+    * {@link SVG#setParallelRasterization(java.util.concurrent.Executor, int)} has been called.
     * 
     * @param writer the stream to write to.
     * @param svg    the SVG object
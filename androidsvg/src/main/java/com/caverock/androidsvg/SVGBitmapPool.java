@@ -0,0 +1,241 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+/**
+ * A pool of the offscreen ARGB_8888 bitmaps used by renderers for masks, so that rendering
+ * masked elements does not allocate a new bitmap for each of them, every time a document is drawn.
+ * <p>
+ * Bitmap sizes are rounded up to a multiple of {@link #BUCKET_SIZE} pixels, so that bitmaps can be
+ * reused for content of a similar size. The pool holds free bitmaps up to a number of bytes, and
+ * recycles the least recently released ones when it is full. Bitmaps are only held while they are
+ * free; bitmaps in use by a renderer don't count towards the limit.
+ * <p>
+ * The pool is thread-safe, and one instance, returned by {@link #getDefault()}, is shared by all renderers.
+ */
+public class SVGBitmapPool
+{
+   public static final int  DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+   // Bitmap dimensions are rounded up to a multiple of this
+   public static final int  BUCKET_SIZE = 64;
+
+   private static final SVGBitmapPool  defaultPool = new SVGBitmapPool();
+
+   // Free bitmaps by bucket, in the order their buckets were last released to
+   private LinkedHashMap<Long, List<Bitmap>>  buckets = new LinkedHashMap<Long, List<Bitmap>>(16, 0.75f, true);
+   private int  maxBytes = DEFAULT_MAX_BYTES;
+   private int  bytesHeld = 0;
+
+   // Statistics
+   private int  hits = 0;
+   private int  misses = 0;
+   private int  evictions = 0;
+
+
+   /**
+    * Creates an empty pool with a limit of {@link #DEFAULT_MAX_BYTES}.
+    */
+   public SVGBitmapPool()
+   {
+   }
+
+
+   /**
+    * @return the pool shared by all renderers.
+    */
+   public static SVGBitmapPool  getDefault()
+   {
+      return defaultPool;
+   }
+
+
+   private static int  bucketDimension(int size)
+   {
+      return Math.max(1, (size + BUCKET_SIZE - 1) / BUCKET_SIZE) * BUCKET_SIZE;
+   }
+
+
+   private static Long  bucketKey(int width, int height)
+   {
+      return Long.valueOf(((long) width << 32) | height);
+   }
+
+
+   private static int  byteCount(Bitmap bitmap)
+   {
+      return bitmap.getRowBytes() * bitmap.getHeight();
+   }
+
+
+   /**
+    * Returns a bitmap at least as large as requested, from the pool if possible.
+    * Its contents are undefined.
+    *
+    * @param width the minimum width of the bitmap
+    * @param height the minimum height of the bitmap
+    * @return the bitmap
+    */
+   public Bitmap  acquire(int width, int height)
+   {
+      int  bucketWidth = bucketDimension(width);
+      int  bucketHeight = bucketDimension(height);
+      synchronized (this)
+      {
+         List<Bitmap>  free = buckets.get(bucketKey(bucketWidth, bucketHeight));
+         if (free != null && !free.isEmpty()) {
+            Bitmap  bitmap = free.remove(free.size() - 1);
+            bytesHeld -= byteCount(bitmap);
+            hits++;
+            return bitmap;
+         }
+         misses++;
+      }
+      // Allocate outside the lock
+      return Bitmap.createBitmap(bucketWidth, bucketHeight, Config.ARGB_8888);
+   }
+
+
+   /**
+    * Returns a bitmap obtained from {@link #acquire(int, int)} to the pool. It is recycled if
+    * the pool can't hold it. The caller must not use the bitmap afterwards.
+    *
+    * @param bitmap the bitmap
+    */
+   public synchronized void  release(Bitmap bitmap)
+   {
+      int  bytes = byteCount(bitmap);
+      if (bytes > maxBytes || bitmap.getConfig() != Config.ARGB_8888 ||
+          bitmap.getWidth() % BUCKET_SIZE != 0 || bitmap.getHeight() % BUCKET_SIZE != 0) {
+         bitmap.recycle();
+         return;
+      }
+      Long          key = bucketKey(bitmap.getWidth(), bitmap.getHeight());
+      List<Bitmap>  free = buckets.get(key);
+      if (free == null) {
+         free = new ArrayList<Bitmap>();
+         buckets.put(key, free);
+      }
+      free.add(bitmap);
+      bytesHeld += bytes;
+      trimToSize(maxBytes);
+   }
+
+
+   private void  trimToSize(int size)
+   {
+      Iterator<List<Bitmap>>  it = buckets.values().iterator();
+      while (bytesHeld > size && it.hasNext())
+      {
+         List<Bitmap>  eldest = it.next();
+         while (bytesHeld > size && !eldest.isEmpty())
+         {
+            Bitmap  bitmap = eldest.remove(0);
+            bytesHeld -= byteCount(bitmap);
+            bitmap.recycle();
+            evictions++;
+         }
+         if (eldest.isEmpty())
+            it.remove();
+      }
+   }
+
+
+   /**
+    * Recycles all the free bitmaps held by the pool.
+    */
+   public synchronized void  clear()
+   {
+      trimToSize(0);
+      buckets.clear();
+   }
+
+
+   /**
+    * Sets the maximum number of bytes of free bitmaps to hold. Bitmaps are recycled if the pool
+    * already holds more. A size of zero disables pooling.
+    *
+    * @param bytes the maximum size in bytes
+    */
+   public synchronized void  setMaxBytes(int bytes)
+   {
+      maxBytes = Math.max(0, bytes);
+      trimToSize(maxBytes);
+   }
+
+
+   public synchronized int  getMaxBytes()
+   {
+      return maxBytes;
+   }
+
+
+   /**
+    * @return the number of bytes of free bitmaps held by the pool.
+    */
+   public synchronized int  getBytesHeld()
+   {
+      return bytesHeld;
+   }
+
+
+   /**
+    * @return the number of requests that were satisfied with a pooled bitmap.
+    */
+   public synchronized int  getHitCount()
+   {
+      return hits;
+   }
+
+
+   /**
+    * @return the number of requests that required a new bitmap.
+    */
+   public synchronized int  getMissCount()
+   {
+      return misses;
+   }
+
+
+   /**
+    * @return the number of bitmaps recycled to stay within the maximum size.
+    */
+   public synchronized int  getEvictionCount()
+   {
+      return evictions;
+   }
+
+
+   /**
+    * Resets the hit, miss and eviction counts.
+    */
+   public synchronized void  resetStatistics()
+   {
+      hits = 0;
+      misses = 0;
+      evictions = 0;
+   }
+}
@@ -0,0 +1,282 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Path;
+
+import com.caverock.androidsvg.SVG.Box;
+import com.caverock.androidsvg.SVG.ClipPath;
+import com.caverock.androidsvg.SVG.SvgObject;
+
+/**
+ * A cache of the combined paths built from the children of the clipPath elements of a document,
+ * so that a clip path applied to many elements is only built once.
+ * <p>
+ * The path is built in the coordinate system of the clipPath's children. The clipPath's transform
+ * and, for objectBoundingBox units, the bounding box of the clipped element, are applied to the
+ * canvas rather than to the path, so one path serves every element the clipPath is applied to.
+ * Paths are keyed by the clipPath element, its units, and the viewport that percentage lengths
+ * are resolved against.
+ * <p>
+ * A path is discarded when its clipPath, the clipPath's ancestors or descendants, or any element
+ * it referenced while it was built (eg. the target of a {@code <use>}), is changed through the methods
+ * of {@link SVG}, or {@link SVG.SvgElementBase#geometryChanged()} or {@link SVG.SvgElementBase#styleChanged()}
+ * is called on it. All paths are discarded when the viewport, the DPI or the stylesheet changes.
+ * Clip paths whose children have clip paths of their own are not cached.
+ * <p>
+ * Obtain an instance with {@link SVG#getClipPathCache()}.
+ */
+public class SVGClipPathCache
+{
+   public static final int  DEFAULT_MAX_PATHS = 256;
+
+   private LinkedHashMap<Key, Entry>  paths = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+   private int  maxPaths = DEFAULT_MAX_PATHS;
+   private int  visualBoundsGeneration = 0;
+
+   // Reused for lookups, so that they don't allocate
+   private Key  lookupKey = new Key();
+
+   // Statistics
+   private int  hits = 0;
+   private int  misses = 0;
+   private int  evictions = 0;
+
+
+   /*
+    * A combined clip path, and the elements that were resolved by reference while building it.
+    * The path must not be modified.
+    */
+   static class Entry
+   {
+      Path             path;
+      List<SvgObject>  references;
+      boolean          hasUnresolvedReferences;
+
+      Entry(Path path, List<SvgObject> references, boolean hasUnresolvedReferences)
+      {
+         this.path = path;
+         this.references = references;
+         this.hasUnresolvedReferences = hasUnresolvedReferences;
+      }
+   }
+
+
+   private static class Key
+   {
+      ClipPath  clipPath;
+      boolean   userUnits;
+      float     vx, vy, vw, vh;
+
+      void  set(ClipPath clipPath, boolean userUnits, Box viewPort)
+      {
+         this.clipPath = clipPath;
+         this.userUnits = userUnits;
+         vx = viewPort.minX;
+         vy = viewPort.minY;
+         vw = viewPort.width;
+         vh = viewPort.height;
+      }
+
+      Key  copy()
+      {
+         Key  k = new Key();
+         k.clipPath = clipPath;
+         k.userUnits = userUnits;
+         k.vx = vx;  k.vy = vy;  k.vw = vw;  k.vh = vh;
+         return k;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Key))
+            return false;
+         Key  k = (Key) o;
+         return clipPath == k.clipPath && userUnits == k.userUnits &&
+                vx == k.vx && vy == k.vy && vw == k.vw && vh == k.vh;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int  h = System.identityHashCode(clipPath);
+         h = h * 31 + Float.floatToIntBits(vx);
+         h = h * 31 + Float.floatToIntBits(vy);
+         h = h * 31 + Float.floatToIntBits(vw);
+         h = h * 31 + Float.floatToIntBits(vh);
+         return userUnits ? h : ~h;
+      }
+   }
+
+
+   SVGClipPathCache()
+   {
+   }
+
+
+   synchronized Entry  get(ClipPath clipPath, boolean userUnits, Box viewPort, int visualBoundsGeneration)
+   {
+      if (visualBoundsGeneration != this.visualBoundsGeneration) {
+         paths.clear();
+         this.visualBoundsGeneration = visualBoundsGeneration;
+      }
+      lookupKey.set(clipPath, userUnits, viewPort);
+      Entry  entry = paths.get(lookupKey);
+      lookupKey.clipPath = null;
+      if (entry != null)
+         hits++;
+      else
+         misses++;
+      return entry;
+   }
+
+
+   synchronized void  put(ClipPath clipPath, boolean userUnits, Box viewPort, Entry entry)
+   {
+      if (maxPaths == 0)
+         return;
+      lookupKey.set(clipPath, userUnits, viewPort);
+      paths.put(lookupKey.copy(), entry);
+      lookupKey.clipPath = null;
+      trimToSize(maxPaths);
+   }
+
+
+   /*
+    * Called when an element has been changed, added or removed. Discards the paths that
+    * may depend on it.
+    */
+   synchronized void  elementChanged(SvgObject obj, boolean added)
+   {
+      Iterator<Map.Entry<Key, Entry>>  it = paths.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry<Key, Entry>  path = it.next();
+         if (dependsOn(path.getKey().clipPath, path.getValue(), obj, added))
+            it.remove();
+      }
+   }
+
+
+   private static boolean  dependsOn(ClipPath clipPath, Entry entry, SvgObject obj, boolean added)
+   {
+      // A new element may be the target of a reference that could not be resolved before
+      if (added && entry.hasUnresolvedReferences)
+         return true;
+      if (SVG.isRelated(clipPath, obj))
+         return true;
+      for (int i=0; i<entry.references.size(); i++) {
+         if (SVG.isRelated(entry.references.get(i), obj))
+            return true;
+      }
+      return false;
+   }
+
+
+   private void  trimToSize(int size)
+   {
+      Iterator<Entry>  it = paths.values().iterator();
+      while (paths.size() > size && it.hasNext())
+      {
+         it.next();
+         it.remove();
+         evictions++;
+      }
+   }
+
+
+   /**
+    * Removes all the cached paths.
+    */
+   public synchronized void  clear()
+   {
+      paths.clear();
+   }
+
+
+   /**
+    * Sets the maximum number of paths to keep. Least recently used paths are evicted
+    * if the cache already has more. A size of zero disables the cache.
+    *
+    * @param count the maximum number of paths
+    */
+   public synchronized void  setMaxPaths(int count)
+   {
+      maxPaths = Math.max(0, count);
+      trimToSize(maxPaths);
+   }
+
+
+   public synchronized int  getMaxPaths()
+   {
+      return maxPaths;
+   }
+
+
+   /**
+    * @return the number of cached paths.
+    */
+   public synchronized int  size()
+   {
+      return paths.size();
+   }
+
+
+   /**
+    * @return the number of lookups that were satisfied from the cache.
+    */
+   public synchronized int  getHitCount()
+   {
+      return hits;
+   }
+
+
+   /**
+    * @return the number of lookups that required a clip path to be built.
+    */
+   public synchronized int  getMissCount()
+   {
+      return misses;
+   }
+
+
+   /**
+    * @return the number of paths evicted to stay within the maximum size.
+    */
+   public synchronized int  getEvictionCount()
+   {
+      return evictions;
+   }
+
+
+   /**
+    * Resets the hit, miss and eviction counts.
+    */
+   public synchronized void  resetStatistics()
+   {
+      hits = 0;
+      misses = 0;
+      evictions = 0;
+   }
+}
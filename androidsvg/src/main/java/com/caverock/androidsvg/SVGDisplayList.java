@@ -0,0 +1,324 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Canvas;
+import android.graphics.Picture;
+import android.graphics.RectF;
+
+import com.caverock.androidsvg.SVG.Box;
+import com.caverock.androidsvg.SVG.SvgContainer;
+import com.caverock.androidsvg.SVG.SvgObject;
+
+/**
+ * A compiled form of a document that can be drawn repeatedly without walking the element tree.
+ * <p>
+ * Each child of the root {@code <svg>} element is recorded once into a {@link Picture}, with
+ * its styles, paints, paths, transforms, clips and layers already resolved. Drawing the display
+ * list replays these pictures. When an element is changed through the methods of {@link SVG},
+ * or its style, transform or geometry is changed and {@link SVG.SvgElementBase#geometryChanged()}
+ * or {@link SVG.SvgElementBase#styleChanged()} is called, only the pictures of the top level
+ * subtrees that contain it, or that reference it (eg. through a {@code <use>}, a gradient or a
+ * clip path), are recorded again. Everything is recorded again if the viewport, the DPI or the
+ * stylesheet changes.
+ * <p>
+ * Subtrees that use features which depend on the final device transform (masks and
+ * non-scaling strokes) can't be recorded. They are rendered directly every time.
+ * Call {@link #invalidate()} after changing fields of elements directly.
+ * <p>
+ * Hardware accelerated canvases can't draw pictures before API 23, so on those the document
+ * is rendered directly instead.
+ * <p>
+ * Obtain an instance with {@link SVG#getDisplayList()}.
+ */
+public class SVGDisplayList
+{
+   private SVG  document;
+
+   private Map<SvgObject, Chunk>  chunks = new HashMap<SvgObject, Chunk>();
+
+   // The values the current chunks were recorded with
+   private RectF  recordedBounds = new RectF();
+   private float  recordedDPI = 0f;
+   private int    recordedStyleGeneration = -1;
+
+   // Statistics
+   private int  recordCount = 0;
+   private int  replayCount = 0;
+   private int  directCount = 0;
+
+
+   static class Chunk
+   {
+      Picture          picture;        // null if the subtree can't be recorded
+      List<SvgObject>  references;     // elements resolved while recording
+      boolean          hasUnresolvedReferences;
+      boolean          seen;
+   }
+
+
+   SVGDisplayList(SVG document)
+   {
+      this.document = document;
+   }
+
+
+   /**
+    * Draws the display list to a Canvas, recording the parts that are out of date first.
+    * The result is the same as calling {@link SVG#renderToCanvas(Canvas, RectF)}.
+    *
+    * @param canvas the canvas to which the document should be rendered.
+    * @param viewPort the bounds of the area on the canvas you want the SVG rendered, or null for the whole canvas.
+    */
+   public void  draw(Canvas canvas, RectF viewPort)
+   {
+      Box  svgViewPort;
+
+      if (viewPort != null) {
+         svgViewPort = Box.fromLimits(viewPort.left, viewPort.top, viewPort.right, viewPort.bottom);
+      } else {
+         svgViewPort = new Box(0f, 0f, (float) canvas.getWidth(), (float) canvas.getHeight());
+      }
+
+      SVGAndroidRenderer  renderer = new SVGAndroidRenderer(canvas, svgViewPort, document.getRenderDPI());
+      renderer.setDisplayList(this);
+
+      renderer.renderDocument(document, null, null, true);
+   }
+
+
+   /**
+    * Draws the display list to a Canvas, using the full width and height of the canvas as the viewport.
+    *
+    * @param canvas the canvas to which the document should be rendered.
+    */
+   public void  draw(Canvas canvas)
+   {
+      draw(canvas, null);
+   }
+
+
+   /**
+    * Discards all the recorded pictures, so that the whole document is recorded again
+    * the next time it is drawn.
+    */
+   public synchronized void  invalidate()
+   {
+      chunks.clear();
+   }
+
+
+   /*
+    * Called by the renderer before it draws the children of the root element. 'bounds' is the
+    * area of the root viewport in user units. All pictures are discarded if it or any other
+    * value they depend on has changed.
+    */
+   synchronized void  beginFrame(RectF bounds, float dpi)
+   {
+      if (!bounds.equals(recordedBounds) || dpi != recordedDPI || document.styleGeneration != recordedStyleGeneration)
+      {
+         chunks.clear();
+         recordedBounds.set(bounds);
+         recordedDPI = dpi;
+         recordedStyleGeneration = document.styleGeneration;
+      }
+      for (Chunk chunk: chunks.values())
+         chunk.seen = false;
+   }
+
+
+   /*
+    * Called by the renderer after it has drawn the children of the root element. Discards the
+    * pictures of children that are no longer present.
+    */
+   synchronized void  endFrame()
+   {
+      Iterator<Chunk>  it = chunks.values().iterator();
+      while (it.hasNext())
+      {
+         if (!it.next().seen)
+            it.remove();
+      }
+   }
+
+
+   /*
+    * Returns the recorded chunk for a child of the root element, or null if it needs to be recorded.
+    */
+   synchronized Chunk  getChunk(SvgObject child)
+   {
+      Chunk  chunk = chunks.get(child);
+      if (chunk != null)
+      {
+         chunk.seen = true;
+         if (chunk.picture != null)
+            replayCount++;
+         else
+            directCount++;
+      }
+      return chunk;
+   }
+
+
+   synchronized Chunk  putChunk(SvgObject child, Picture picture, List<SvgObject> references, boolean hasUnresolvedReferences)
+   {
+      Chunk  chunk = new Chunk();
+      chunk.picture = picture;
+      chunk.references = references;
+      chunk.hasUnresolvedReferences = hasUnresolvedReferences;
+      chunk.seen = true;
+      chunks.put(child, chunk);
+      recordCount++;
+      return chunk;
+   }
+
+
+   /*
+    * Called when the style, transform or geometry of an element has changed.
+    */
+   synchronized void  elementChanged(SvgObject obj)
+   {
+      if (chunks.isEmpty())
+         return;
+      if (obj.parent == null) {
+         // The root element. Its style is inherited by everything.
+         chunks.clear();
+         return;
+      }
+      // Discard the chunk containing the element, and any chunk referencing it or one of its ancestors
+      for (SvgObject o = obj; o != null; o = (SvgObject) o.parent)
+      {
+         chunks.remove(o);
+         Iterator<Chunk>  it = chunks.values().iterator();
+         while (it.hasNext())
+         {
+            if (it.next().references.contains(o))
+               it.remove();
+         }
+      }
+   }
+
+
+   /*
+    * Called when an element is added to the document. It may be the target of references
+    * that could not be resolved before.
+    */
+   synchronized void  subtreeAdded(SvgObject obj)
+   {
+      if (chunks.isEmpty())
+         return;
+      Iterator<Chunk>  it = chunks.values().iterator();
+      while (it.hasNext())
+      {
+         if (it.next().hasUnresolvedReferences)
+            it.remove();
+      }
+      elementChanged(obj);
+   }
+
+
+   /*
+    * Called when an element is about to be removed from the document.
+    */
+   synchronized void  subtreeRemoved(SvgObject obj)
+   {
+      if (chunks.isEmpty())
+         return;
+      if (obj instanceof SvgContainer)
+      {
+         // Discard any chunk referencing an element inside the removed subtree
+         Iterator<Chunk>  it = chunks.values().iterator();
+         while (it.hasNext())
+         {
+            List<SvgObject>  references = it.next().references;
+            for (int i=0; i<references.size(); i++)
+            {
+               if (isInside(references.get(i), (SvgContainer) obj)) {
+                  it.remove();
+                  break;
+               }
+            }
+         }
+      }
+      elementChanged(obj);
+   }
+
+
+   private static boolean  isInside(SvgObject obj, SvgContainer ancestor)
+   {
+      for (SvgContainer p = obj.parent; p != null; p = ((SvgObject) p).parent)
+      {
+         if (p == ancestor)
+            return true;
+      }
+      return false;
+   }
+
+
+   /**
+    * @return the number of top level subtrees that are currently recorded or marked
+    * as needing to be rendered directly.
+    */
+   public synchronized int  getChunkCount()
+   {
+      return chunks.size();
+   }
+
+
+   /**
+    * @return the number of times a subtree has been recorded.
+    */
+   public synchronized int  getRecordCount()
+   {
+      return recordCount;
+   }
+
+
+   /**
+    * @return the number of times a recorded subtree has been replayed.
+    */
+   public synchronized int  getReplayCount()
+   {
+      return replayCount;
+   }
+
+
+   /**
+    * @return the number of times a subtree that can't be recorded was rendered directly.
+    */
+   public synchronized int  getDirectRenderCount()
+   {
+      return directCount;
+   }
+
+
+   /**
+    * Resets the record, replay and direct render counts.
+    */
+   public synchronized void  resetStatistics()
+   {
+      recordCount = 0;
+      replayCount = 0;
+      directCount = 0;
+   }
+}
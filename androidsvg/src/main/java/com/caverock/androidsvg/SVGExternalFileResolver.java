@@ -36,8 +36,9 @@ public abstract class SVGExternalFileResolver
     * Return a {@code Typeface} instance, or null if you want the renderer to ignore
     * this font and use the default Android font instead.
     * <p>
-    * Note that AndroidSVG does not attempt to cache Typeface references.  If you want
-    * them cached, for speed or memory reasons, you should do so yourself.
+    * The Typefaces returned, and failures, are kept in the shared {@link SVGTypefaceCache}, so this
+    * is called once for each combination of arguments. If the fonts you provide change, call
+    * {@link SVGTypefaceCache#removeResolver(SVGExternalFileResolver)}.
     * 
     * @param fontFamily Font family as specified in a font-family style attribute.
     * @param fontWeight Font weight as specified in a font-weight style attribute.
@@ -55,8 +56,9 @@ public abstract class SVGExternalFileResolver
     * Return a {@code Bitmap} instance, or null if you want the renderer to ignore
     * this image.
     * <p>
-    * Note that AndroidSVG does not attempt to cache Bitmap references.  If you want
-    * them cached, for speed or memory reasons, you should do so yourself.
+    * The bitmaps decoded from the images returned are kept in the shared {@link SVGImageCache}, which
+    * only holds this resolver weakly. If the images you provide change, call
+    * {@link SVGImageCache#removeResolver(SVGExternalFileResolver)}.
     * 
     * @param filename the filename as provided in the xlink:href attribute of a &lt;image&gt; element.
     * @return an Android Bitmap object, or null if the image could not be found.
@@ -0,0 +1,411 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.graphics.Shader;
+
+import com.caverock.androidsvg.SVG.Box;
+import com.caverock.androidsvg.SVG.GradientElement;
+import com.caverock.androidsvg.SVG.SvgContainer;
+import com.caverock.androidsvg.SVG.SvgObject;
+
+/**
+ * A cache of the shaders created for the gradient elements of a document, so that they are
+ * not recreated for every element they fill, every time the document is drawn.
+ * <p>
+ * Shaders are keyed by the gradient element, its units, its resolved coordinates, and for
+ * gradients in objectBoundingBox units, the bounding box of the element being filled. The
+ * colours and offsets of a gradient's stops, and the chain of gradients it inherits from
+ * through its href attribute, are also kept, so that they are only resolved once.
+ * <p>
+ * The entries of a gradient are discarded when it, one of its stops, one of the gradients in
+ * its href chain (or their stops), or one of their ancestors is changed through the methods of
+ * {@link SVG}, or {@link SVG.SvgElementBase#styleChanged()} is called on it. When gradients are
+ * added to or removed from the document, the entries of all gradients with an href are
+ * discarded too, as the href may now resolve to another gradient. Everything is discarded
+ * when the stylesheet changes.
+ * <p>
+ * Obtain an instance with {@link SVG#getGradientCache()}.
+ */
+public class SVGGradientCache
+{
+   public static final int  DEFAULT_MAX_SHADERS = 256;
+
+   private LinkedHashMap<Key, Shader>  shaders = new LinkedHashMap<Key, Shader>(16, 0.75f, true);
+   private Map<GradientElement, Stops>            stops = new HashMap<GradientElement, Stops>();
+   private Map<GradientElement, List<SvgObject>>  chains = new HashMap<GradientElement, List<SvgObject>>();
+
+   private int  maxShaders = DEFAULT_MAX_SHADERS;
+   private int  styleGeneration = 0;
+
+   // Reused for lookups, so that they don't allocate
+   private Key  lookupKey = new Key();
+
+   // Statistics
+   private int  hits = 0;
+   private int  misses = 0;
+   private int  evictions = 0;
+
+
+   /*
+    * The resolved colours and offsets of the stops of a gradient. Never modified once created.
+    */
+   static class Stops
+   {
+      int[]    colours;
+      float[]  positions;
+
+      Stops(int[] colours, float[] positions)
+      {
+         this.colours = colours;
+         this.positions = positions;
+      }
+   }
+
+
+   private static class Key
+   {
+      GradientElement  gradient;
+      boolean          userUnits;
+      float            p0, p1, p2, p3;
+      float            bx, by, bw, bh;
+
+      void  set(GradientElement gradient, boolean userUnits, float p0, float p1, float p2, float p3, Box bbox)
+      {
+         this.gradient = gradient;
+         this.userUnits = userUnits;
+         this.p0 = p0;
+         this.p1 = p1;
+         this.p2 = p2;
+         this.p3 = p3;
+         if (bbox != null) {
+            bx = bbox.minX;
+            by = bbox.minY;
+            bw = bbox.width;
+            bh = bbox.height;
+         } else {
+            bx = by = bw = bh = 0f;
+         }
+      }
+
+      Key  copy()
+      {
+         Key  k = new Key();
+         k.gradient = gradient;
+         k.userUnits = userUnits;
+         k.p0 = p0;  k.p1 = p1;  k.p2 = p2;  k.p3 = p3;
+         k.bx = bx;  k.by = by;  k.bw = bw;  k.bh = bh;
+         return k;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Key))
+            return false;
+         Key  k = (Key) o;
+         return gradient == k.gradient && userUnits == k.userUnits &&
+                p0 == k.p0 && p1 == k.p1 && p2 == k.p2 && p3 == k.p3 &&
+                bx == k.bx && by == k.by && bw == k.bw && bh == k.bh;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int  h = System.identityHashCode(gradient);
+         h = h * 31 + Float.floatToIntBits(p0);
+         h = h * 31 + Float.floatToIntBits(p1);
+         h = h * 31 + Float.floatToIntBits(p2);
+         h = h * 31 + Float.floatToIntBits(p3);
+         h = h * 31 + Float.floatToIntBits(bx);
+         h = h * 31 + Float.floatToIntBits(by);
+         h = h * 31 + Float.floatToIntBits(bw);
+         h = h * 31 + Float.floatToIntBits(bh);
+         return userUnits ? h : ~h;
+      }
+   }
+
+
+   SVGGradientCache()
+   {
+   }
+
+
+   /*
+    * Discard everything if the document's stylesheet has changed since the cache was filled.
+    */
+   private void  checkStyleGeneration(int generation)
+   {
+      if (generation != styleGeneration) {
+         clear();
+         styleGeneration = generation;
+      }
+   }
+
+
+   /*
+    * Returns the cached shader for a gradient, or null if there is none. 'bbox' is the bounding box
+    * of the element being filled, or null for gradients in user space units.
+    */
+   synchronized Shader  getShader(GradientElement gradient, boolean userUnits, float p0, float p1, float p2, float p3, Box bbox, int styleGeneration)
+   {
+      checkStyleGeneration(styleGeneration);
+      lookupKey.set(gradient, userUnits, p0, p1, p2, p3, bbox);
+      Shader  shader = shaders.get(lookupKey);
+      lookupKey.gradient = null;
+      if (shader != null)
+         hits++;
+      else
+         misses++;
+      return shader;
+   }
+
+
+   synchronized void  putShader(GradientElement gradient, boolean userUnits, float p0, float p1, float p2, float p3, Box bbox, Shader shader)
+   {
+      if (maxShaders == 0)
+         return;
+      lookupKey.set(gradient, userUnits, p0, p1, p2, p3, bbox);
+      shaders.put(lookupKey.copy(), shader);
+      lookupKey.gradient = null;
+      trimToSize(maxShaders);
+   }
+
+
+   synchronized Stops  getStops(GradientElement gradient, int styleGeneration)
+   {
+      checkStyleGeneration(styleGeneration);
+      return stops.get(gradient);
+   }
+
+
+   synchronized void  putStops(GradientElement gradient, Stops gradientStops)
+   {
+      stops.put(gradient, gradientStops);
+   }
+
+
+   /*
+    * Returns the gradients that the href attribute of a gradient resolved to, in order, or null
+    * if the chain has not been resolved yet.
+    */
+   synchronized List<SvgObject>  getChain(GradientElement gradient)
+   {
+      return chains.get(gradient);
+   }
+
+
+   synchronized void  putChain(GradientElement gradient, List<SvgObject> chain)
+   {
+      chains.put(gradient, chain);
+   }
+
+
+   /*
+    * Called when an element has been changed, or when it has been added or removed ('structural').
+    */
+   synchronized void  elementChanged(SvgObject obj, boolean structural)
+   {
+      if (shaders.isEmpty() && stops.isEmpty() && chains.isEmpty())
+         return;
+
+      Set<GradientElement>  cached = new HashSet<GradientElement>(stops.keySet());
+      cached.addAll(chains.keySet());
+      for (Key key: shaders.keySet())
+         cached.add(key.gradient);
+
+      boolean  gradientsChanged = structural && containsGradient(obj);
+      List<GradientElement>  stale = null;
+      for (GradientElement gradient: cached)
+      {
+         if (dependsOn(gradient, obj, gradientsChanged)) {
+            if (stale == null)
+               stale = new ArrayList<GradientElement>();
+            stale.add(gradient);
+         }
+      }
+      if (stale != null) {
+         for (int i=0; i<stale.size(); i++)
+            remove(stale.get(i));
+      }
+   }
+
+
+   /*
+    * Returns true if the cached entries of a gradient may be affected by a change to 'obj'.
+    */
+   private boolean  dependsOn(GradientElement gradient, SvgObject obj, boolean gradientsChanged)
+   {
+      if (SVG.isRelated(gradient, obj))
+         return true;
+      if (gradient.href == null)
+         return false;
+      // A gradient added or removed may change what the href resolves to
+      if (gradientsChanged)
+         return true;
+      List<SvgObject>  chain = chains.get(gradient);
+      if (chain == null)
+      {
+         // The chain is not known because it has a missing reference, so any gradient or stop
+         // may be part of it
+         return isInGradient(obj);
+      }
+      for (int i=0; i<chain.size(); i++)
+      {
+         if (SVG.isRelated(chain.get(i), obj))
+            return true;
+      }
+      return false;
+   }
+
+
+   private static boolean  isInGradient(SvgObject obj)
+   {
+      return obj instanceof GradientElement || (obj instanceof SVG.Stop && obj.parent instanceof GradientElement);
+   }
+
+
+   private static boolean  containsGradient(SvgObject obj)
+   {
+      if (obj instanceof GradientElement)
+         return true;
+      if (obj instanceof SvgContainer)
+      {
+         List<SvgObject>  children = ((SvgContainer) obj).getChildren();
+         for (int i=0; i<children.size(); i++) {
+            if (containsGradient(children.get(i)))
+               return true;
+         }
+      }
+      return false;
+   }
+
+
+   /*
+    * Removes the shaders, stops and href chain of a gradient.
+    */
+   private void  remove(GradientElement gradient)
+   {
+      stops.remove(gradient);
+      chains.remove(gradient);
+      Iterator<Key>  it = shaders.keySet().iterator();
+      while (it.hasNext())
+      {
+         if (it.next().gradient == gradient)
+            it.remove();
+      }
+   }
+
+
+   private void  trimToSize(int size)
+   {
+      Iterator<Shader>  it = shaders.values().iterator();
+      while (shaders.size() > size && it.hasNext())
+      {
+         it.next();
+         it.remove();
+         evictions++;
+      }
+   }
+
+
+   /**
+    * Removes all the cached shaders, stops and href chains.
+    */
+   public synchronized void  clear()
+   {
+      shaders.clear();
+      stops.clear();
+      chains.clear();
+   }
+
+
+   /**
+    * Sets the maximum number of shaders to keep. Least recently used shaders are evicted
+    * if the cache already has more. A size of zero disables the caching of shaders.
+    *
+    * @param count the maximum number of shaders
+    */
+   public synchronized void  setMaxShaders(int count)
+   {
+      maxShaders = Math.max(0, count);
+      trimToSize(maxShaders);
+   }
+
+
+   public synchronized int  getMaxShaders()
+   {
+      return maxShaders;
+   }
+
+
+   /**
+    * @return the number of cached shaders.
+    */
+   public synchronized int  size()
+   {
+      return shaders.size();
+   }
+
+
+   /**
+    * @return the number of lookups that were satisfied from the cache.
+    */
+   public synchronized int  getHitCount()
+   {
+      return hits;
+   }
+
+
+   /**
+    * @return the number of lookups that required a shader to be created.
+    */
+   public synchronized int  getMissCount()
+   {
+      return misses;
+   }
+
+
+   /**
+    * @return the number of shaders evicted to stay within the maximum size.
+    */
+   public synchronized int  getEvictionCount()
+   {
+      return evictions;
+   }
+
+
+   /**
+    * Resets the hit, miss and eviction counts.
+    */
+   public synchronized void  resetStatistics()
+   {
+      hits = 0;
+      misses = 0;
+      evictions = 0;
+   }
+}
@@ -0,0 +1,387 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * A cache of the bitmaps decoded for the image elements of documents, shared by all documents and
+ * renderers, so that an image is not decoded again every time it is drawn, and a document doesn't
+ * keep a full resolution copy of each of its images.
+ * <p>
+ * Images are decoded at a size close to the one they are drawn at on the device, by sampling them
+ * down by a power of two. Bitmaps are keyed by the image reference, the {@link SVGExternalFileResolver}
+ * that provided it (none for data URLs) and the sample size, so an image drawn at very different sizes
+ * has a bitmap for each. Bitmaps are kept in a least recently used cache, limited to a number of bytes.
+ * The full size of each image is also kept, so that it doesn't have to be decoded to be known.
+ * <p>
+ * The references of the cached images, including the text of data URLs, are held until they are evicted.
+ * Resolvers are only held weakly, so that the cache doesn't keep alive a resolver, or the Activity or
+ * Context it refers to. The images of a resolver are removed once it has been garbage collected.
+ * Bitmaps are not recycled when they are evicted, because a renderer on another thread may still be
+ * drawing with them.
+ * <p>
+ * The cache is thread-safe, and one instance, returned by {@link #getDefault()}, is shared by all renderers.
+ */
+public class SVGImageCache
+{
+   public static final int  DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+   // The number of image sizes to keep
+   private static final int  MAX_IMAGE_SIZES = 256;
+
+   private static final SVGImageCache  defaultCache = new SVGImageCache();
+
+   private LinkedHashMap<Key, Bitmap>  bitmaps = new LinkedHashMap<Key, Bitmap>(16, 0.75f, true);
+   private LinkedHashMap<Key, int[]>   imageSizes = new LinkedHashMap<Key, int[]>(16, 0.75f, true);
+   private int  maxBytes = DEFAULT_MAX_BYTES;
+   private int  bytesUsed = 0;
+
+   // The references to resolvers in keys are queued here when the resolvers are collected
+   private ReferenceQueue<SVGExternalFileResolver>  collectedResolvers = new ReferenceQueue<SVGExternalFileResolver>();
+
+   // Reused for lookups, so that they don't allocate
+   private Key  lookupKey = new Key();
+
+   // Statistics
+   private int  hits = 0;
+   private int  misses = 0;
+   private int  evictions = 0;
+
+
+   private static class Key
+   {
+      boolean                  hasResolver;   // false for data URLs
+      SVGExternalFileResolver  resolver;      // only in the lookup key
+      SVGResolverReference     resolverRef;   // only in keys stored in the cache
+      int                      resolverHash;
+      String                   href;
+      int                      sampleSize;    // 0 for the key of an image size
+
+      void  set(SVGExternalFileResolver resolver, String href, int sampleSize)
+      {
+         this.hasResolver = (resolver != null);
+         this.resolver = resolver;
+         this.resolverRef = null;
+         this.resolverHash = (resolver != null) ? System.identityHashCode(resolver) : 0;
+         this.href = href;
+         this.sampleSize = sampleSize;
+      }
+
+      // Returns a copy to store in the cache, which only refers to the resolver weakly
+      Key  copy(ReferenceQueue<SVGExternalFileResolver> queue)
+      {
+         Key  k = new Key();
+         k.hasResolver = hasResolver;
+         k.resolverRef = hasResolver ? new SVGResolverReference(resolver, queue) : null;
+         k.resolverHash = resolverHash;
+         k.href = href;
+         k.sampleSize = sampleSize;
+         return k;
+      }
+
+      // Returns null if there is no resolver, or it has been collected
+      SVGExternalFileResolver  getResolver()
+      {
+         return (resolverRef != null) ? resolverRef.get() : resolver;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Key))
+            return false;
+         Key  k = (Key) o;
+         if (hasResolver != k.hasResolver || resolverHash != k.resolverHash || sampleSize != k.sampleSize)
+            return false;
+         if (hasResolver)
+         {
+            // A collected resolver matches nothing
+            SVGExternalFileResolver  r = getResolver();
+            if (r == null || r != k.getResolver())
+               return false;
+         }
+         return href.equals(k.href);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int  h = resolverHash;
+         h = h * 31 + href.hashCode();
+         return h * 31 + sampleSize;
+      }
+   }
+
+
+   /**
+    * Creates an empty cache with a limit of {@link #DEFAULT_MAX_BYTES}.
+    */
+   public SVGImageCache()
+   {
+   }
+
+
+   /**
+    * @return the cache shared by all renderers.
+    */
+   public static SVGImageCache  getDefault()
+   {
+      return defaultCache;
+   }
+
+
+   /*
+    * Returns the largest power of two sample size that decodes an image to at least 'scale' bitmap
+    * pixels for each of its pixels. 'scale' is the number of device pixels an image pixel is drawn at.
+    */
+   static int  calculateSampleSize(float scale)
+   {
+      int  sampleSize = 1;
+      while (sampleSize < 256 && scale * sampleSize * 2 <= 1f)
+         sampleSize *= 2;
+      return sampleSize;
+   }
+
+
+   synchronized Bitmap  get(SVGExternalFileResolver resolver, String href, int sampleSize)
+   {
+      removeCollectedResolvers();
+      lookupKey.set(resolver, href, sampleSize);
+      Bitmap  bitmap = bitmaps.get(lookupKey);
+      lookupKey.set(null, null, 0);
+      if (bitmap != null)
+         hits++;
+      else
+         misses++;
+      return bitmap;
+   }
+
+
+   synchronized void  put(SVGExternalFileResolver resolver, String href, int sampleSize, Bitmap bitmap)
+   {
+      int  bytes = byteCount(bitmap);
+      if (bytes > maxBytes)
+         return;
+      removeCollectedResolvers();
+      lookupKey.set(resolver, href, sampleSize);
+      Bitmap  old = bitmaps.put(lookupKey.copy(collectedResolvers), bitmap);
+      lookupKey.set(null, null, 0);
+      if (old != null)
+         bytesUsed -= byteCount(old);
+      bytesUsed += bytes;
+      trimToSize(maxBytes);
+   }
+
+
+   /*
+    * Returns the full width and height of an image, or null if it is not known.
+    */
+   synchronized int[]  getImageSize(SVGExternalFileResolver resolver, String href)
+   {
+      removeCollectedResolvers();
+      lookupKey.set(resolver, href, 0);
+      int[]  size = imageSizes.get(lookupKey);
+      lookupKey.set(null, null, 0);
+      return size;
+   }
+
+
+   synchronized void  putImageSize(SVGExternalFileResolver resolver, String href, int[] size)
+   {
+      removeCollectedResolvers();
+      lookupKey.set(resolver, href, 0);
+      imageSizes.put(lookupKey.copy(collectedResolvers), size);
+      lookupKey.set(null, null, 0);
+      Iterator<int[]>  it = imageSizes.values().iterator();
+      while (imageSizes.size() > MAX_IMAGE_SIZES && it.hasNext())
+      {
+         it.next();
+         it.remove();
+      }
+   }
+
+
+   private static int  byteCount(Bitmap bitmap)
+   {
+      return bitmap.getRowBytes() * bitmap.getHeight();
+   }
+
+
+   /*
+    * Removes the bitmaps and image sizes of resolvers that have been garbage collected.
+    */
+   private void  removeCollectedResolvers()
+   {
+      if (collectedResolvers.poll() == null)
+         return;
+      while (collectedResolvers.poll() != null)
+         ;
+      // Iterate the entries, because get() would reorder the access-ordered map
+      Iterator<Map.Entry<Key, Bitmap>>  it = bitmaps.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry<Key, Bitmap>  entry = it.next();
+         if (entry.getKey().hasResolver && entry.getKey().getResolver() == null)
+         {
+            bytesUsed -= byteCount(entry.getValue());
+            it.remove();
+         }
+      }
+      Iterator<Key>  sizeIt = imageSizes.keySet().iterator();
+      while (sizeIt.hasNext())
+      {
+         Key  key = sizeIt.next();
+         if (key.hasResolver && key.getResolver() == null)
+            sizeIt.remove();
+      }
+   }
+
+
+   private void  trimToSize(int size)
+   {
+      Iterator<Bitmap>  it = bitmaps.values().iterator();
+      while (bytesUsed > size && it.hasNext())
+      {
+         Bitmap  eldest = it.next();
+         it.remove();
+         bytesUsed -= byteCount(eldest);
+         evictions++;
+      }
+   }
+
+
+   /**
+    * Removes the images obtained from a resolver, so that it is asked for them again.
+    * Call this when the images a resolver provides have changed.
+    *
+    * @param resolver the resolver
+    */
+   public synchronized void  removeResolver(SVGExternalFileResolver resolver)
+   {
+      if (resolver == null)
+         return;
+      Iterator<Map.Entry<Key, Bitmap>>  it = bitmaps.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry<Key, Bitmap>  entry = it.next();
+         if (entry.getKey().getResolver() == resolver)
+         {
+            bytesUsed -= byteCount(entry.getValue());
+            it.remove();
+         }
+      }
+      Iterator<Key>  sizeIt = imageSizes.keySet().iterator();
+      while (sizeIt.hasNext())
+      {
+         if (sizeIt.next().getResolver() == resolver)
+            sizeIt.remove();
+      }
+   }
+
+
+   /**
+    * Removes all the cached bitmaps and image sizes.
+    */
+   public synchronized void  clear()
+   {
+      bitmaps.clear();
+      imageSizes.clear();
+      bytesUsed = 0;
+   }
+
+
+   /**
+    * Sets the maximum number of bytes of bitmaps to keep in the cache. Least recently used bitmaps
+    * are evicted if the cache already holds more. A size of zero disables the cache.
+    *
+    * @param bytes the maximum size in bytes
+    */
+   public synchronized void  setMaxBytes(int bytes)
+   {
+      maxBytes = Math.max(0, bytes);
+      trimToSize(maxBytes);
+   }
+
+
+   public synchronized int  getMaxBytes()
+   {
+      return maxBytes;
+   }
+
+
+   /**
+    * @return the number of bytes used by the bitmaps currently in the cache.
+    */
+   public synchronized int  getBytesUsed()
+   {
+      return bytesUsed;
+   }
+
+
+   /**
+    * @return the number of cached bitmaps.
+    */
+   public synchronized int  size()
+   {
+      return bitmaps.size();
+   }
+
+
+   /**
+    * @return the number of lookups that were satisfied from the cache.
+    */
+   public synchronized int  getHitCount()
+   {
+      return hits;
+   }
+
+
+   /**
+    * @return the number of lookups that required an image to be decoded.
+    */
+   public synchronized int  getMissCount()
+   {
+      return misses;
+   }
+
+
+   /**
+    * @return the number of bitmaps evicted to stay within the maximum size.
+    */
+   public synchronized int  getEvictionCount()
+   {
+      return evictions;
+   }
+
+
+   /**
+    * Resets the hit, miss and eviction counts.
+    */
+   public synchronized void  resetStatistics()
+   {
+      hits = 0;
+      misses = 0;
+      evictions = 0;
+   }
+}
@@ -78,6 +78,7 @@ public class SVGImageView extends ImageView
    private Matrix               mImageMatrixRevert = new Matrix();
    private SVG                  mSvg               = null;
    private List<OnDrawListener> mOnDrawListener    = null;
+   private boolean              mUseDisplayList    = false;
 
    {
       try {
@@ -280,6 +281,7 @@ public class SVGImageView extends ImageView
          mRenderer = getNewRenderer(mSvg);
       }
       mRenderer.setCanvas(canvas);
+      mRenderer.setDisplayList(mUseDisplayList ? mSvg.getDisplayList() : null);
       return mRenderer;
    }
 
@@ -313,6 +315,23 @@ public class SVGImageView extends ImageView
       return mRenderer;
    }
 
+   /**
+    * Draw the SVG from its display list, so that parts of the document that have not changed
+    * are not rendered again on every redraw (eg. when panning or zooming).
+    * Elements must be modified through methods that notify the document of the change.
+    * @see SVG#getDisplayList()
+    */
+   public void setUseDisplayList(boolean useDisplayList)
+   {
+      mUseDisplayList = useDisplayList;
+      invalidate();
+   }
+
+   public boolean getUseDisplayList()
+   {
+      return mUseDisplayList;
+   }
+
    public Matrix getImageMatrixRevert()
    {
       this.getImageMatrix().invert(mImageMatrixRevert);
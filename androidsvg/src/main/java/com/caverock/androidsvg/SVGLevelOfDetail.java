@@ -0,0 +1,139 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+/**
+ * A level of detail policy, used to trade accuracy for speed when a document is drawn so small
+ * that much of its detail can't be seen, for example a zoomed out technical drawing.
+ * <p>
+ * Pass an instance to {@link SVG#renderToCanvas(android.graphics.Canvas, android.graphics.RectF, SVGLevelOfDetail)}.
+ * All sizes are in device pixels, so the same policy can be used at any scale. The policy has three parts:
+ * <ul>
+ * <li>Shapes, and groups that have been drawn before, whose bounds on the device are smaller than
+ *     {@link #getMinElementSize()} in both directions are skipped, or drawn as a dot, depending on
+ *     {@link #getSmallElementMode()}. Groups are only ever skipped. Dots are drawn without clip paths,
+ *     masks or group opacity. Shapes with markers or a non-scaling stroke are always drawn normally.</li>
+ * <li>The curves of {@code <path>} elements are flattened into straight lines, and points closer than
+ *     {@link #getFlatteningTolerance()} to each other are dropped. The simplified paths are cached with
+ *     the document's other paths, for a range of tolerances rounded to powers of two.</li>
+ * <li>Text drawn at a size smaller than {@link #getMinTextSize()} is drawn as a bar the length of the text
+ *     and the height of its lower case letters.</li>
+ * </ul>
+ * Setting a size to zero disables that part of the policy.
+ */
+public class SVGLevelOfDetail
+{
+   public static final float  DEFAULT_MIN_ELEMENT_SIZE = 0.5f;
+   public static final float  DEFAULT_FLATTENING_TOLERANCE = 0.25f;
+   public static final float  DEFAULT_MIN_TEXT_SIZE = 4f;
+
+   public enum SmallElementMode
+   {
+      Skip,
+      Dot
+   }
+
+   private float             minElementSize = DEFAULT_MIN_ELEMENT_SIZE;
+   private SmallElementMode  smallElementMode = SmallElementMode.Dot;
+   private float             flatteningTolerance = DEFAULT_FLATTENING_TOLERANCE;
+   private float             minTextSize = DEFAULT_MIN_TEXT_SIZE;
+
+
+   /**
+    * Creates a policy with the default settings.
+    */
+   public SVGLevelOfDetail()
+   {
+   }
+
+
+   /**
+    * Sets the size, in device pixels, below which elements are skipped or drawn as a dot.
+    *
+    * @param pixels the minimum element size, or 0 to draw elements of any size
+    */
+   public void  setMinElementSize(float pixels)
+   {
+      if (pixels < 0f)
+         throw new IllegalArgumentException("Invalid minimum element size");
+      this.minElementSize = pixels;
+   }
+
+
+   public float  getMinElementSize()
+   {
+      return minElementSize;
+   }
+
+
+   /**
+    * Sets whether elements smaller than the minimum element size are skipped or drawn as a dot.
+    *
+    * @param mode the small element mode
+    */
+   public void  setSmallElementMode(SmallElementMode mode)
+   {
+      if (mode == null)
+         throw new IllegalArgumentException("Small element mode cannot be null");
+      this.smallElementMode = mode;
+   }
+
+
+   public SmallElementMode  getSmallElementMode()
+   {
+      return smallElementMode;
+   }
+
+
+   /**
+    * Sets the maximum distance, in device pixels, by which a simplified path may differ from the original.
+    *
+    * @param pixels the flattening tolerance, or 0 to draw paths without simplification
+    */
+   public void  setFlatteningTolerance(float pixels)
+   {
+      if (pixels < 0f)
+         throw new IllegalArgumentException("Invalid flattening tolerance");
+      this.flatteningTolerance = pixels;
+   }
+
+
+   public float  getFlatteningTolerance()
+   {
+      return flatteningTolerance;
+   }
+
+
+   /**
+    * Sets the font size, in device pixels, below which text is drawn as a bar.
+    *
+    * @param pixels the minimum text size, or 0 to draw text of any size
+    */
+   public void  setMinTextSize(float pixels)
+   {
+      if (pixels < 0f)
+         throw new IllegalArgumentException("Invalid minimum text size");
+      this.minTextSize = pixels;
+   }
+
+
+   public float  getMinTextSize()
+   {
+      return minTextSize;
+   }
+}
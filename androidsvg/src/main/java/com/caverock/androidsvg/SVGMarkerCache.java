@@ -0,0 +1,288 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Picture;
+
+import com.caverock.androidsvg.SVG.Box;
+import com.caverock.androidsvg.SVG.Marker;
+import com.caverock.androidsvg.SVG.SvgObject;
+
+/**
+ * A cache of the marker elements of a document recorded into Pictures, so that a marker drawn at
+ * many vertices (eg. the points of a long polyline) is rendered once and then replayed at each
+ * vertex with only a change of transform.
+ * <p>
+ * The picture holds the marker content relative to the marker position, before the marker is rotated.
+ * The orientation is applied when the picture is replayed, so the same picture serves every vertex and
+ * every orient mode. Pictures are keyed by the marker element, the scale of its units (the stroke width
+ * of the referencing element, for markerUnits="strokeWidth"), and the viewport that percentage lengths
+ * are resolved against.
+ * <p>
+ * A picture is discarded when its marker, the marker's ancestors or descendants, or any element it
+ * referenced while it was recorded (eg. a gradient), is changed through the methods of {@link SVG},
+ * or {@link SVG.SvgElementBase#geometryChanged()} or {@link SVG.SvgElementBase#styleChanged()} is called
+ * on it. All pictures are discarded when the viewport, the DPI or the stylesheet changes. Markers that
+ * overflow their viewport or use features that can't be recorded (masks and non-scaling strokes) are
+ * remembered as such, and rendered directly at each vertex.
+ * <p>
+ * Obtain an instance with {@link SVG#getMarkerCache()}.
+ */
+public class SVGMarkerCache
+{
+   public static final int  DEFAULT_MAX_PICTURES = 256;
+
+   private LinkedHashMap<Key, Entry>  pictures = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+   private int  maxPictures = DEFAULT_MAX_PICTURES;
+   private int  visualBoundsGeneration = 0;
+
+   // Reused for lookups, so that they don't allocate
+   private Key  lookupKey = new Key();
+
+   // Statistics
+   private int  hits = 0;
+   private int  misses = 0;
+   private int  evictions = 0;
+
+
+   /*
+    * A recorded marker, and the elements that were resolved by reference while recording it.
+    * The picture is null if the marker has to be rendered directly. Its origin is at (left, top)
+    * relative to the marker position.
+    */
+   static class Entry
+   {
+      Picture          picture;
+      float            left, top;
+      List<SvgObject>  references;
+      boolean          hasUnresolvedReferences;
+
+      Entry(Picture picture, float left, float top, List<SvgObject> references, boolean hasUnresolvedReferences)
+      {
+         this.picture = picture;
+         this.left = left;
+         this.top = top;
+         this.references = references;
+         this.hasUnresolvedReferences = hasUnresolvedReferences;
+      }
+   }
+
+
+   private static class Key
+   {
+      Marker  marker;
+      float   unitsScale;
+      float   vx, vy, vw, vh;
+
+      void  set(Marker marker, float unitsScale, Box viewPort)
+      {
+         this.marker = marker;
+         this.unitsScale = unitsScale;
+         vx = viewPort.minX;
+         vy = viewPort.minY;
+         vw = viewPort.width;
+         vh = viewPort.height;
+      }
+
+      Key  copy()
+      {
+         Key  k = new Key();
+         k.marker = marker;
+         k.unitsScale = unitsScale;
+         k.vx = vx;  k.vy = vy;  k.vw = vw;  k.vh = vh;
+         return k;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Key))
+            return false;
+         Key  k = (Key) o;
+         return marker == k.marker && unitsScale == k.unitsScale &&
+                vx == k.vx && vy == k.vy && vw == k.vw && vh == k.vh;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int  h = System.identityHashCode(marker);
+         h = h * 31 + Float.floatToIntBits(unitsScale);
+         h = h * 31 + Float.floatToIntBits(vx);
+         h = h * 31 + Float.floatToIntBits(vy);
+         h = h * 31 + Float.floatToIntBits(vw);
+         return h * 31 + Float.floatToIntBits(vh);
+      }
+   }
+
+
+   SVGMarkerCache()
+   {
+   }
+
+
+   synchronized Entry  get(Marker marker, float unitsScale, Box viewPort, int visualBoundsGeneration)
+   {
+      if (visualBoundsGeneration != this.visualBoundsGeneration) {
+         pictures.clear();
+         this.visualBoundsGeneration = visualBoundsGeneration;
+      }
+      lookupKey.set(marker, unitsScale, viewPort);
+      Entry  entry = pictures.get(lookupKey);
+      lookupKey.marker = null;
+      if (entry != null)
+         hits++;
+      else
+         misses++;
+      return entry;
+   }
+
+
+   synchronized void  put(Marker marker, float unitsScale, Box viewPort, Entry entry)
+   {
+      if (maxPictures == 0)
+         return;
+      lookupKey.set(marker, unitsScale, viewPort);
+      pictures.put(lookupKey.copy(), entry);
+      lookupKey.marker = null;
+      trimToSize(maxPictures);
+   }
+
+
+   /*
+    * Called when an element has been changed, added or removed. Discards the pictures that
+    * may depend on it.
+    */
+   synchronized void  elementChanged(SvgObject obj, boolean added)
+   {
+      Iterator<Map.Entry<Key, Entry>>  it = pictures.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry<Key, Entry>  picture = it.next();
+         if (dependsOn(picture.getKey().marker, picture.getValue(), obj, added))
+            it.remove();
+      }
+   }
+
+
+   private static boolean  dependsOn(Marker marker, Entry entry, SvgObject obj, boolean added)
+   {
+      // A new element may be the target of a reference that could not be resolved before
+      if (added && entry.hasUnresolvedReferences)
+         return true;
+      if (SVG.isRelated(marker, obj))
+         return true;
+      for (int i=0; i<entry.references.size(); i++) {
+         if (SVG.isRelated(entry.references.get(i), obj))
+            return true;
+      }
+      return false;
+   }
+
+
+   private void  trimToSize(int size)
+   {
+      Iterator<Entry>  it = pictures.values().iterator();
+      while (pictures.size() > size && it.hasNext())
+      {
+         it.next();
+         it.remove();
+         evictions++;
+      }
+   }
+
+
+   /**
+    * Removes all the cached pictures.
+    */
+   public synchronized void  clear()
+   {
+      pictures.clear();
+   }
+
+
+   /**
+    * Sets the maximum number of pictures to keep. Least recently used pictures are evicted
+    * if the cache already has more. A size of zero disables the cache.
+    *
+    * @param count the maximum number of pictures
+    */
+   public synchronized void  setMaxPictures(int count)
+   {
+      maxPictures = Math.max(0, count);
+      trimToSize(maxPictures);
+   }
+
+
+   public synchronized int  getMaxPictures()
+   {
+      return maxPictures;
+   }
+
+
+   /**
+    * @return the number of cached pictures.
+    */
+   public synchronized int  size()
+   {
+      return pictures.size();
+   }
+
+
+   /**
+    * @return the number of lookups that were satisfied from the cache.
+    */
+   public synchronized int  getHitCount()
+   {
+      return hits;
+   }
+
+
+   /**
+    * @return the number of lookups that required a marker to be recorded.
+    */
+   public synchronized int  getMissCount()
+   {
+      return misses;
+   }
+
+
+   /**
+    * @return the number of pictures evicted to stay within the maximum size.
+    */
+   public synchronized int  getEvictionCount()
+   {
+      return evictions;
+   }
+
+
+   /**
+    * Resets the hit, miss and eviction counts.
+    */
+   public synchronized void  resetStatistics()
+   {
+      hits = 0;
+      misses = 0;
+      evictions = 0;
+   }
+}
@@ -20,6 +20,7 @@ package com.caverock.androidsvg;
 import java.util.ArrayList;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.graphics.Matrix;
 import android.graphics.PathMeasure;
@@ -31,15 +32,93 @@ import android.graphics.RectF;
  */
 public class SVGMeasure
 {
+   // Bounds cache statistics. Bounds may be measured from more than one thread.
+   private static final AtomicInteger  boundsCacheHits = new AtomicInteger();
+   private static final AtomicInteger  boundsCacheMisses = new AtomicInteger();
+
 
    /**
     * Get bounds
+    * <p>
+    * The result is cached on the element until {@link SVG.SvgElementBase#geometryChanged()}
+    * is called on it or one of its descendants, the document structure changes, or the
+    * renderer's DPI or viewport size differ from those the bounds were measured with.
     * 
     * @param element
     * @param bound
     * @param renderer
     */
    public static void getBounds(SVG.SvgElementBase element, RectF bound, SVGAndroidRenderer renderer)
+   {
+      int      generation = (element.indexedBy != null) ? element.indexedBy.geometryGeneration : 0;
+      float    dpi = renderer.getDPI();
+      SVG.Box  viewPort = renderer.getMeasureViewPort();
+      float    viewPortWidth = (viewPort != null) ? viewPort.width : -1;
+      float    viewPortHeight = (viewPort != null) ? viewPort.height : -1;
+      if (!element.boundsDirty && (!element.boundsUseReferences || element.cachedBoundsGeneration == generation) &&
+          element.cachedBoundsDPI == dpi && element.cachedBoundsViewPortWidth == viewPortWidth &&
+          element.cachedBoundsViewPortHeight == viewPortHeight)
+      {
+         boundsCacheHits.incrementAndGet();
+         bound.set(element.cachedBounds);
+         return;
+      }
+      boundsCacheMisses.incrementAndGet();
+      computeBounds(element, bound, renderer);
+
+      // Bounds of <use>, and of anything containing a <use>, depend on other elements
+      boolean  useReferences = (element instanceof SVG.Use);
+      if (!useReferences && element instanceof SVG.SvgContainer)
+      {
+         for (SVG.SvgObject child: ((SVG.SvgContainer) element).getChildren())
+         {
+            if (child instanceof SVG.SvgElementBase && ((SVG.SvgElementBase) child).boundsUseReferences) {
+               useReferences = true;
+               break;
+            }
+         }
+      }
+      element.cachedBounds.set(bound);
+      element.boundsUseReferences = useReferences;
+      element.cachedBoundsGeneration = generation;
+      element.cachedBoundsDPI = dpi;
+      element.cachedBoundsViewPortWidth = viewPortWidth;
+      element.cachedBoundsViewPortHeight = viewPortHeight;
+      element.boundsDirty = false;
+   }
+
+
+   /**
+    * Returns the number of calls to {@link #getBounds(SVG.SvgElementBase, RectF, SVGAndroidRenderer)}
+    * that were answered from the bounds cache.
+    */
+   public static int getBoundsCacheHits()
+   {
+      return boundsCacheHits.get();
+   }
+
+
+   /**
+    * Returns the number of calls to {@link #getBounds(SVG.SvgElementBase, RectF, SVGAndroidRenderer)}
+    * that had to calculate the bounds.
+    */
+   public static int getBoundsCacheMisses()
+   {
+      return boundsCacheMisses.get();
+   }
+
+
+   /**
+    * Resets the bounds cache hit and miss counters to zero.
+    */
+   public static void resetBoundsCacheStatistics()
+   {
+      boundsCacheHits.set(0);
+      boundsCacheMisses.set(0);
+   }
+
+
+   private static void computeBounds(SVG.SvgElementBase element, RectF bound, SVGAndroidRenderer renderer)
    {
       bound.left = 0;
       bound.right = 0;
@@ -810,10 +889,11 @@ public class SVGMeasure
          if (reqfonts.isEmpty() || fileResolver==null)
             return false;
          for (String fontName: reqfonts) {
-            if (fileResolver.resolveFont(
+            if (SVGTypefaceCache.getDefault().resolveFont(
+                  fileResolver,
                   fontName,
                   renderer.getState().style.fontWeight,
-                  String.valueOf(renderer.getState().style.fontStyle)
+                  renderer.getState().style.fontStyle
             ) == null)
                return false;
          }
@@ -0,0 +1,310 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.graphics.Path;
+import android.util.SparseArray;
+
+import com.caverock.androidsvg.SVG.Box;
+import com.caverock.androidsvg.SVG.SvgContainer;
+import com.caverock.androidsvg.SVG.SvgElement;
+import com.caverock.androidsvg.SVG.SvgObject;
+
+/**
+ * A cache of the android.graphics.Path objects built for the shape elements of a document,
+ * so that they are not rebuilt every time the document is drawn.
+ * <p>
+ * Each entry remembers the source the Path was built from: the path definition or point list and
+ * its size, and the resolved coordinates of basic shapes. A lookup only succeeds if these still
+ * match, so lengths relative to the viewport or font size are handled correctly, as are paths
+ * that are appended to in place. Other changes made in place to a path definition or point list
+ * must be followed by a call to {@link SVG.SvgElementBase#geometryChanged()}, which drops the entry.
+ * <p>
+ * Simplified versions of a path, drawn when a {@link SVGLevelOfDetail} policy is used, are kept
+ * in the same entry as the full path and are discarded with it.
+ * <p>
+ * The estimated size of the cached paths is kept below a memory budget by evicting the least
+ * recently used entries. Paths returned by the cache are shared and must not be modified
+ * other than setting their fill type.
+ * <p>
+ * Obtain an instance with {@link SVG#getPathCache()}.
+ */
+public class SVGPathCache
+{
+   public static final int  DEFAULT_MEMORY_BUDGET = 4 * 1024 * 1024;
+
+   // Rough estimate of the fixed native and Java overhead of one cached Path
+   private static final int  ENTRY_OVERHEAD = 128;
+
+   private LinkedHashMap<SvgElement, Entry>  entries = new LinkedHashMap<SvgElement, Entry>(16, 0.75f, true);
+
+   private int  memoryBudget = DEFAULT_MEMORY_BUDGET;
+   private int  memoryUsed = 0;
+
+   // Statistics
+   private int  hits = 0;
+   private int  misses = 0;
+   private int  evictions = 0;
+
+
+   private static class Entry
+   {
+      Path     path;
+      Box      boundingBox;
+      Object   source;
+      float[]  params;
+      int      size;
+
+      // Simplified versions of the path, keyed by the level of detail tolerance level
+      SparseArray<Path>  simplified;
+   }
+
+
+   SVGPathCache()
+   {
+   }
+
+
+   /*
+    * Returns the cached Path for the element if it was built from the same source and
+    * parameters. If the cached bounding box is still valid and the element has none, it is
+    * restored. Returns null on a miss, in which case any stale bounding box is cleared so
+    * that the caller recalculates it.
+    */
+   synchronized Path  get(SvgElement obj, Object source, float p0, float p1, float p2, float p3, float p4, float p5)
+   {
+      Entry  entry = entries.get(obj);
+      if (entry != null)
+      {
+         float[]  params = entry.params;
+         if (entry.source == source && params[0] == p0 && params[1] == p1 && params[2] == p2
+                                    && params[3] == p3 && params[4] == p4 && params[5] == p5)
+         {
+            hits++;
+            if (obj.boundingBox == null)
+               obj.boundingBox = entry.boundingBox;
+            return entry.path;
+         }
+         removeEntry(obj);
+         obj.boundingBox = null;
+      }
+      misses++;
+      return null;
+   }
+
+
+   /*
+    * Adds the Path built for an element. Should be called after the element's bounding box
+    * has been calculated. 'complexity' is the number of coordinates in the path, and is used
+    * to estimate its size.
+    */
+   synchronized void  put(SvgElement obj, Object source, float p0, float p1, float p2, float p3, float p4, float p5, Path path, int complexity)
+   {
+      Entry  entry = new Entry();
+      entry.path = path;
+      entry.boundingBox = obj.boundingBox;
+      entry.source = source;
+      entry.params = new float[] {p0, p1, p2, p3, p4, p5};
+      entry.size = ENTRY_OVERHEAD + complexity * 8;   // allow for Skia's float points and verbs
+
+      if (entry.size > memoryBudget)
+         return;
+
+      removeEntry(obj);
+      entries.put(obj, entry);
+      memoryUsed += entry.size;
+      trimToBudget(memoryBudget);
+   }
+
+
+   /*
+    * Returns a simplified version of the element's path at a tolerance level, or null if there is
+    * none. Only valid straight after get() has returned the element's full path.
+    */
+   synchronized Path  getSimplified(SvgElement obj, int level)
+   {
+      Entry  entry = entries.get(obj);
+      if (entry == null || entry.simplified == null)
+         return null;
+      return entry.simplified.get(level);
+   }
+
+
+   /*
+    * Adds a simplified version of the element's path. It is not cached if the full path is not.
+    * 'complexity' is the number of coordinates in the simplified path, or 0 if it is the full path.
+    */
+   synchronized void  putSimplified(SvgElement obj, int level, Path path, int complexity)
+   {
+      Entry  entry = entries.get(obj);
+      if (entry == null)
+         return;
+      if (entry.simplified == null)
+         entry.simplified = new SparseArray<Path>(2);
+      if (entry.simplified.get(level) != null)
+         return;
+
+      int  size = ENTRY_OVERHEAD + complexity * 8;
+      entry.simplified.put(level, path);
+      entry.size += size;
+      memoryUsed += size;
+      trimToBudget(memoryBudget);
+   }
+
+
+   /*
+    * Called when the geometry of an element has changed.
+    */
+   synchronized void  elementChanged(SvgObject obj)
+   {
+      if (obj instanceof SvgElement)
+         removeEntry((SvgElement) obj);
+   }
+
+
+   /*
+    * Called when an element and its descendants are removed from the document.
+    */
+   synchronized void  subtreeRemoved(SvgObject obj)
+   {
+      if (entries.isEmpty())
+         return;
+      if (obj instanceof SvgElement)
+         removeEntry((SvgElement) obj);
+      if (obj instanceof SvgContainer)
+      {
+         List<SvgObject>  children = ((SvgContainer) obj).getChildren();
+         for (int i=0; i<children.size(); i++)
+            subtreeRemoved(children.get(i));
+      }
+   }
+
+
+   private void  removeEntry(SvgElement obj)
+   {
+      Entry  old = entries.remove(obj);
+      if (old != null)
+         memoryUsed -= old.size;
+   }
+
+
+   private void  trimToBudget(int budget)
+   {
+      Iterator<Entry>  it = entries.values().iterator();
+      while (memoryUsed > budget && it.hasNext())
+      {
+         Entry  eldest = it.next();
+         it.remove();
+         memoryUsed -= eldest.size;
+         evictions++;
+      }
+   }
+
+
+   /**
+    * Removes all the cached paths.
+    */
+   public synchronized void  clear()
+   {
+      entries.clear();
+      memoryUsed = 0;
+   }
+
+
+   /**
+    * Sets the maximum estimated memory, in bytes, to be used by cached paths. Least recently
+    * used paths are evicted if the cache is already larger than the new budget.
+    * A budget of zero disables the cache.
+    *
+    * @param bytes the memory budget in bytes
+    */
+   public synchronized void  setMemoryBudget(int bytes)
+   {
+      memoryBudget = Math.max(0, bytes);
+      trimToBudget(memoryBudget);
+   }
+
+
+   /**
+    * @return the maximum estimated memory, in bytes, to be used by cached paths.
+    */
+   public synchronized int  getMemoryBudget()
+   {
+      return memoryBudget;
+   }
+
+
+   /**
+    * @return the estimated memory, in bytes, currently used by cached paths.
+    */
+   public synchronized int  getMemoryUsed()
+   {
+      return memoryUsed;
+   }
+
+
+   /**
+    * @return the number of cached paths.
+    */
+   public synchronized int  size()
+   {
+      return entries.size();
+   }
+
+
+   /**
+    * @return the number of lookups that were satisfied from the cache.
+    */
+   public synchronized int  getHitCount()
+   {
+      return hits;
+   }
+
+
+   /**
+    * @return the number of lookups that required a path to be built.
+    */
+   public synchronized int  getMissCount()
+   {
+      return misses;
+   }
+
+
+   /**
+    * @return the number of paths evicted to stay within the memory budget.
+    */
+   public synchronized int  getEvictionCount()
+   {
+      return evictions;
+   }
+
+
+   /**
+    * Resets the hit, miss and eviction counts.
+    */
+   public synchronized void  resetStatistics()
+   {
+      hits = 0;
+      misses = 0;
+      evictions = 0;
+   }
+}
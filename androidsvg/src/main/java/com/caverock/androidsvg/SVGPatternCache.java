@@ -0,0 +1,326 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+import com.caverock.androidsvg.SVG.Pattern;
+import com.caverock.androidsvg.SVG.SvgObject;
+
+/**
+ * A cache of the tiles rendered for the pattern elements of a document, so that the content of
+ * a pattern is not rendered again for every element it fills, every time the document is drawn.
+ * <p>
+ * A tile is one repetition of a pattern, rendered into a bitmap at a resolution matched to the
+ * scale of the device. Tiles are rendered for scales rounded up to the next quarter of a power of two,
+ * so a tile is only rendered again once the scale has changed by about 19%. Tiles are kept in a
+ * least recently used cache, limited to a number of bytes.
+ * <p>
+ * A tile is discarded when its pattern, the pattern's ancestors or descendants, or any element it
+ * referenced while it was rendered (eg. a gradient), is changed through the methods of {@link SVG},
+ * or {@link SVG.SvgElementBase#geometryChanged()} or {@link SVG.SvgElementBase#styleChanged()} is
+ * called on it. All tiles are discarded when the viewport, the DPI or the stylesheet changes.
+ * <p>
+ * Tile bitmaps are not recycled when they are evicted from the cache, because a renderer on
+ * another thread may still be drawing with them.
+ * <p>
+ * Obtain an instance with {@link SVG#getPatternCache()}.
+ */
+public class SVGPatternCache
+{
+   public static final int  DEFAULT_CACHE_SIZE = 8 * 1024 * 1024;
+
+   // Tile scales are rounded to steps of 2^(1/SCALE_STEPS_PER_OCTAVE)
+   static final int  SCALE_STEPS_PER_OCTAVE = 4;
+
+   private LinkedHashMap<Key, Tile>  tiles = new LinkedHashMap<Key, Tile>(16, 0.75f, true);
+   private int  cacheSize = DEFAULT_CACHE_SIZE;
+   private int  cacheBytesUsed = 0;
+   private int  visualBoundsGeneration = 0;
+
+   // Reused for lookups, so that they don't allocate
+   private Key  lookupKey = new Key();
+
+   // Statistics
+   private int  hits = 0;
+   private int  misses = 0;
+   private int  evictions = 0;
+
+
+   /*
+    * A rendered tile, and the elements that were resolved by reference while rendering it.
+    */
+   static class Tile
+   {
+      Bitmap           bitmap;
+      List<SvgObject>  references;
+      boolean          hasUnresolvedReferences;
+
+      Tile(Bitmap bitmap, List<SvgObject> references, boolean hasUnresolvedReferences)
+      {
+         this.bitmap = bitmap;
+         this.references = references;
+         this.hasUnresolvedReferences = hasUnresolvedReferences;
+      }
+   }
+
+
+   private static class Key
+   {
+      Pattern  pattern;
+      float    width, height;             // size of the tile in user units
+      float    contentWidth, contentHeight;  // objectBoundingBox content scale, or 0
+      int      scaleStep;
+
+      void  set(Pattern pattern, float width, float height, float contentWidth, float contentHeight, int scaleStep)
+      {
+         this.pattern = pattern;
+         this.width = width;
+         this.height = height;
+         this.contentWidth = contentWidth;
+         this.contentHeight = contentHeight;
+         this.scaleStep = scaleStep;
+      }
+
+      Key  copy()
+      {
+         Key  k = new Key();
+         k.set(pattern, width, height, contentWidth, contentHeight, scaleStep);
+         return k;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Key))
+            return false;
+         Key  k = (Key) o;
+         return pattern == k.pattern && scaleStep == k.scaleStep &&
+                width == k.width && height == k.height &&
+                contentWidth == k.contentWidth && contentHeight == k.contentHeight;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int  h = System.identityHashCode(pattern);
+         h = h * 31 + Float.floatToIntBits(width);
+         h = h * 31 + Float.floatToIntBits(height);
+         h = h * 31 + Float.floatToIntBits(contentWidth);
+         h = h * 31 + Float.floatToIntBits(contentHeight);
+         return h * 31 + scaleStep;
+      }
+   }
+
+
+   SVGPatternCache()
+   {
+   }
+
+
+   /*
+    * Returns the scale step that a device scale is rounded up to.
+    */
+   static int  getScaleStep(float scale)
+   {
+      return (int) Math.ceil(Math.log(scale) / Math.log(2) * SCALE_STEPS_PER_OCTAVE);
+   }
+
+
+   /*
+    * Returns the scale that tiles for a scale step are rendered at.
+    */
+   static float  getStepScale(int scaleStep)
+   {
+      return (float) Math.pow(2, (double) scaleStep / SCALE_STEPS_PER_OCTAVE);
+   }
+
+
+   synchronized Tile  get(Pattern pattern, float width, float height, float contentWidth, float contentHeight, int scaleStep, int visualBoundsGeneration)
+   {
+      if (visualBoundsGeneration != this.visualBoundsGeneration) {
+         clear();
+         this.visualBoundsGeneration = visualBoundsGeneration;
+      }
+      lookupKey.set(pattern, width, height, contentWidth, contentHeight, scaleStep);
+      Tile  entry = tiles.get(lookupKey);
+      lookupKey.pattern = null;
+      if (entry != null)
+         hits++;
+      else
+         misses++;
+      return entry;
+   }
+
+
+   synchronized void  put(Pattern pattern, float width, float height, float contentWidth, float contentHeight, int scaleStep, Tile entry)
+   {
+      int  bytes = byteCount(entry.bitmap);
+      if (bytes > cacheSize)
+         return;
+      lookupKey.set(pattern, width, height, contentWidth, contentHeight, scaleStep);
+      Tile  old = tiles.put(lookupKey.copy(), entry);
+      lookupKey.pattern = null;
+      if (old != null)
+         cacheBytesUsed -= byteCount(old.bitmap);
+      cacheBytesUsed += bytes;
+      trimToSize(cacheSize);
+   }
+
+
+   /*
+    * Called when an element has been changed, added or removed. Discards the tiles that
+    * may depend on it.
+    */
+   synchronized void  elementChanged(SvgObject obj, boolean added)
+   {
+      Iterator<Map.Entry<Key, Tile>>  it = tiles.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry<Key, Tile>  tile = it.next();
+         if (dependsOn(tile.getKey().pattern, tile.getValue(), obj, added)) {
+            cacheBytesUsed -= byteCount(tile.getValue().bitmap);
+            it.remove();
+         }
+      }
+   }
+
+
+   private static boolean  dependsOn(Pattern pattern, Tile entry, SvgObject obj, boolean added)
+   {
+      // A new element may be the target of a reference that could not be resolved before
+      if (added && entry.hasUnresolvedReferences)
+         return true;
+      if (SVG.isRelated(pattern, obj))
+         return true;
+      for (int i=0; i<entry.references.size(); i++) {
+         if (SVG.isRelated(entry.references.get(i), obj))
+            return true;
+      }
+      return false;
+   }
+
+
+   private static int  byteCount(Bitmap bitmap)
+   {
+      return bitmap.getRowBytes() * bitmap.getHeight();
+   }
+
+
+   private void  trimToSize(int size)
+   {
+      Iterator<Tile>  it = tiles.values().iterator();
+      while (cacheBytesUsed > size && it.hasNext())
+      {
+         Tile  eldest = it.next();
+         it.remove();
+         cacheBytesUsed -= byteCount(eldest.bitmap);
+         evictions++;
+      }
+   }
+
+
+   /**
+    * Removes all the cached tiles.
+    */
+   public synchronized void  clear()
+   {
+      tiles.clear();
+      cacheBytesUsed = 0;
+   }
+
+
+   /**
+    * Sets the maximum number of bytes of tile bitmaps to keep in the cache.
+    * A size of zero disables the caching of tiles, and patterns are rendered directly.
+    *
+    * @param bytes the cache size in bytes
+    */
+   public synchronized void  setCacheSize(int bytes)
+   {
+      cacheSize = Math.max(0, bytes);
+      trimToSize(cacheSize);
+   }
+
+
+   public synchronized int  getCacheSize()
+   {
+      return cacheSize;
+   }
+
+
+   /**
+    * @return the number of bytes used by the tiles currently in the cache.
+    */
+   public synchronized int  getCacheBytesUsed()
+   {
+      return cacheBytesUsed;
+   }
+
+
+   /**
+    * @return the number of cached tiles.
+    */
+   public synchronized int  size()
+   {
+      return tiles.size();
+   }
+
+
+   /**
+    * @return the number of lookups that were satisfied from the cache.
+    */
+   public synchronized int  getHitCount()
+   {
+      return hits;
+   }
+
+
+   /**
+    * @return the number of lookups that required a tile to be rendered.
+    */
+   public synchronized int  getMissCount()
+   {
+      return misses;
+   }
+
+
+   /**
+    * @return the number of tiles evicted to stay within the cache size.
+    */
+   public synchronized int  getEvictionCount()
+   {
+      return evictions;
+   }
+
+
+   /**
+    * Resets the hit, miss and eviction counts.
+    */
+   public synchronized void  resetStatistics()
+   {
+      hits = 0;
+      misses = 0;
+      evictions = 0;
+   }
+}
@@ -0,0 +1,39 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/*
+ * A weak reference to an SVGExternalFileResolver, for the keys of the caches that are shared by all
+ * documents. Resolvers are often inner classes of an Activity, or hold a Context, so the caches must
+ * not keep them alive. Resolvers are compared by identity, so the identity hash is kept for after
+ * the resolver has been collected.
+ */
+class SVGResolverReference extends WeakReference<SVGExternalFileResolver>
+{
+   final int  hash;
+
+
+   SVGResolverReference(SVGExternalFileResolver resolver, ReferenceQueue<SVGExternalFileResolver> queue)
+   {
+      super(resolver, queue);
+      this.hash = System.identityHashCode(resolver);
+   }
+}
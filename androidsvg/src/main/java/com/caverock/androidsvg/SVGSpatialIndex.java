@@ -0,0 +1,726 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+import com.caverock.androidsvg.SVG.SvgContainer;
+import com.caverock.androidsvg.SVG.SvgElement;
+import com.caverock.androidsvg.SVG.SvgElementBase;
+import com.caverock.androidsvg.SVG.SvgObject;
+
+/**
+ * A spatial index of the bounds of the rendered elements of a document, used for hit-testing.
+ * <p>
+ * Bounds are held in document (root element) coordinates, so elements inside nested groups
+ * are indexed too. The index is a quadtree in which each element is stored in the smallest
+ * node that fully contains its bounds. It is kept up to date by the owning {@link SVG} when
+ * elements are added or removed, and when {@link SVG.SvgElementBase#geometryChanged()} is called.
+ * <p>
+ * Obtain an instance with {@link SVG#getSpatialIndex(SVGAndroidRenderer)}.
+ */
+public class SVGSpatialIndex
+{
+   private static final int  MAX_ITEMS_PER_NODE = 8;
+   private static final int  MAX_DEPTH = 12;
+
+   private SVG                 document;
+   private SVGAndroidRenderer  renderer;
+
+   // The renderer viewport and DPI that the bounds were measured with
+   private SVG.Box  measuredViewPort = null;
+   private float    measuredDPI;
+
+   private Map<SvgElementBase, Entry>  entries = new HashMap<SvgElementBase, Entry>();
+   private Node                        root = null;
+
+   // Scratch object reused when computing bounds
+   private RectF  tempBounds = new RectF();
+
+
+   private static class Entry
+   {
+      SvgElementBase  element;
+      RectF           bounds = new RectF();
+      boolean         isLeaf;
+      Node            node;
+
+      Entry(SvgElementBase element, boolean isLeaf)
+      {
+         this.element = element;
+         this.isLeaf = isLeaf;
+      }
+   }
+
+
+   private static class Node
+   {
+      RectF        bounds;
+      int          depth;
+      List<Entry>  items = new ArrayList<Entry>();
+      Node[]       kids = null;
+
+      Node(float left, float top, float right, float bottom, int depth)
+      {
+         this.bounds = new RectF(left, top, right, bottom);
+         this.depth = depth;
+      }
+   }
+
+
+   protected SVGSpatialIndex(SVG document, SVGAndroidRenderer renderer)
+   {
+      this.document = document;
+      this.renderer = renderer;
+      rebuild();
+   }
+
+
+   /*
+    * Returns true if the index was measured at the current viewport and DPI of this renderer.
+    */
+   boolean  isMeasuredWith(SVGAndroidRenderer renderer)
+   {
+      if (renderer.getDPI() != measuredDPI)
+         return false;
+      SVG.Box  viewPort = renderer.getViewPort();
+      if (viewPort == null || measuredViewPort == null)
+         return viewPort == measuredViewPort;
+      return viewPort.minX == measuredViewPort.minX && viewPort.minY == measuredViewPort.minY &&
+             viewPort.width == measuredViewPort.width && viewPort.height == measuredViewPort.height;
+   }
+
+
+   /*
+    * Switches to measuring changed elements with another renderer, which must have the viewport
+    * and DPI that the index was measured at (see isMeasuredWith()). The index is not rebuilt.
+    */
+   void  setRenderer(SVGAndroidRenderer renderer)
+   {
+      this.renderer = renderer;
+   }
+
+
+   /**
+    * Discards the index contents and rebuilds it from the document tree.
+    */
+   public void  rebuild()
+   {
+      entries.clear();
+      root = null;
+      SVG.Box  viewPort = renderer.getViewPort();
+      measuredViewPort = (viewPort != null) ? new SVG.Box(viewPort.minX, viewPort.minY, viewPort.width, viewPort.height) : null;
+      measuredDPI = renderer.getDPI();
+      SVG.Svg  rootElement = document.getRootElement();
+      if (rootElement == null)
+         return;
+
+      RectF  docBounds = new RectF();
+      for (SvgObject child: rootElement.getChildren())
+         measureSubtree(child, null, docBounds);
+      if (docBounds.isEmpty())
+         docBounds.set(0, 0, 1, 1);
+      root = new Node(docBounds.left, docBounds.top, docBounds.right, docBounds.bottom, 0);
+      for (Entry entry: entries.values())
+         insert(root, entry);
+   }
+
+
+   //===============================================================================
+   // Queries
+
+
+   /**
+    * Returns the topmost rendered leaf element (shape, text, image or use) whose bounds
+    * contain the given point. Nested groups are searched.
+    *
+    * @param x point x in document coordinates
+    * @param y point y in document coordinates
+    * @return the topmost element at that point, or null if there is none.
+    */
+   public SvgElementBase  getElementAt(float x, float y)
+   {
+      return findTopmost(root, x, y, null, null);
+   }
+
+
+   /**
+    * Returns the topmost child of the root element whose bounds contain the given point.
+    * This matches the behaviour of {@link SVG.Svg#getTopElement(float, float, SVGAndroidRenderer)}.
+    *
+    * @param x point x in document coordinates
+    * @param y point y in document coordinates
+    * @return the topmost root level element at that point, or null if there is none.
+    */
+   public SvgElementBase  getTopElementAt(float x, float y)
+   {
+      return findTopmost(root, x, y, document.getRootElement(), null);
+   }
+
+
+   /**
+    * Adds to {@code result} all the leaf elements whose bounds intersect the given rectangle.
+    *
+    * @param rect the rectangle in document coordinates
+    * @param result the list to which the elements are added
+    * @return the result list.
+    */
+   public List<SvgElementBase>  getElementsIn(RectF rect, List<SvgElementBase> result)
+   {
+      if (root != null)
+         collectIntersecting(root, rect, result);
+      return result;
+   }
+
+
+   /**
+    * Returns the leaf element whose bounds are closest to the given point. An element whose
+    * bounds contain the point has a distance of zero. Ties are resolved in favour of the
+    * topmost element.
+    *
+    * @param x point x in document coordinates
+    * @param y point y in document coordinates
+    * @return the nearest element, or null if the document has no rendered elements.
+    */
+   public SvgElementBase  getNearestElement(float x, float y)
+   {
+      if (root == null)
+         return null;
+      Entry[]  best = new Entry[1];
+      float[]  bestDist = new float[] { Float.MAX_VALUE };
+      findNearest(root, x, y, best, bestDist);
+      return (best[0] == null) ? null : best[0].element;
+   }
+
+
+   /**
+    * Gets the bounds of an element in document coordinates, as stored in the index.
+    *
+    * @param element the element
+    * @param bounds receives the bounds
+    * @return false if the element is not in the index.
+    */
+   public boolean  getDocumentBounds(SvgElementBase element, RectF bounds)
+   {
+      Entry  entry = entries.get(element);
+      if (entry == null)
+         return false;
+      bounds.set(entry.bounds);
+      return true;
+   }
+
+
+   //===============================================================================
+   // Incremental updates. Called by SVG.
+
+
+   /*
+    * The bounds of an element (and so of its descendants and ancestors) have changed.
+    */
+   void  elementChanged(SvgElementBase element)
+   {
+      if (root == null || !entries.containsKey(element))
+         return;
+      measureSubtree(element, getParentMatrix(element), null);
+      reinsertSubtree(element);
+      updateAncestors(element);
+   }
+
+
+   /*
+    * An element and its subtree have been attached to the document.
+    */
+   void  subtreeAdded(SvgObject obj)
+   {
+      if (root == null || !isIndexable(obj) || !isRendered(obj.parent))
+         return;
+      measureSubtree(obj, getParentMatrix(obj), null);
+      reinsertSubtree(obj);
+      updateAncestors(obj);
+   }
+
+
+   /*
+    * An element and its subtree are being detached from the document.
+    */
+   void  subtreeRemoved(SvgObject obj)
+   {
+      if (root == null || !(obj instanceof SvgElementBase) || !entries.containsKey(obj))
+         return;
+      removeSubtree(obj);
+      updateAncestors(obj);
+   }
+
+
+   //===============================================================================
+   // Measuring
+
+
+   private static boolean  isIndexable(SvgObject obj)
+   {
+      return (obj instanceof SvgElement) && !(obj instanceof SVG.NotDirectlyRendered)
+             && (obj instanceof SVG.Group || obj instanceof SVG.GraphicsElement
+                 || obj instanceof SVG.TextPositionedContainer || obj instanceof SVG.Image
+                 || obj instanceof SVG.Svg);
+   }
+
+
+   private static boolean  isLeaf(SvgObject obj)
+   {
+      // <use> and <switch> are measured as a whole by SVGMeasure
+      return !(obj instanceof SVG.Group || obj instanceof SVG.Svg) || obj instanceof SVG.Use || obj instanceof SVG.Switch;
+   }
+
+
+   // Returns true if the container is part of the rendered tree (ie. not inside a <defs> etc).
+   private boolean  isRendered(SvgContainer container)
+   {
+      if (container == document.getRootElement())
+         return true;
+      return (container instanceof SvgElementBase) && entries.containsKey(container);
+   }
+
+
+   // Returns the matrix that maps from the coordinate space of obj's parent to document space.
+   private Matrix  getParentMatrix(SvgObject obj)
+   {
+      Matrix        m = new Matrix();
+      SvgContainer  parent = obj.parent;
+      while (parent != null && parent != document.getRootElement())
+      {
+         if (parent instanceof SVG.Group && ((SVG.Group) parent).transform != null)
+            m.postConcat(((SVG.Group) parent).transform);
+         else if (parent instanceof SVG.Svg)
+            m.postConcat(getViewPortTransform((SVG.Svg) parent));
+         parent = ((SvgObject) parent).parent;
+      }
+      return m;
+   }
+
+
+   /*
+    * Returns the matrix that maps from the user space of a nested <svg> element to that of its
+    * parent, as set up by SVGAndroidRenderer.render(SVG.Svg): its x and y position, then its
+    * viewBox fitted into its viewport according to preserveAspectRatio.
+    */
+   private Matrix  getViewPortTransform(SVG.Svg svg)
+   {
+      float  x = (svg.x != null) ? svg.x.floatValueX(renderer) : 0f;
+      float  y = (svg.y != null) ? svg.y.floatValueY(renderer) : 0f;
+      Matrix  m;
+      if (svg.viewBox != null)
+      {
+         SVG.Box  parentViewPort = getParentViewPortInUserUnits(svg);
+         float    w = (svg.width != null) ? svg.width.floatValueX(renderer) : parentViewPort.width;  // default 100%
+         float    h = (svg.height != null) ? svg.height.floatValueY(renderer) : parentViewPort.height;
+         PreserveAspectRatio  positioning = (svg.preserveAspectRatio != null) ? svg.preserveAspectRatio : PreserveAspectRatio.LETTERBOX;
+         m = SVGAndroidRenderer.calculateViewBoxTransform(new SVG.Box(x, y, w, h), svg.viewBox, positioning);
+      }
+      else
+      {
+         m = new Matrix();
+         m.setTranslate(x, y);
+      }
+      return m;
+   }
+
+
+   // Returns the viewBox (or failing that the viewport) of the nearest <svg> ancestor of 'svg'
+   private SVG.Box  getParentViewPortInUserUnits(SVG.Svg svg)
+   {
+      SvgContainer  parent = svg.parent;
+      while (parent != null)
+      {
+         if (parent instanceof SVG.Svg && ((SVG.Svg) parent).viewBox != null)
+            return ((SVG.Svg) parent).viewBox;
+         parent = ((SvgObject) parent).parent;
+      }
+      SVG.Box  viewPort = renderer.getViewPort();
+      return (viewPort != null) ? viewPort : new SVG.Box(0, 0, 0, 0);
+   }
+
+
+   /*
+    * Measure the document bounds of 'obj' and its descendants, creating entries as needed.
+    * 'parentMatrix' maps from the parent's coordinate space to document space (null for identity).
+    * If 'union' is not null, the bounds of 'obj' are added to it.
+    */
+   private void  measureSubtree(SvgObject obj, Matrix parentMatrix, RectF union)
+   {
+      if (!isIndexable(obj))
+         return;
+
+      SvgElementBase  elem = (SvgElementBase) obj;
+      Entry           entry = entries.get(elem);
+      boolean         leaf = isLeaf(obj);
+      if (entry == null) {
+         entry = new Entry(elem, leaf);
+         entries.put(elem, entry);
+      }
+
+      if (leaf)
+      {
+         SVGMeasure.getBounds(elem, tempBounds, renderer);
+         if (parentMatrix != null)
+            parentMatrix.mapRect(tempBounds);
+         entry.bounds.set(tempBounds);
+      }
+      else
+      {
+         Matrix  childMatrix = parentMatrix;
+         Matrix  transform = null;
+         if (obj instanceof SVG.Group)
+            transform = ((SVG.Group) obj).transform;
+         else if (obj instanceof SVG.Svg && obj != document.getRootElement())
+            transform = getViewPortTransform((SVG.Svg) obj);
+         if (transform != null)
+         {
+            childMatrix = new Matrix(transform);
+            if (parentMatrix != null)
+               childMatrix.postConcat(parentMatrix);
+         }
+         entry.bounds.setEmpty();
+         for (SvgObject child: ((SvgContainer) obj).getChildren())
+            measureSubtree(child, childMatrix, entry.bounds);
+      }
+
+      if (union != null)
+         unionBounds(union, entry.bounds);
+   }
+
+
+   private static void  unionBounds(RectF union, RectF bounds)
+   {
+      if (bounds.isEmpty())
+         return;
+      if (union.isEmpty())
+         union.set(bounds);
+      else
+         union.union(bounds);
+   }
+
+
+   // Recompute the bounds of the ancestor groups of 'obj' from their children's entries
+   private void  updateAncestors(SvgObject obj)
+   {
+      SvgContainer  parent = obj.parent;
+      while (parent != null && parent != document.getRootElement())
+      {
+         Entry  entry = entries.get(parent);
+         if (entry == null)
+            break;
+         entry.bounds.setEmpty();
+         for (SvgObject child: parent.getChildren())
+         {
+            Entry  childEntry = entries.get(child);
+            if (childEntry != null)
+               unionBounds(entry.bounds, childEntry.bounds);
+         }
+         reinsert(entry);
+         parent = ((SvgObject) parent).parent;
+      }
+   }
+
+
+   //===============================================================================
+   // Quadtree maintenance
+
+
+   private void  reinsertSubtree(SvgObject obj)
+   {
+      Entry  entry = entries.get(obj);
+      if (entry == null)
+         return;
+      reinsert(entry);
+      if (!entry.isLeaf)
+      {
+         for (SvgObject child: ((SvgContainer) obj).getChildren())
+            reinsertSubtree(child);
+      }
+   }
+
+
+   private void  removeSubtree(SvgObject obj)
+   {
+      Entry  entry = entries.remove(obj);
+      if (entry == null)
+         return;
+      if (entry.node != null)
+         entry.node.items.remove(entry);
+      if (!entry.isLeaf)
+      {
+         for (SvgObject child: ((SvgContainer) obj).getChildren())
+            removeSubtree(child);
+      }
+   }
+
+
+   private void  reinsert(Entry entry)
+   {
+      if (entry.node != null)
+      {
+         // Avoid the removal and insertion if the entry still belongs in the same node
+         if (entry.node.kids == null && contains(entry.node.bounds, entry.bounds))
+            return;
+         entry.node.items.remove(entry);
+         entry.node = null;
+      }
+      if (!entry.bounds.isEmpty() && !contains(root.bounds, entry.bounds))
+         growRoot(entry.bounds);
+      insert(root, entry);
+   }
+
+
+   /*
+    * Replaces the root node with a larger one that also covers 'bounds', and redistributes
+    * the entries. The root at least doubles in size each time, so elements that keep moving
+    * outwards only cause the tree to be rebuilt a logarithmic number of times.
+    */
+   private void  growRoot(RectF bounds)
+   {
+      RectF  grown = new RectF(root.bounds);
+      grown.union(bounds);
+      float  halfWidth = Math.max(grown.width(), root.bounds.width() * 2) / 2;
+      float  halfHeight = Math.max(grown.height(), root.bounds.height() * 2) / 2;
+      float  cx = grown.centerX();
+      float  cy = grown.centerY();
+      root = new Node(cx - halfWidth, cy - halfHeight, cx + halfWidth, cy + halfHeight, 0);
+      for (Entry entry: entries.values())
+      {
+         if (entry.node != null) {
+            entry.node = null;
+            insert(root, entry);
+         }
+      }
+   }
+
+
+   private static boolean  contains(RectF outer, RectF inner)
+   {
+      return inner.left >= outer.left && inner.top >= outer.top && inner.right <= outer.right && inner.bottom <= outer.bottom;
+   }
+
+
+   private void  insert(Node node, Entry entry)
+   {
+      // Entries outside the root bounds are kept at the root
+      while (node.kids != null)
+      {
+         Node  kid = findContainingKid(node, entry.bounds);
+         if (kid == null)
+            break;
+         node = kid;
+      }
+      node.items.add(entry);
+      entry.node = node;
+      if (node.kids == null && node.items.size() > MAX_ITEMS_PER_NODE && node.depth < MAX_DEPTH)
+         split(node);
+   }
+
+
+   private static Node  findContainingKid(Node node, RectF bounds)
+   {
+      for (Node kid: node.kids)
+      {
+         if (contains(kid.bounds, bounds))
+            return kid;
+      }
+      return null;
+   }
+
+
+   private void  split(Node node)
+   {
+      float  cx = node.bounds.centerX();
+      float  cy = node.bounds.centerY();
+      int    depth = node.depth + 1;
+      node.kids = new Node[] { new Node(node.bounds.left, node.bounds.top, cx, cy, depth),
+                               new Node(cx, node.bounds.top, node.bounds.right, cy, depth),
+                               new Node(node.bounds.left, cy, cx, node.bounds.bottom, depth),
+                               new Node(cx, cy, node.bounds.right, node.bounds.bottom, depth) };
+      List<Entry>  items = node.items;
+      node.items = new ArrayList<Entry>();
+      for (Entry entry: items)
+      {
+         Node  kid = findContainingKid(node, entry.bounds);
+         if (kid == null) {
+            node.items.add(entry);
+         } else {
+            kid.items.add(entry);
+            entry.node = kid;
+         }
+      }
+   }
+
+
+   //===============================================================================
+   // Query implementation
+
+
+   /*
+    * Find the topmost entry containing (x,y). If 'parent' is not null, only children of that
+    * container are considered, otherwise only leaves.
+    */
+   private SvgElementBase  findTopmost(Node node, float x, float y, SvgContainer parent, SvgElementBase best)
+   {
+      if (node == null)
+         return best;
+      for (int i=0; i<node.items.size(); i++)
+      {
+         Entry  entry = node.items.get(i);
+         if ((parent != null) ? (entry.element.parent != parent) : !entry.isLeaf)
+            continue;
+         if (!entry.bounds.contains(x, y))
+            continue;
+         if (best == null || isAbove(entry.element, best))
+            best = entry.element;
+      }
+      if (node.kids != null)
+      {
+         for (Node kid: node.kids)
+         {
+            if (x >= kid.bounds.left && x <= kid.bounds.right && y >= kid.bounds.top && y <= kid.bounds.bottom)
+               best = findTopmost(kid, x, y, parent, best);
+         }
+      }
+      return best;
+   }
+
+
+   private void  collectIntersecting(Node node, RectF rect, List<SvgElementBase> result)
+   {
+      for (int i=0; i<node.items.size(); i++)
+      {
+         Entry  entry = node.items.get(i);
+         if (entry.isLeaf && RectF.intersects(entry.bounds, rect))
+            result.add(entry.element);
+      }
+      if (node.kids != null)
+      {
+         for (Node kid: node.kids)
+         {
+            if (RectF.intersects(kid.bounds, rect))
+               collectIntersecting(kid, rect, result);
+         }
+      }
+   }
+
+
+   private void  findNearest(Node node, float x, float y, Entry[] best, float[] bestDist)
+   {
+      for (int i=0; i<node.items.size(); i++)
+      {
+         Entry  entry = node.items.get(i);
+         if (!entry.isLeaf || entry.bounds.isEmpty())
+            continue;
+         float  dist = distance(entry.bounds, x, y);
+         if (dist < bestDist[0] || (dist == bestDist[0] && best[0] != null && isAbove(entry.element, best[0].element)))
+         {
+            bestDist[0] = dist;
+            best[0] = entry;
+         }
+      }
+      if (node.kids != null)
+      {
+         for (Node kid: node.kids)
+         {
+            // Entries in a node lie entirely within its bounds, so this is a lower bound
+            if (distance(kid.bounds, x, y) <= bestDist[0])
+               findNearest(kid, x, y, best, bestDist);
+         }
+      }
+   }
+
+
+   private static float  distance(RectF r, float x, float y)
+   {
+      float  dx = Math.max(0, Math.max(r.left - x, x - r.right));
+      float  dy = Math.max(0, Math.max(r.top - y, y - r.bottom));
+      return (float) Math.sqrt(dx * dx + dy * dy);
+   }
+
+
+   /*
+    * Returns true if 'a' is painted after (above) 'b'.
+    */
+   private static boolean  isAbove(SvgObject a, SvgObject b)
+   {
+      if (a == b)
+         return false;
+      // Find the depths of each and bring them to a common level
+      int  depthA = depth(a);
+      int  depthB = depth(b);
+      while (depthA > depthB) {
+         if (a.parent == b)
+            return true;   // a is a descendant of b
+         a = (SvgObject) a.parent;
+         depthA--;
+      }
+      while (depthB > depthA) {
+         if (b.parent == a)
+            return false;  // b is a descendant of a
+         b = (SvgObject) b.parent;
+         depthB--;
+      }
+      if (a == b)
+         return false;
+      while (a.parent != b.parent) {
+         a = (SvgObject) a.parent;
+         b = (SvgObject) b.parent;
+      }
+      if (a.parent == null)
+         return false;
+      return childIndex(a) > childIndex(b);
+   }
+
+
+   /*
+    * Returns the position of an object in its parent's children. The position found last time is
+    * checked first, so this is O(1) unless the children have changed since, in which case they are
+    * all renumbered at once.
+    */
+   private static int  childIndex(SvgObject obj)
+   {
+      List<SvgObject>  siblings = obj.parent.getChildren();
+      int              index = obj.childIndex;
+      if (index >= 0 && index < siblings.size() && siblings.get(index) == obj)
+         return index;
+      obj.childIndex = -1;
+      for (int i=0; i<siblings.size(); i++)
+         siblings.get(i).childIndex = i;
+      return obj.childIndex;
+   }
+
+
+   private static int  depth(SvgObject obj)
+   {
+      int  depth = 0;
+      while (obj.parent != null) {
+         obj = (SvgObject) obj.parent;
+         depth++;
+      }
+      return depth;
+   }
+
+}
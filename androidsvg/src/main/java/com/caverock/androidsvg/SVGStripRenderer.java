@@ -0,0 +1,180 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Picture;
+
+import com.caverock.androidsvg.SVG.Box;
+
+/**
+ * Rasterizes a document on several threads by splitting the output bitmap into horizontal strips.
+ * <p>
+ * The renderer stores state in the elements of the document as it draws them (bounding boxes,
+ * cascaded styles, cached paths and so on), so the document tree must only be rendered by one
+ * thread at a time. The document is therefore first recorded into a {@link Picture} on the calling
+ * thread, as {@link SVG#renderToPicture(int, int)} does. Each strip then draws its own copy of the
+ * picture onto its own bitmap, translated so that only its part of the document is drawn, and the
+ * strip is copied into the output bitmap. The rasterization, which is most of the work, is what
+ * runs in parallel. The calling thread draws one of the strips, and waits until all are done.
+ * <p>
+ * Documents that use masks fall back to single threaded rendering, because masks are not
+ * supported when recording pictures. See {@link #canRenderInParallel(SVG)}. Bitmaps that are
+ * too small to be worth splitting are also rendered on a single thread.
+ * <p>
+ * The executor must be able to run tasks on threads other than the calling thread. If it runs tasks
+ * on the calling thread (eg. a direct executor), the strips are simply drawn one after another.
+ */
+public class SVGStripRenderer
+{
+   // Strips smaller than this are not worth the overhead of an extra renderer
+   public static final int  MIN_STRIP_HEIGHT = 64;
+
+
+   /**
+    * Checks whether a document can be rasterized in parallel strips.
+    *
+    * @param document the document to check
+    * @return true if the document has no features that need single threaded rendering
+    */
+   public static boolean  canRenderInParallel(SVG document)
+   {
+      if (document.getRootElement() == null)
+         return false;
+      if (document.getElementCountByTagName(SVG.Mask.class) > 0)
+         return false;
+      return true;
+   }
+
+
+   /**
+    * Renders a document into a bitmap, in parallel strips if possible. The full size of the bitmap
+    * is used as the viewport. The bitmap is drawn over, not cleared.
+    *
+    * @param document the document to render
+    * @param bitmap the bitmap to render into
+    * @param executor the executor on which the strips are rendered
+    * @param stripCount the maximum number of strips
+    */
+   public static void  render(final SVG document, Bitmap bitmap, Executor executor, int stripCount)
+   {
+      final int  width = bitmap.getWidth();
+      final int  height = bitmap.getHeight();
+      final Box  viewPort = new Box(0f, 0f, width, height);
+
+      stripCount = Math.min(stripCount, height / MIN_STRIP_HEIGHT);
+      if (executor == null || stripCount < 2 || !canRenderInParallel(document))
+      {
+         SVGAndroidRenderer  renderer = new SVGAndroidRenderer(new Canvas(bitmap), viewPort, document.getRenderDPI());
+         renderer.renderDocument(document, null, null, true);
+         return;
+      }
+
+      final Canvas      output = new Canvas(bitmap);
+      final int         stripHeight = (height + stripCount - 1) / stripCount;
+      final Throwable[] failure = new Throwable[1];
+
+      // Only this thread touches the document
+      Picture  picture = new Picture();
+      Canvas   recordingCanvas = picture.beginRecording(width, height);
+      SVGAndroidRenderer  renderer = new SVGAndroidRenderer(recordingCanvas, viewPort, document.getRenderDPI());
+      renderer.renderDocument(document, null, null, false);
+      picture.endRecording();
+
+      final CountDownLatch  done = new CountDownLatch(stripCount - 1);
+      for (int i=1; i<stripCount; i++)
+      {
+         final int  top = i * stripHeight;
+         if (top >= height) {
+            done.countDown();
+            continue;
+         }
+         // Each strip plays back its own copy, made here before any strip starts drawing
+         final Picture  stripPicture = new Picture(picture);
+         executor.execute(new Runnable() {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  Bitmap  strip = renderStrip(stripPicture, width, top, Math.min(stripHeight, height - top));
+                  synchronized (output) {
+                     output.drawBitmap(strip, 0, top, null);
+                  }
+                  strip.recycle();
+               }
+               catch (Throwable e)
+               {
+                  synchronized (failure) {
+                     if (failure[0] == null)
+                        failure[0] = e;
+                  }
+               }
+               finally
+               {
+                  done.countDown();
+               }
+            }
+         });
+      }
+
+      // First strip on this thread
+      Bitmap  first = renderStrip(picture, width, 0, Math.min(stripHeight, height));
+      synchronized (output) {
+         output.drawBitmap(first, 0, 0, null);
+      }
+      first.recycle();
+
+      boolean  interrupted = false;
+      while (true)
+      {
+         try {
+            done.await();
+            break;
+         } catch (InterruptedException e) {
+            interrupted = true;
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+
+      synchronized (failure) {
+         if (failure[0] instanceof OutOfMemoryError)
+            throw (OutOfMemoryError) failure[0];
+         if (failure[0] instanceof RuntimeException)
+            throw (RuntimeException) failure[0];
+         if (failure[0] != null)
+            throw new RuntimeException(failure[0]);
+      }
+   }
+
+
+   private static Bitmap  renderStrip(Picture picture, int width, int top, int stripHeight)
+   {
+      Bitmap  strip = Bitmap.createBitmap(width, stripHeight, Config.ARGB_8888);
+      Canvas  canvas = new Canvas(strip);
+      canvas.translate(0, -top);
+      canvas.drawPicture(picture);
+      return strip;
+   }
+}
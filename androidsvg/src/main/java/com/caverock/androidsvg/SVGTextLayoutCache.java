@@ -0,0 +1,227 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Typeface;
+
+import com.caverock.androidsvg.SVG.SvgObject;
+
+/**
+ * A cache of the layout of the text elements of a document, so that the text of a label is not
+ * transformed by the xml:space rules and measured again by every pass over it, every time the
+ * document is drawn.
+ * <p>
+ * For each text element, the cache keeps its runs of text (one for each text node of the element
+ * and its descendants) after the xml:space rules have been applied, with their advance widths,
+ * and the total widths used to position anchored text. Each is stored with the Typeface, text size
+ * and xml:space mode it was measured with, and is only used again if these match, so the same
+ * element can be drawn with different inherited fonts (eg. through {@code <use>}).
+ * <p>
+ * The layout of a text element is discarded when the element, its ancestors or its descendants are
+ * changed through the methods of {@link SVG}, or {@link SVG.SvgElementBase#geometryChanged()} or
+ * {@link SVG.SvgElementBase#styleChanged()} is called on them, or when the text of one of its text
+ * nodes is replaced. Everything is discarded when the viewport, the DPI or the stylesheet changes.
+ * <p>
+ * Obtain an instance with {@link SVG#getTextLayoutCache()}.
+ */
+public class SVGTextLayoutCache
+{
+   public static final int  DEFAULT_MAX_LAYOUTS = 1024;
+
+   private LinkedHashMap<SvgObject, Map<Object, Run>>  layouts = new LinkedHashMap<SvgObject, Map<Object, Run>>(16, 0.75f, true);
+   private int  maxLayouts = DEFAULT_MAX_LAYOUTS;
+   private int  visualBoundsGeneration = 0;
+
+   // Statistics
+   private int  hits = 0;
+   private int  misses = 0;
+   private int  evictions = 0;
+
+
+   /*
+    * A run of text and its advance width. For the total width of a text container, 'text'
+    * and 'sourceText' are null. Never modified once created.
+    */
+   static class Run
+   {
+      String    sourceText;    // the text node's text before the xml:space rules were applied
+      String    text;
+      float     width;
+      Typeface  typeface;
+      float     textSize;
+      boolean   spacePreserve;
+
+      Run(String sourceText, String text, float width, Typeface typeface, float textSize, boolean spacePreserve)
+      {
+         this.sourceText = sourceText;
+         this.text = text;
+         this.width = width;
+         this.typeface = typeface;
+         this.textSize = textSize;
+         this.spacePreserve = spacePreserve;
+      }
+   }
+
+
+   SVGTextLayoutCache()
+   {
+   }
+
+
+   /*
+    * Returns the run cached for a text node or text container of a text element, if it was measured
+    * with the same font. 'source' is the text node or container, and 'sourceText' the text of the node.
+    */
+   synchronized Run  get(SvgObject textRoot, Object source, String sourceText, Typeface typeface, float textSize, boolean spacePreserve, int visualBoundsGeneration)
+   {
+      if (visualBoundsGeneration != this.visualBoundsGeneration) {
+         layouts.clear();
+         this.visualBoundsGeneration = visualBoundsGeneration;
+      }
+      Map<Object, Run>  layout = layouts.get(textRoot);
+      Run               run = (layout != null) ? layout.get(source) : null;
+      if (run != null && run.sourceText == sourceText && run.typeface == typeface &&
+          run.textSize == textSize && run.spacePreserve == spacePreserve) {
+         hits++;
+         return run;
+      }
+      misses++;
+      return null;
+   }
+
+
+   synchronized void  put(SvgObject textRoot, Object source, Run run)
+   {
+      if (maxLayouts == 0)
+         return;
+      Map<Object, Run>  layout = layouts.get(textRoot);
+      if (layout == null) {
+         layout = new HashMap<Object, Run>();
+         layouts.put(textRoot, layout);
+         trimToSize(maxLayouts);
+      }
+      layout.put(source, run);
+   }
+
+
+   /*
+    * Called when an element has been changed, added or removed. Discards the layouts of the
+    * text elements that may depend on it.
+    */
+   synchronized void  elementChanged(SvgObject obj)
+   {
+      Iterator<SvgObject>  it = layouts.keySet().iterator();
+      while (it.hasNext())
+      {
+         if (SVG.isRelated(it.next(), obj))
+            it.remove();
+      }
+   }
+
+
+   private void  trimToSize(int size)
+   {
+      Iterator<Map<Object, Run>>  it = layouts.values().iterator();
+      while (layouts.size() > size && it.hasNext())
+      {
+         it.next();
+         it.remove();
+         evictions++;
+      }
+   }
+
+
+   /**
+    * Removes all the cached layouts.
+    */
+   public synchronized void  clear()
+   {
+      layouts.clear();
+   }
+
+
+   /**
+    * Sets the maximum number of text elements to keep the layout of. Least recently used layouts
+    * are evicted if the cache already has more. A size of zero disables the cache.
+    *
+    * @param count the maximum number of layouts
+    */
+   public synchronized void  setMaxLayouts(int count)
+   {
+      maxLayouts = Math.max(0, count);
+      trimToSize(maxLayouts);
+   }
+
+
+   public synchronized int  getMaxLayouts()
+   {
+      return maxLayouts;
+   }
+
+
+   /**
+    * @return the number of text elements whose layout is cached.
+    */
+   public synchronized int  size()
+   {
+      return layouts.size();
+   }
+
+
+   /**
+    * @return the number of lookups that were satisfied from the cache.
+    */
+   public synchronized int  getHitCount()
+   {
+      return hits;
+   }
+
+
+   /**
+    * @return the number of lookups that required text to be measured.
+    */
+   public synchronized int  getMissCount()
+   {
+      return misses;
+   }
+
+
+   /**
+    * @return the number of layouts evicted to stay within the maximum size.
+    */
+   public synchronized int  getEvictionCount()
+   {
+      return evictions;
+   }
+
+
+   /**
+    * Resets the hit, miss and eviction counts.
+    */
+   public synchronized void  resetStatistics()
+   {
+      hits = 0;
+      misses = 0;
+      evictions = 0;
+   }
+}
@@ -0,0 +1,640 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.util.Log;
+
+import com.caverock.androidsvg.SVG.Box;
+import com.caverock.androidsvg.SVG.Length;
+import com.caverock.androidsvg.SVG.Style;
+import com.caverock.androidsvg.SVG.SvgContainer;
+import com.caverock.androidsvg.SVG.SvgElementBase;
+import com.caverock.androidsvg.SVG.SvgObject;
+
+/**
+ * Renders a document as a grid of fixed-size square tiles, for documents that are too
+ * large to be rendered into a single bitmap (eg. floor plans and maps).
+ * <p>
+ * At a scale of 1, the document is the size returned by {@link #getDocumentWidth()} and
+ * {@link #getDocumentHeight()}. At other scales the grid covers the document scaled by that
+ * amount, and tile (0,0) is at the top left of the document.
+ * <p>
+ * Rendered tiles are kept in a least recently used cache, limited to a number of bytes.
+ * Tiles that contain no elements are detected with the document's spatial index and are
+ * not rendered at all. The bounds in the index do not include strokes or markers, so the
+ * search is widened by the furthest that the strokes and markers of the document can reach.
+ * Tiles are discarded when the document is changed through methods that notify it of the
+ * change. Call {@link #invalidate()} after changing the document in other ways.
+ * <p>
+ * Tile bitmaps are not recycled when they are evicted from the cache, because the caller
+ * may still be using them.
+ */
+public class SVGTileRenderer
+{
+   private static final String  TAG = "SVGTileRenderer";
+
+   public static final int  DEFAULT_TILE_SIZE = 256;
+   public static final int  DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+   // The maximum number of empty tiles remembered. They hold no bitmap, so they are not
+   // limited by the byte size of the cache.
+   private static final int  MAX_EMPTY_TILES = 4096;
+
+   // Extra margin around tiles, in tile pixels, for antialiasing
+   private static final float  ANTIALIAS_MARGIN = 1f;
+
+   private static final float  DEFAULT_FONT_SIZE = 16f;   // 12pt at 96 DPI
+   private static final float  DEFAULT_MARKER_SIZE = 3f;
+   private static final double  SQRT2 = 1.414213562373095;
+
+   private SVG    document;
+   private int    tileSize;
+   private float  documentWidth;
+   private float  documentHeight;
+
+   private SVGAndroidRenderer  measureRenderer;
+
+   private LinkedHashMap<TileKey, Bitmap>   tiles = new LinkedHashMap<TileKey, Bitmap>(16, 0.75f, true);
+   private LinkedHashMap<TileKey, Boolean>  emptyTiles = new LinkedHashMap<TileKey, Boolean>(16, 0.75f, true);
+   private int  cacheSize = DEFAULT_CACHE_SIZE;
+   private int  cacheBytesUsed = 0;
+   private int  contentGeneration;
+
+   // How far strokes and markers can reach beyond the bounds of elements. 'overhang' is in the
+   // user units of the root element and 'nonScalingOverhang' in pixels. If 'overhangUnknown'
+   // is set, no tile is treated as empty.
+   private float    overhang;
+   private float    nonScalingOverhang;
+   private boolean  overhangUnknown;
+
+   // Used while calculating the overhang
+   private float    maxStrokeWidth;
+   private float    maxNonScalingStrokeWidth;
+   private float    maxMiterLimit;
+   private float    maxScale;
+   private float    maxFontSize;
+   private boolean  hasMarkers;
+
+   // Reused when testing whether a tile is empty
+   private List<SvgElementBase>  tileElements = new ArrayList<SvgElementBase>();
+
+   // Statistics
+   private int  hits = 0;
+   private int  misses = 0;
+   private int  culled = 0;
+   private int  evictions = 0;
+
+
+   private static class TileKey
+   {
+      int  scaleBits;
+      int  column;
+      int  row;
+
+      TileKey(float scale, int column, int row)
+      {
+         this.scaleBits = Float.floatToIntBits(scale);
+         this.column = column;
+         this.row = row;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof TileKey))
+            return false;
+         TileKey  other = (TileKey) o;
+         return scaleBits == other.scaleBits && column == other.column && row == other.row;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return (scaleBits * 31 + column) * 31 + row;
+      }
+   }
+
+
+   /**
+    * Creates a tile renderer for a document, using tiles of {@link #DEFAULT_TILE_SIZE} pixels.
+    *
+    * @param document the document to render
+    */
+   public SVGTileRenderer(SVG document)
+   {
+      this(document, DEFAULT_TILE_SIZE);
+   }
+
+
+   /**
+    * Creates a tile renderer for a document.
+    *
+    * @param document the document to render
+    * @param tileSize the width and height of the tiles in pixels
+    */
+   public SVGTileRenderer(SVG document, int tileSize)
+   {
+      if (document.getRootElement() == null)
+         throw new IllegalArgumentException("SVG document is empty");
+      if (tileSize <= 0)
+         throw new IllegalArgumentException("Invalid tile size");
+
+      this.document = document;
+      this.tileSize = tileSize;
+      calculateDocumentSize();
+   }
+
+
+   /*
+    * Determines the size of the document at a scale of 1, the same way renderToPicture() does.
+    */
+   private void  calculateDocumentSize()
+   {
+      documentWidth = document.getDocumentWidth();
+      documentHeight = document.getDocumentHeight();
+      if (documentWidth <= 0 || documentHeight <= 0)
+      {
+         RectF  viewBox = document.getDocumentViewBox();
+         if (viewBox != null) {
+            documentWidth = viewBox.width();
+            documentHeight = viewBox.height();
+         } else {
+            documentWidth = 512;
+            documentHeight = 512;
+         }
+      }
+      measureRenderer = new SVGAndroidRenderer(null, new Box(0, 0, documentWidth, documentHeight), document.getRenderDPI());
+      contentGeneration = document.contentGeneration;
+      calculateOverhang();
+   }
+
+
+   /*
+    * Finds how far, in the user units of the root element, the strokes and markers of the
+    * document can extend beyond the bounds of the elements in the spatial index. This uses
+    * the largest stroke width, miter limit and transform scale in the document, rather than
+    * the cascaded style of each element, so it is an overestimate.
+    */
+   private void  calculateOverhang()
+   {
+      maxStrokeWidth = 1f;   // the initial value
+      maxNonScalingStrokeWidth = 0f;
+      maxMiterLimit = 4f;
+      maxScale = 1f;
+      maxFontSize = DEFAULT_FONT_SIZE;
+      hasMarkers = false;
+      overhangUnknown = false;
+
+      measureStyles(document.getRootElement(), 1f);
+      List<CSSParser.Rule>  rules = document.getCSSRules();
+      if (rules != null)
+      {
+         // We don't know which elements rules apply to, so assume the largest scale
+         for (CSSParser.Rule rule: rules)
+            measureStyle(rule.style, maxScale);
+      }
+
+      float  halfStroke = maxStrokeWidth / 2f;
+      overhang = halfStroke * Math.max(maxMiterLimit, 1.5f);   // 1.5 allows for square caps
+      nonScalingOverhang = maxNonScalingStrokeWidth / 2f * Math.max(maxMiterLimit, 1.5f);
+
+      if (hasMarkers)
+      {
+         List<SvgObject>  markers = document.getElementsByTagName(SVG.Marker.class);
+         for (int i=0; i<markers.size(); i++)
+         {
+            SVG.Marker  marker = (SVG.Marker) markers.get(i);
+            if (isOverflowVisible(marker)) {
+               // The content of the marker is not clipped, so it could be any size
+               overhangUnknown = true;
+               return;
+            }
+            float  w = (marker.markerWidth != null) ? resolveLength(marker.markerWidth) : DEFAULT_MARKER_SIZE;
+            float  h = (marker.markerHeight != null) ? resolveLength(marker.markerHeight) : DEFAULT_MARKER_SIZE;
+            float  size = (float) Math.sqrt(w * w + h * h);
+            if (!marker.markerUnitsAreUser)
+               size *= Math.max(maxStrokeWidth, maxNonScalingStrokeWidth);
+            else
+               size *= maxScale;
+            overhang = Math.max(overhang, size);
+         }
+      }
+   }
+
+
+   private void  measureStyles(SvgObject obj, float scale)
+   {
+      if (obj instanceof SVG.HasTransform)
+      {
+         Matrix  transform = getTransform(obj);
+         if (transform != null)
+            scale *= transform.mapRadius(1f);
+      }
+      if (obj instanceof SvgElementBase)
+      {
+         SvgElementBase  elem = (SvgElementBase) obj;
+         maxScale = Math.max(maxScale, scale);
+         measureStyle(elem.baseStyle, scale);
+         measureStyle(elem.style, scale);
+      }
+      if (obj instanceof SvgContainer)
+      {
+         List<SvgObject>  children = ((SvgContainer) obj).getChildren();
+         for (int i=0; i<children.size(); i++)
+            measureStyles(children.get(i), scale);
+      }
+   }
+
+
+   private static Matrix  getTransform(SvgObject obj)
+   {
+      if (obj instanceof SVG.Group)
+         return ((SVG.Group) obj).transform;
+      if (obj instanceof SVG.GraphicsElement)
+         return ((SVG.GraphicsElement) obj).transform;
+      if (obj instanceof SVG.Text)
+         return ((SVG.Text) obj).transform;
+      if (obj instanceof SVG.Image)
+         return ((SVG.Image) obj).transform;
+      return null;
+   }
+
+
+   private void  measureStyle(Style style, float scale)
+   {
+      if (style == null)
+         return;
+      if ((style.specifiedFlags & SVG.SPECIFIED_FONT_SIZE) != 0 && style.fontSize != null && !isFontRelative(style.fontSize))
+         maxFontSize = Math.max(maxFontSize, resolveLength(style.fontSize));
+      if ((style.specifiedFlags & SVG.SPECIFIED_STROKE_WIDTH) != 0 && style.strokeWidth != null)
+      {
+         float  width = resolveLength(style.strokeWidth);
+         if ((style.specifiedFlags & SVG.SPECIFIED_VECTOR_EFFECT) != 0 && style.vectorEffect == Style.VectorEffect.NonScalingStroke)
+            maxNonScalingStrokeWidth = Math.max(maxNonScalingStrokeWidth, width);
+         else
+            maxStrokeWidth = Math.max(maxStrokeWidth, width * scale);
+      }
+      if ((style.specifiedFlags & SVG.SPECIFIED_STROKE_MITERLIMIT) != 0 && style.strokeMiterLimit != null)
+         maxMiterLimit = Math.max(maxMiterLimit, style.strokeMiterLimit);
+      if ((style.specifiedFlags & (SVG.SPECIFIED_MARKER_START | SVG.SPECIFIED_MARKER_MID | SVG.SPECIFIED_MARKER_END)) != 0)
+         hasMarkers = true;
+   }
+
+
+   private static boolean  isOverflowVisible(SVG.Marker marker)
+   {
+      Style  style = marker.style;
+      if (style != null && (style.specifiedFlags & SVG.SPECIFIED_OVERFLOW) != 0)
+         return Boolean.TRUE.equals(style.overflow);
+      style = marker.baseStyle;
+      return style != null && (style.specifiedFlags & SVG.SPECIFIED_OVERFLOW) != 0 && Boolean.TRUE.equals(style.overflow);
+   }
+
+
+   private static boolean  isFontRelative(Length length)
+   {
+      return length.unit == SVG.Unit.em || length.unit == SVG.Unit.ex || length.unit == SVG.Unit.percent;
+   }
+
+
+   /*
+    * Converts a length to user units without a rendering state. Percentages are of the
+    * document size, and font relative units use the largest font size found.
+    */
+   private float  resolveLength(Length length)
+   {
+      switch (length.unit)
+      {
+         case em:
+            return length.value * maxFontSize;
+         case ex:
+            return length.value * maxFontSize / 2f;
+         case percent:
+            float  n = (float) (Math.sqrt(documentWidth * documentWidth + documentHeight * documentHeight) / SQRT2);
+            return length.value * n / 100f;
+         default:
+            return length.floatValue(measureRenderer);
+      }
+   }
+
+
+   public int  getTileSize()
+   {
+      return tileSize;
+   }
+
+
+   /**
+    * @return the width of the document, in pixels, at a scale of 1.
+    */
+   public float  getDocumentWidth()
+   {
+      return documentWidth;
+   }
+
+
+   /**
+    * @return the height of the document, in pixels, at a scale of 1.
+    */
+   public float  getDocumentHeight()
+   {
+      return documentHeight;
+   }
+
+
+   /**
+    * @return the number of tile columns covering the document at the given scale.
+    */
+   public int  getColumnCount(float scale)
+   {
+      return (int) Math.ceil(documentWidth * scale / tileSize);
+   }
+
+
+   /**
+    * @return the number of tile rows covering the document at the given scale.
+    */
+   public int  getRowCount(float scale)
+   {
+      return (int) Math.ceil(documentHeight * scale / tileSize);
+   }
+
+
+   /**
+    * Returns a tile of the document, rendering it if it is not in the cache.
+    *
+    * @param scale the scale at which the document is rendered
+    * @param column the column of the tile
+    * @param row the row of the tile
+    * @return the tile bitmap, or null if the tile is outside the document, contains nothing
+    *         or could not be allocated.
+    */
+   public synchronized Bitmap  getTile(float scale, int column, int row)
+   {
+      if (column < 0 || row < 0 || column >= getColumnCount(scale) || row >= getRowCount(scale))
+         return null;
+
+      if (contentGeneration != document.contentGeneration) {
+         clear();
+         calculateOverhang();
+      }
+
+      TileKey  key = new TileKey(scale, column, row);
+      if (emptyTiles.get(key) != null) {
+         hits++;
+         return null;
+      }
+      Bitmap  bitmap = tiles.get(key);
+      if (bitmap != null) {
+         hits++;
+         return bitmap;
+      }
+      misses++;
+
+      if (isTileEmpty(scale, column, row))
+      {
+         culled++;
+         emptyTiles.put(key, Boolean.TRUE);
+         Iterator<Boolean>  it = emptyTiles.values().iterator();
+         while (emptyTiles.size() > MAX_EMPTY_TILES && it.hasNext()) {
+            it.next();
+            it.remove();
+         }
+         return null;
+      }
+      bitmap = renderTile(scale, column, row);
+      if (bitmap == null)
+         return null;
+
+      int  bytes = byteCount(bitmap);
+      if (bytes <= cacheSize)
+      {
+         tiles.put(key, bitmap);
+         cacheBytesUsed += bytes;
+         trimToSize(cacheSize);
+      }
+      return bitmap;
+   }
+
+
+   /**
+    * Draws the tiles of the document that are visible in a viewport.
+    * Tiles outside the viewport are not rendered.
+    *
+    * @param canvas the canvas to draw to
+    * @param scale the scale at which the document is rendered
+    * @param viewPort the area of the canvas to fill, in the pixel coordinates of the scaled document
+    */
+   public void  draw(Canvas canvas, float scale, RectF viewPort)
+   {
+      int  firstColumn = Math.max(0, (int) Math.floor(viewPort.left / tileSize));
+      int  firstRow = Math.max(0, (int) Math.floor(viewPort.top / tileSize));
+      int  lastColumn = Math.min(getColumnCount(scale), (int) Math.ceil(viewPort.right / tileSize)) - 1;
+      int  lastRow = Math.min(getRowCount(scale), (int) Math.ceil(viewPort.bottom / tileSize)) - 1;
+
+      for (int row = firstRow; row <= lastRow; row++)
+      {
+         for (int column = firstColumn; column <= lastColumn; column++)
+         {
+            Bitmap  tile = getTile(scale, column, row);
+            if (tile != null)
+               canvas.drawBitmap(tile, column * tileSize, row * tileSize, null);
+         }
+      }
+   }
+
+
+   /*
+    * Checks the document's spatial index for elements that might be visible in the tile.
+    */
+   private boolean  isTileEmpty(float scale, int column, int row)
+   {
+      if (overhangUnknown)
+         return false;
+
+      float  margin = ANTIALIAS_MARGIN + nonScalingOverhang;
+      RectF  rect = new RectF(column * tileSize - margin, row * tileSize - margin,
+                              (column + 1) * tileSize + margin, (row + 1) * tileSize + margin);
+
+      // Convert from tile pixels to the user space of the root element
+      Matrix  m = new Matrix();
+      SVG.Svg  root = document.getRootElement();
+      if (root.viewBox != null)
+      {
+         Box  viewPort = new Box(0, 0, documentWidth, documentHeight);
+         PreserveAspectRatio  positioning = (root.preserveAspectRatio != null) ? root.preserveAspectRatio : PreserveAspectRatio.LETTERBOX;
+         m.set(SVGAndroidRenderer.calculateViewBoxTransform(viewPort, root.viewBox, positioning));
+      }
+      m.postScale(scale, scale);
+      Matrix  inverse = new Matrix();
+      if (!m.invert(inverse))
+         return false;
+      inverse.mapRect(rect);
+      rect.inset(-overhang, -overhang);
+
+      tileElements.clear();
+      document.getSpatialIndex(measureRenderer).getElementsIn(rect, tileElements);
+      return tileElements.isEmpty();
+   }
+
+
+   private Bitmap  renderTile(float scale, int column, int row)
+   {
+      try
+      {
+         Bitmap  bitmap = Bitmap.createBitmap(tileSize, tileSize, Config.ARGB_8888);
+         Canvas  canvas = new Canvas(bitmap);
+         canvas.translate(-column * tileSize, -row * tileSize);
+         canvas.scale(scale, scale);
+
+         SVGAndroidRenderer  renderer = new SVGAndroidRenderer(canvas, new Box(0, 0, documentWidth, documentHeight), document.getRenderDPI());
+         renderer.renderDocument(document, null, null, true);
+         return bitmap;
+      }
+      catch (OutOfMemoryError e)
+      {
+         // Free the cached tiles and let the caller try again later
+         Log.e(TAG, "Not enough memory to render tile");
+         clear();
+         return null;
+      }
+   }
+
+
+   private static int  byteCount(Bitmap bitmap)
+   {
+      return (bitmap != null) ? bitmap.getRowBytes() * bitmap.getHeight() : 0;
+   }
+
+
+   private void  trimToSize(int size)
+   {
+      Iterator<Bitmap>  it = tiles.values().iterator();
+      while (cacheBytesUsed > size && it.hasNext())
+      {
+         Bitmap  eldest = it.next();
+         it.remove();
+         cacheBytesUsed -= byteCount(eldest);
+         evictions++;
+      }
+   }
+
+
+   private void  clear()
+   {
+      tiles.clear();
+      emptyTiles.clear();
+      cacheBytesUsed = 0;
+      contentGeneration = document.contentGeneration;
+   }
+
+
+   /**
+    * Discards all the cached tiles and recalculates the size of the document.
+    */
+   public synchronized void  invalidate()
+   {
+      clear();
+      calculateDocumentSize();
+   }
+
+
+   /**
+    * Sets the maximum number of bytes of tile bitmaps to keep in the cache.
+    *
+    * @param bytes the cache size in bytes
+    */
+   public synchronized void  setCacheSize(int bytes)
+   {
+      cacheSize = Math.max(0, bytes);
+      trimToSize(cacheSize);
+   }
+
+
+   public synchronized int  getCacheSize()
+   {
+      return cacheSize;
+   }
+
+
+   /**
+    * @return the number of bytes used by the tiles currently in the cache.
+    */
+   public synchronized int  getCacheBytesUsed()
+   {
+      return cacheBytesUsed;
+   }
+
+
+   /**
+    * @return the number of tile requests that were satisfied from the cache.
+    */
+   public synchronized int  getHitCount()
+   {
+      return hits;
+   }
+
+
+   /**
+    * @return the number of tile requests that were not in the cache.
+    */
+   public synchronized int  getMissCount()
+   {
+      return misses;
+   }
+
+
+   /**
+    * @return the number of tiles that were not rendered because they contain no elements.
+    */
+   public synchronized int  getCulledCount()
+   {
+      return culled;
+   }
+
+
+   /**
+    * @return the number of tiles evicted to stay within the cache size.
+    */
+   public synchronized int  getEvictionCount()
+   {
+      return evictions;
+   }
+
+
+   /**
+    * Resets the hit, miss, culled and eviction counts.
+    */
+   public synchronized void  resetStatistics()
+   {
+      hits = 0;
+      misses = 0;
+      culled = 0;
+      evictions = 0;
+   }
+}
@@ -0,0 +1,344 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.graphics.Typeface;
+
+import com.caverock.androidsvg.SVG.Style.FontStyle;
+
+/**
+ * A cache of the Typefaces resolved for font families, so that fonts are not resolved again for
+ * every text element, every time a document is drawn. In particular, a resolver such as
+ * {@link SimpleAssetResolver} loads the font file every time it is asked for a font.
+ * <p>
+ * Typefaces are keyed by font family, weight and style, and by the {@link SVGExternalFileResolver}
+ * they were obtained from. The generic families (serif, sans-serif, monospace, cursive and fantasy)
+ * are kept apart from those of any resolver. Failures are cached too, so a family that can't be
+ * found is not looked for again. The least recently used Typefaces are evicted once the cache holds
+ * more than a number of them.
+ * <p>
+ * Resolvers are only held weakly, so that the cache doesn't keep alive a resolver, or the Activity
+ * or Context it refers to. The Typefaces of a resolver are removed once it has been garbage collected.
+ * A resolver whose fonts change should be passed to {@link #removeResolver(SVGExternalFileResolver)}.
+ * <p>
+ * The cache is thread-safe, and one instance, returned by {@link #getDefault()}, is shared by all
+ * documents and renderers.
+ */
+public class SVGTypefaceCache
+{
+   public static final int  DEFAULT_MAX_ENTRIES = 128;
+
+   private static final SVGTypefaceCache  defaultCache = new SVGTypefaceCache();
+
+   private LinkedHashMap<Key, Entry>  entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+   private int  maxEntries = DEFAULT_MAX_ENTRIES;
+
+   // The references to resolvers in keys are queued here when the resolvers are collected
+   private ReferenceQueue<SVGExternalFileResolver>  collectedResolvers = new ReferenceQueue<SVGExternalFileResolver>();
+
+   // Reused for lookups, so that they don't allocate
+   private Key  lookupKey = new Key();
+
+   // Statistics
+   private int  hits = 0;
+   private int  misses = 0;
+   private int  evictions = 0;
+
+
+   /*
+    * A resolved Typeface, or null if the family could not be found.
+    */
+   static class Entry
+   {
+      Typeface  typeface;
+
+      Entry(Typeface typeface)
+      {
+         this.typeface = typeface;
+      }
+   }
+
+
+   private static class Key
+   {
+      boolean                  hasResolver;   // false for the generic families
+      SVGExternalFileResolver  resolver;      // only in the lookup key
+      SVGResolverReference     resolverRef;   // only in keys stored in the cache
+      int                      resolverHash;
+      String                   family;
+      int                      weight;
+      FontStyle                style;
+
+      void  set(SVGExternalFileResolver resolver, String family, int weight, FontStyle style)
+      {
+         this.hasResolver = (resolver != null);
+         this.resolver = resolver;
+         this.resolverRef = null;
+         this.resolverHash = (resolver != null) ? System.identityHashCode(resolver) : 0;
+         this.family = family;
+         this.weight = weight;
+         this.style = style;
+      }
+
+      // Returns a copy to store in the cache, which only refers to the resolver weakly
+      Key  copy(ReferenceQueue<SVGExternalFileResolver> queue)
+      {
+         Key  k = new Key();
+         k.hasResolver = hasResolver;
+         k.resolverRef = hasResolver ? new SVGResolverReference(resolver, queue) : null;
+         k.resolverHash = resolverHash;
+         k.family = family;
+         k.weight = weight;
+         k.style = style;
+         return k;
+      }
+
+      // Returns null if there is no resolver, or it has been collected
+      SVGExternalFileResolver  getResolver()
+      {
+         return (resolverRef != null) ? resolverRef.get() : resolver;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Key))
+            return false;
+         Key  k = (Key) o;
+         if (hasResolver != k.hasResolver || resolverHash != k.resolverHash || weight != k.weight || style != k.style)
+            return false;
+         if (hasResolver)
+         {
+            // A collected resolver matches nothing
+            SVGExternalFileResolver  r = getResolver();
+            if (r == null || r != k.getResolver())
+               return false;
+         }
+         return family.equals(k.family);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int  h = resolverHash;
+         h = h * 31 + family.hashCode();
+         h = h * 31 + weight;
+         return h * 31 + ((style != null) ? style.ordinal() : -1);
+      }
+   }
+
+
+   /**
+    * Creates an empty cache with a limit of {@link #DEFAULT_MAX_ENTRIES}.
+    */
+   public SVGTypefaceCache()
+   {
+   }
+
+
+   /**
+    * @return the cache shared by all documents and renderers.
+    */
+   public static SVGTypefaceCache  getDefault()
+   {
+      return defaultCache;
+   }
+
+
+   /*
+    * Returns the cached result for a font, or null if it has not been resolved yet.
+    * 'resolver' is null for the generic families.
+    */
+   synchronized Entry  get(SVGExternalFileResolver resolver, String family, int weight, FontStyle style)
+   {
+      removeCollectedResolvers();
+      lookupKey.set(resolver, family, weight, style);
+      Entry  entry = entries.get(lookupKey);
+      lookupKey.resolver = null;
+      lookupKey.family = null;
+      if (entry != null)
+         hits++;
+      else
+         misses++;
+      return entry;
+   }
+
+
+   synchronized void  put(SVGExternalFileResolver resolver, String family, int weight, FontStyle style, Typeface typeface)
+   {
+      if (maxEntries == 0)
+         return;
+      removeCollectedResolvers();
+      lookupKey.set(resolver, family, weight, style);
+      entries.put(lookupKey.copy(collectedResolvers), new Entry(typeface));
+      lookupKey.resolver = null;
+      lookupKey.family = null;
+      trimToSize(maxEntries);
+   }
+
+
+   /**
+    * Returns the Typeface that a resolver provides for a font, from the cache if it has been
+    * asked for it before.
+    *
+    * @param resolver the resolver to ask
+    * @param family the font family
+    * @param weight the font weight
+    * @param style the font style
+    * @return the Typeface, or null if the resolver could not find the font
+    */
+   public Typeface  resolveFont(SVGExternalFileResolver resolver, String family, int weight, FontStyle style)
+   {
+      Entry  entry = get(resolver, family, weight, style);
+      if (entry != null)
+         return entry.typeface;
+      // Resolve outside the lock, as it may load a font file
+      Typeface  typeface = resolver.resolveFont(family, weight, String.valueOf(style));
+      put(resolver, family, weight, style, typeface);
+      return typeface;
+   }
+
+
+   /*
+    * Removes the entries of resolvers that have been garbage collected.
+    */
+   private void  removeCollectedResolvers()
+   {
+      if (collectedResolvers.poll() == null)
+         return;
+      while (collectedResolvers.poll() != null)
+         ;
+      Iterator<Key>  it = entries.keySet().iterator();
+      while (it.hasNext())
+      {
+         Key  key = it.next();
+         if (key.hasResolver && key.getResolver() == null)
+            it.remove();
+      }
+   }
+
+
+   private void  trimToSize(int size)
+   {
+      Iterator<Entry>  it = entries.values().iterator();
+      while (entries.size() > size && it.hasNext())
+      {
+         it.next();
+         it.remove();
+         evictions++;
+      }
+   }
+
+
+   /**
+    * Removes the Typefaces obtained from a resolver, so that it is asked for them again.
+    * Call this when the fonts a resolver provides have changed.
+    *
+    * @param resolver the resolver
+    */
+   public synchronized void  removeResolver(SVGExternalFileResolver resolver)
+   {
+      if (resolver == null)
+         return;
+      Iterator<Key>  it = entries.keySet().iterator();
+      while (it.hasNext())
+      {
+         if (it.next().getResolver() == resolver)
+            it.remove();
+      }
+   }
+
+
+   /**
+    * Removes all the cached Typefaces.
+    */
+   public synchronized void  clear()
+   {
+      entries.clear();
+   }
+
+
+   /**
+    * Sets the maximum number of Typefaces, including failures, to keep. Least recently used ones
+    * are evicted if the cache already has more. A size of zero disables the cache.
+    *
+    * @param count the maximum number of entries
+    */
+   public synchronized void  setMaxEntries(int count)
+   {
+      maxEntries = Math.max(0, count);
+      trimToSize(maxEntries);
+   }
+
+
+   public synchronized int  getMaxEntries()
+   {
+      return maxEntries;
+   }
+
+
+   /**
+    * @return the number of cached Typefaces, including failures.
+    */
+   public synchronized int  size()
+   {
+      return entries.size();
+   }
+
+
+   /**
+    * @return the number of lookups that were satisfied from the cache.
+    */
+   public synchronized int  getHitCount()
+   {
+      return hits;
+   }
+
+
+   /**
+    * @return the number of lookups that required a font to be resolved.
+    */
+   public synchronized int  getMissCount()
+   {
+      return misses;
+   }
+
+
+   /**
+    * @return the number of Typefaces evicted to stay within the maximum size.
+    */
+   public synchronized int  getEvictionCount()
+   {
+      return evictions;
+   }
+
+
+   /**
+    * Resets the hit, miss and eviction counts.
+    */
+   public synchronized void  resetStatistics()
+   {
+      hits = 0;
+      misses = 0;
+      evictions = 0;
+   }
+}
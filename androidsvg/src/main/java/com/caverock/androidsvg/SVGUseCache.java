@@ -0,0 +1,386 @@
+/*
+   Copyright 2013 Paul LeBeau, Cave Rock Software Ltd.
+   Copyright 2015 François RAOULT, Personal work.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.caverock.androidsvg;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Picture;
+
+import com.caverock.androidsvg.SVG.Box;
+import com.caverock.androidsvg.SVG.Colour;
+import com.caverock.androidsvg.SVG.Length;
+import com.caverock.androidsvg.SVG.PaintReference;
+import com.caverock.androidsvg.SVG.Style;
+import com.caverock.androidsvg.SVG.SvgObject;
+import com.caverock.androidsvg.SVG.SvgPaint;
+
+/**
+ * A cache of the content of the symbol and svg elements of a document referenced by {@code <use>}
+ * elements, recorded into Pictures, so that a symbol used many times (eg. the icons of a map) is
+ * rendered once and then replayed for each use.
+ * <p>
+ * What a referenced element draws depends on the properties it inherits from the {@code <use>} element,
+ * such as the fill, the stroke and currentColor. Pictures are keyed by the referenced element, the
+ * width and height given to it, the viewport that percentage lengths are resolved against, and the
+ * values of all the inherited properties. Non-inherited properties don't cross the reference.
+ * <p>
+ * A picture is discarded when its element, the element's ancestors or descendants, or any element it
+ * referenced while it was recorded (eg. a gradient), is changed through the methods of {@link SVG},
+ * or {@link SVG.SvgElementBase#geometryChanged()} or {@link SVG.SvgElementBase#styleChanged()} is called
+ * on it. All pictures are discarded when the viewport, the DPI or the stylesheet changes. Elements that
+ * overflow their viewport or use features that can't be recorded (masks and non-scaling strokes) are
+ * remembered as such, and rendered directly for each use.
+ * <p>
+ * Obtain an instance with {@link SVG#getUseCache()}.
+ */
+public class SVGUseCache
+{
+   public static final int  DEFAULT_MAX_PICTURES = 256;
+
+   private LinkedHashMap<Key, Entry>  pictures = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+   private int  maxPictures = DEFAULT_MAX_PICTURES;
+   private int  visualBoundsGeneration = 0;
+
+   // Reused for lookups, so that they don't allocate
+   private Key  lookupKey = new Key();
+
+   // Statistics
+   private int  hits = 0;
+   private int  misses = 0;
+   private int  evictions = 0;
+
+
+   /*
+    * A recorded element, the elements that were resolved by reference while recording it, and its
+    * bounding box in the user space of the <use> element. The picture is null if the element has to
+    * be rendered directly. Its origin is at (left, top) in the user space of the <use> element.
+    */
+   static class Entry
+   {
+      Picture          picture;
+      float            left, top;
+      List<SvgObject>  references;
+      boolean          hasUnresolvedReferences;
+      Box              boundingBox;
+
+      Entry(Picture picture, float left, float top, List<SvgObject> references, boolean hasUnresolvedReferences, Box boundingBox)
+      {
+         this.picture = picture;
+         this.left = left;
+         this.top = top;
+         this.references = references;
+         this.hasUnresolvedReferences = hasUnresolvedReferences;
+         this.boundingBox = boundingBox;
+      }
+   }
+
+
+   private static class Key
+   {
+      SvgObject  ref;
+      Length     width, height;
+      float      vx, vy, vw, vh;
+      Style      style;           // only the inherited properties are compared
+      boolean    spacePreserve;
+
+      void  set(SvgObject ref, Length width, Length height, Box viewPort, Style style, boolean spacePreserve)
+      {
+         this.ref = ref;
+         this.width = width;
+         this.height = height;
+         vx = viewPort.minX;
+         vy = viewPort.minY;
+         vw = viewPort.width;
+         vh = viewPort.height;
+         this.style = style;
+         this.spacePreserve = spacePreserve;
+      }
+
+      // Don't keep the lookup objects alive
+      void  clear()
+      {
+         ref = null;
+         width = height = null;
+         style = null;
+      }
+
+      // The key of an entry must not share the renderer's style, which is modified as it renders
+      Key  copy()
+      {
+         Key  k = new Key();
+         k.ref = ref;
+         k.width = width;
+         k.height = height;
+         k.vx = vx;  k.vy = vy;  k.vw = vw;  k.vh = vh;
+         k.style = (Style) style.clone();
+         k.spacePreserve = spacePreserve;
+         return k;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Key))
+            return false;
+         Key  k = (Key) o;
+         return ref == k.ref && spacePreserve == k.spacePreserve &&
+                vx == k.vx && vy == k.vy && vw == k.vw && vh == k.vh &&
+                sameLength(width, k.width) && sameLength(height, k.height) &&
+                sameInheritedProperties(style, k.style);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         int  h = System.identityHashCode(ref);
+         h = h * 31 + Float.floatToIntBits(vx);
+         h = h * 31 + Float.floatToIntBits(vy);
+         h = h * 31 + Float.floatToIntBits(vw);
+         h = h * 31 + Float.floatToIntBits(vh);
+         h = h * 31 + paintHashCode(style.fill);
+         h = h * 31 + paintHashCode(style.stroke);
+         h = h * 31 + ((style.color != null) ? style.color.colour : 0);
+         return spacePreserve ? h : ~h;
+      }
+   }
+
+
+   /*
+    * Compare the properties that a referenced element inherits from the <use> element.
+    */
+   private static boolean  sameInheritedProperties(Style a, Style b)
+   {
+      return samePaint(a.fill, b.fill) && a.fillRule == b.fillRule && same(a.fillOpacity, b.fillOpacity) &&
+             samePaint(a.stroke, b.stroke) && same(a.strokeOpacity, b.strokeOpacity) &&
+             sameLength(a.strokeWidth, b.strokeWidth) && a.strokeLineCap == b.strokeLineCap &&
+             a.strokeLineJoin == b.strokeLineJoin && same(a.strokeMiterLimit, b.strokeMiterLimit) &&
+             sameLengths(a.strokeDashArray, b.strokeDashArray) && sameLength(a.strokeDashOffset, b.strokeDashOffset) &&
+             samePaint(a.color, b.color) && same(a.fontFamily, b.fontFamily) && sameLength(a.fontSize, b.fontSize) &&
+             same(a.fontWeight, b.fontWeight) && a.fontStyle == b.fontStyle && a.textDecoration == b.textDecoration &&
+             a.direction == b.direction && a.textAnchor == b.textAnchor &&
+             same(a.markerStart, b.markerStart) && same(a.markerMid, b.markerMid) && same(a.markerEnd, b.markerEnd) &&
+             same(a.visibility, b.visibility) && a.clipRule == b.clipRule;
+   }
+
+
+   private static boolean  same(Object a, Object b)
+   {
+      return (a == null) ? (b == null) : a.equals(b);
+   }
+
+
+   private static boolean  sameLength(Length a, Length b)
+   {
+      if (a == b)
+         return true;
+      if (a == null || b == null)
+         return false;
+      return a.value == b.value && a.unit == b.unit;
+   }
+
+
+   private static boolean  sameLengths(Length[] a, Length[] b)
+   {
+      if (a == b)
+         return true;
+      if (a == null || b == null || a.length != b.length)
+         return false;
+      for (int i=0; i<a.length; i++) {
+         if (!sameLength(a[i], b[i]))
+            return false;
+      }
+      return true;
+   }
+
+
+   private static boolean  samePaint(SvgPaint a, SvgPaint b)
+   {
+      if (a == b)  // Includes the currentColor singleton
+         return true;
+      if (a instanceof Colour && b instanceof Colour)
+         return ((Colour) a).colour == ((Colour) b).colour;
+      if (a instanceof PaintReference && b instanceof PaintReference)
+         return same(((PaintReference) a).href, ((PaintReference) b).href) &&
+                samePaint(((PaintReference) a).fallback, ((PaintReference) b).fallback);
+      return false;
+   }
+
+
+   private static int  paintHashCode(SvgPaint paint)
+   {
+      if (paint instanceof Colour)
+         return ((Colour) paint).colour;
+      if (paint instanceof PaintReference && ((PaintReference) paint).href != null)
+         return ((PaintReference) paint).href.hashCode();
+      return (paint != null) ? System.identityHashCode(paint) : 0;
+   }
+
+
+   SVGUseCache()
+   {
+   }
+
+
+   synchronized Entry  get(SvgObject ref, Length width, Length height, Box viewPort, Style style, boolean spacePreserve, int visualBoundsGeneration)
+   {
+      if (visualBoundsGeneration != this.visualBoundsGeneration) {
+         pictures.clear();
+         this.visualBoundsGeneration = visualBoundsGeneration;
+      }
+      lookupKey.set(ref, width, height, viewPort, style, spacePreserve);
+      Entry  entry = pictures.get(lookupKey);
+      lookupKey.clear();
+      if (entry != null)
+         hits++;
+      else
+         misses++;
+      return entry;
+   }
+
+
+   synchronized void  put(SvgObject ref, Length width, Length height, Box viewPort, Style style, boolean spacePreserve, Entry entry)
+   {
+      if (maxPictures == 0)
+         return;
+      lookupKey.set(ref, width, height, viewPort, style, spacePreserve);
+      pictures.put(lookupKey.copy(), entry);
+      lookupKey.clear();
+      trimToSize(maxPictures);
+   }
+
+
+   /*
+    * Called when an element has been changed, added or removed. Discards the pictures that
+    * may depend on it.
+    */
+   synchronized void  elementChanged(SvgObject obj, boolean added)
+   {
+      Iterator<Map.Entry<Key, Entry>>  it = pictures.entrySet().iterator();
+      while (it.hasNext())
+      {
+         Map.Entry<Key, Entry>  picture = it.next();
+         if (dependsOn(picture.getKey().ref, picture.getValue(), obj, added))
+            it.remove();
+      }
+   }
+
+
+   private static boolean  dependsOn(SvgObject ref, Entry entry, SvgObject obj, boolean added)
+   {
+      // A new element may be the target of a reference that could not be resolved before
+      if (added && entry.hasUnresolvedReferences)
+         return true;
+      if (SVG.isRelated(ref, obj))
+         return true;
+      for (int i=0; i<entry.references.size(); i++) {
+         if (SVG.isRelated(entry.references.get(i), obj))
+            return true;
+      }
+      return false;
+   }
+
+
+   private void  trimToSize(int size)
+   {
+      Iterator<Entry>  it = pictures.values().iterator();
+      while (pictures.size() > size && it.hasNext())
+      {
+         it.next();
+         it.remove();
+         evictions++;
+      }
+   }
+
+
+   /**
+    * Removes all the cached pictures.
+    */
+   public synchronized void  clear()
+   {
+      pictures.clear();
+   }
+
+
+   /**
+    * Sets the maximum number of pictures to keep. Least recently used pictures are evicted
+    * if the cache already has more. A size of zero disables the cache.
+    *
+    * @param count the maximum number of pictures
+    */
+   public synchronized void  setMaxPictures(int count)
+   {
+      maxPictures = Math.max(0, count);
+      trimToSize(maxPictures);
+   }
+
+
+   public synchronized int  getMaxPictures()
+   {
+      return maxPictures;
+   }
+
+
+   /**
+    * @return the number of cached pictures.
+    */
+   public synchronized int  size()
+   {
+      return pictures.size();
+   }
+
+
+   /**
+    * @return the number of lookups that were satisfied from the cache.
+    */
+   public synchronized int  getHitCount()
+   {
+      return hits;
+   }
+
+
+   /**
+    * @return the number of lookups that required an element to be recorded.
+    */
+   public synchronized int  getMissCount()
+   {
+      return misses;
+   }
+
+
+   /**
+    * @return the number of pictures evicted to stay within the maximum size.
+    */
+   public synchronized int  getEvictionCount()
+   {
+      return evictions;
+   }
+
+
+   /**
+    * Resets the hit, miss and eviction counts.
+    */
+   public synchronized void  resetStatistics()
+   {
+      hits = 0;
+      misses = 0;
+      evictions = 0;
+   }
+}
@@ -40,6 +40,8 @@ public class SimpleFileResolver extends SimpleAssetResolver
 	{
 		String key = getKey(fontFamily, fontWeight, fontStyle);
 		mTypeFaceList.put(key, typeface);
+		// Fonts already resolved through this resolver may now be different
+		SVGTypefaceCache.getDefault().removeResolver(this);
 	}
 
 	@Override
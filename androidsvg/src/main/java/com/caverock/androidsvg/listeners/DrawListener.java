@@ -136,6 +136,7 @@ public class DrawListener implements OnTouchListener
       if (mShape instanceof SVGExtendedShape){
          if(((SVGExtendedShape)mShape).changeShape(mRenderer, x, y))
          {
+            mShape.geometryChanged();
             mImageView.invalidate();
             return true;
          }
@@ -235,6 +236,7 @@ public class DrawListener implements OnTouchListener
    {
       line.x2.setValue(mRenderer, x);
       line.y2.setValue(mRenderer, y);
+      line.geometryChanged();
       mImageView.invalidate();
       return true;
    }
@@ -272,6 +274,7 @@ public class DrawListener implements OnTouchListener
    {
       circle.r.setValue(mRenderer,
             Math.abs(Math.min(circle.cx.value - x, circle.cx.value - y)));
+      circle.geometryChanged();
       mImageView.invalidate();
       return true;
    }
@@ -316,6 +319,7 @@ public class DrawListener implements OnTouchListener
       ellipse.ry.setValue(mRenderer, Math.abs(mPoint.y - y) / 2);
       ellipse.cx.setValue(mRenderer, (mPoint.x + x) / 2);
       ellipse.cy.setValue(mRenderer, (mPoint.y + y) / 2);
+      ellipse.geometryChanged();
       mImageView.invalidate();
       return true;
    }
@@ -350,6 +354,7 @@ public class DrawListener implements OnTouchListener
       float lastX = mPoint.x;
       float lastY = mPoint.y;
       path.d.quadTo(lastX, lastY, (x + lastX) / 2, (y + lastY) / 2);
+      path.geometryChanged();
       mImageView.invalidate();
       mPoint.x = x;
       mPoint.y = y;
@@ -406,6 +411,7 @@ public class DrawListener implements OnTouchListener
       rect.y.setValue(mRenderer, t);
       rect.width.setValue(mRenderer, w);
       rect.height.setValue(mRenderer, h);
+      rect.geometryChanged();
       mImageView.invalidate();
       return true;
    }
@@ -441,6 +447,7 @@ public class DrawListener implements OnTouchListener
          polyLine.points = points;
          polyLine.points[size] = x;
          polyLine.points[size + 1] = y;
+         polyLine.geometryChanged();
       }
       return true;
    }
@@ -450,6 +457,7 @@ public class DrawListener implements OnTouchListener
       int size = polyLine.points.length;
       polyLine.points[size - 2] = x;
       polyLine.points[size - 1] = y;
+      polyLine.geometryChanged();
       mImageView.invalidate();
       return true;
    }
@@ -486,6 +494,7 @@ public class DrawListener implements OnTouchListener
    {
       text.x.get(0).setValue(mRenderer, x);
       text.y.get(0).setValue(mRenderer, y);
+      text.geometryChanged();
       return true;
    }
 
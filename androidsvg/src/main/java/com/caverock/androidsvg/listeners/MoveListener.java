@@ -255,6 +255,7 @@ public class MoveListener implements OnTouchListener
          }
          ((SVG.GraphicsElement)element).transform.postTranslate(dx, dy);
       }
+	   element.geometryChanged();
 	}
 
 	public static void MoveElementTo(SVG.SvgElementBase element, float x, float y, SVGAndroidRenderer renderer)
@@ -318,6 +319,7 @@ public class MoveListener implements OnTouchListener
          }
 	      ((SVG.GraphicsElement)element).transform.postScale(scale, scale, bounds.centerX(), bounds.centerY());
 	   }
+	   element.geometryChanged();
 	} 
 	  
 